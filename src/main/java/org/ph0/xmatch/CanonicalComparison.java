@@ -0,0 +1,169 @@
+package org.ph0.xmatch;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.ph0.xmatch.XmlEquivalenceMatcher.Setting;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+/**
+ * Compares XML values by streaming them through a {@link CanonicalXmlWriter}, as a cheaper
+ * alternative to XMLUnit's node-by-node DOM comparison for large documents.
+ *
+ * Equivalence only needs a digest of each canonical stream, so neither document is ever held in
+ * memory. Only when they differ are the canonical lines collected, to be diffed for the mismatch
+ * description.
+ *
+ * @author phanley
+ */
+/* package-private */ final class CanonicalComparison {
+  private static final String LEXICAL_HANDLER_PROPERTY =
+      "http://xml.org/sax/properties/lexical-handler";
+
+  private static final SAXParserFactory PARSER_FACTORY = newParserFactory();
+
+  /**
+   * SAX readers may be reused for consecutive parses, but not concurrently.
+   */
+  private static final ThreadLocal<XMLReader> READERS = new ThreadLocal<XMLReader>() {
+    @Override
+    protected XMLReader initialValue() {
+      try {
+        synchronized (PARSER_FACTORY) {
+          return PARSER_FACTORY.newSAXParser().getXMLReader();
+        }
+      }
+      catch (ParserConfigurationException | SAXException e) {
+        throw new IllegalStateException("Unable to create SAX parser for canonical comparison.",
+            e);
+      }
+    }
+  };
+
+  private final Set<Setting> settings;
+  private final IgnoreRules ignoreRules;
+
+  CanonicalComparison(Set<Setting> settings) {
+    this(settings, IgnoreRules.NONE);
+  }
+
+  CanonicalComparison(Set<Setting> settings, IgnoreRules ignoreRules) {
+    this.settings = settings;
+    this.ignoreRules = ignoreRules;
+  }
+
+  /**
+   * @return a digest of the canonical form of a value.
+   */
+  byte[] digest(XmlMatcherValue value) {
+    DigestSink sink = new DigestSink();
+    serialize(value, sink);
+    return sink.digest();
+  }
+
+  /**
+   * @return the canonical lines of a value.
+   */
+  List<String> lines(XmlMatcherValue value) {
+    final List<String> ret = new ArrayList<String>();
+    serialize(value, new CanonicalXmlWriter.LineSink() {
+      @Override
+      public void line(CharSequence line) {
+        ret.add(line.toString());
+      }
+    });
+    return ret;
+  }
+
+  void serialize(XmlMatcherValue value, CanonicalXmlWriter.LineSink sink) {
+    CanonicalXmlWriter writer = new CanonicalXmlWriter(settings, ignoreRules, sink);
+    XMLReader reader = READERS.get();
+    try {
+      reader.setContentHandler(writer);
+      reader.setProperty(LEXICAL_HANDLER_PROPERTY, writer);
+      reader.parse(value.get());
+      MatchStatistics statistics = MatchStatistics.current();
+      if (statistics != null) {
+        statistics.recordParse(value, false);
+      }
+    }
+    catch (IOException | SAXException e) {
+      throw new RuntimeException("Exception occurred while canonicalizing XML value.", e);
+    }
+    finally {
+      // don't keep the last sink reachable from the thread
+      reader.setContentHandler(null);
+      try {
+        reader.setProperty(LEXICAL_HANDLER_PROPERTY, null);
+      }
+      catch (SAXException se) {
+        READERS.remove();
+      }
+    }
+  }
+
+  private static SAXParserFactory newParserFactory() {
+    SAXParserFactory factory = SAXParserFactory.newInstance();
+    factory.setNamespaceAware(true);
+    return factory;
+  }
+
+  /**
+   * Feeds lines into a SHA-256 digest through a small reusable buffer, without encoding each line
+   * into a new byte array.
+   */
+  static final class DigestSink implements CanonicalXmlWriter.LineSink {
+    private final MessageDigest messageDigest;
+    private final byte[] buffer = new byte[4096];
+    private int length = 0;
+
+    DigestSink() {
+      try {
+        messageDigest = MessageDigest.getInstance("SHA-256");
+      }
+      catch (NoSuchAlgorithmException nsae) {
+        throw new IllegalStateException("SHA-256 is required to be supported by every JRE.", nsae);
+      }
+    }
+
+    @Override
+    public void line(CharSequence line) {
+      for (int i = 0; i < line.length(); i++) {
+        append(line.charAt(i));
+      }
+      append('\n');
+    }
+
+    private void append(char c) {
+      if (length + 2 > buffer.length) {
+        messageDigest.update(buffer, 0, length);
+        length = 0;
+      }
+      buffer[length++] = (byte) (c >> 8);
+      buffer[length++] = (byte) c;
+    }
+
+    /**
+     * Feed raw bytes into the digest, e.g. the digest of a nested subtree.
+     */
+    void update(byte[] bytes) {
+      messageDigest.update(buffer, 0, length);
+      length = 0;
+      messageDigest.update(bytes);
+    }
+
+    byte[] digest() {
+      messageDigest.update(buffer, 0, length);
+      length = 0;
+      return messageDigest.digest();
+    }
+  }
+}
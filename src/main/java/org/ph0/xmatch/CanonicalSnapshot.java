@@ -0,0 +1,300 @@
+package org.ph0.xmatch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.ph0.xmatch.XmlEquivalenceMatcher.Setting;
+
+/**
+ * Sidecar of a golden file, holding its canonical forms (as a digest, and as gzipped lines for
+ * describing mismatches) for each set of {@link Setting}s it has been compared with, so that the
+ * golden file never has to be parsed again unless it changes.
+ *
+ * The sidecar is keyed by a hash of the golden file's bytes, and is discarded as a whole when the
+ * golden file no longer matches it, e.g. after it's been edited by hand. It starts with a small
+ * header of the digests, followed by a gzipped block of lines per entry, so that matching only
+ * reads the header; the lines are only read to describe a mismatch.
+ *
+ * Loaded sidecars are memoized per JVM, and only reloaded (and the golden file rehashed) when the
+ * golden file's length or modification time changes.
+ *
+ * @author phanley
+ */
+/* package-private */ final class CanonicalSnapshot {
+  static final String SIDECAR_SUFFIX = ".xmatch";
+
+  private static final int MAGIC = 0x584d5335; // "XMS5"
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final ConcurrentMap<File, CanonicalSnapshot> LOADED =
+      new ConcurrentHashMap<File, CanonicalSnapshot>();
+
+  /**
+   * The canonical form of the golden file for one set of settings. Entries read from the sidecar
+   * only hold the location of their lines in it.
+   */
+  static final class Entry {
+    final byte[] digest;
+    final List<String> lines;
+    final long linesOffset;
+    final int linesLength;
+
+    Entry(byte[] digest, List<String> lines) {
+      this.digest = digest;
+      this.lines = Collections.unmodifiableList(lines);
+      this.linesOffset = -1;
+      this.linesLength = 0;
+    }
+
+    Entry(byte[] digest, long linesOffset, int linesLength) {
+      this.digest = digest;
+      this.lines = null;
+      this.linesOffset = linesOffset;
+      this.linesLength = linesLength;
+    }
+  }
+
+  private final File sidecar;
+  private final byte[] sourceHash;
+  private final long sourceLength;
+  private final long sourceModified;
+  private final Map<String, Entry> entries;
+
+  private CanonicalSnapshot(File sidecar, byte[] sourceHash, long sourceLength,
+      long sourceModified, Map<String, Entry> entries) {
+    this.sidecar = sidecar;
+    this.sourceHash = sourceHash;
+    this.sourceLength = sourceLength;
+    this.sourceModified = sourceModified;
+    this.entries = entries;
+  }
+
+  /**
+   * Get the sidecar of a golden file, loading it unless it's already been loaded for the current
+   * version of the golden file, or start an empty one if there's no sidecar yet or it's stale.
+   */
+  static CanonicalSnapshot load(File goldenFile) throws IOException {
+    File key = goldenFile.getAbsoluteFile();
+    CanonicalSnapshot loaded = LOADED.get(key);
+    if (loaded != null && loaded.sourceLength == key.length()
+        && loaded.sourceModified == key.lastModified()) {
+      return loaded;
+    }
+    return reload(goldenFile);
+  }
+
+  /**
+   * Load the sidecar of a golden file, e.g. after rewriting the golden file, when its length and
+   * modification time may not have changed.
+   */
+  static CanonicalSnapshot reload(File goldenFile) throws IOException {
+    File key = goldenFile.getAbsoluteFile();
+    long sourceLength = key.length();
+    long sourceModified = key.lastModified();
+    File sidecar = new File(goldenFile.getPath() + SIDECAR_SUFFIX);
+    byte[] sourceHash = sha256(Files.readAllBytes(goldenFile.toPath()));
+    Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+    if (sidecar.isFile()) {
+      try (DataInputStream in = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(sidecar)))) {
+        if (in.readInt() == MAGIC) {
+          long linesOffset = 8 + in.readInt();
+          byte[] storedHash = new byte[sourceHash.length];
+          in.readFully(storedHash);
+          if (MessageDigest.isEqual(storedHash, sourceHash)) {
+            readHeader(in, linesOffset, entries);
+          }
+        }
+      }
+      catch (IOException ioe) {
+        // treated as stale, and rewritten with the next entry
+        entries.clear();
+      }
+    }
+    CanonicalSnapshot ret =
+        new CanonicalSnapshot(sidecar, sourceHash, sourceLength, sourceModified, entries);
+    LOADED.put(key, ret);
+    return ret;
+  }
+
+  static String keyOf(Set<Setting> settings) {
+    StringBuilder ret = new StringBuilder();
+    for (Setting setting : settings) {
+      if (ret.length() > 0) {
+        ret.append(',');
+      }
+      ret.append(setting.name());
+    }
+    return ret.toString();
+  }
+
+  /**
+   * @return the canonical form for the settings, or {@code null} if it isn't known yet.
+   */
+  synchronized Entry get(Set<Setting> settings) {
+    return entries.get(keyOf(settings));
+  }
+
+  /**
+   * @return the canonical lines of the entry, or {@code null} if they can no longer be read from
+   *         the sidecar (e.g. because another process rewrote it).
+   */
+  synchronized List<String> lines(Entry entry) {
+    if (entry.lines != null) {
+      return entry.lines;
+    }
+    try {
+      List<String> ret = readLines(readBlock(entry));
+      CanonicalComparison.DigestSink digest = new CanonicalComparison.DigestSink();
+      for (String line : ret) {
+        digest.line(line);
+      }
+      return MessageDigest.isEqual(digest.digest(), entry.digest) ? ret : null;
+    }
+    catch (IOException ioe) {
+      return null;
+    }
+  }
+
+  /**
+   * Add the canonical form for the settings, and rewrite the sidecar.
+   */
+  synchronized void put(Set<Setting> settings, Entry entry) throws IOException {
+    Map<String, byte[]> blocks = new LinkedHashMap<String, byte[]>();
+    for (Map.Entry<String, Entry> keyed : entries.entrySet()) {
+      try {
+        blocks.put(keyed.getKey(), readBlock(keyed.getValue()));
+      }
+      catch (IOException ioe) {
+        // dropped, and canonicalized again when it's next needed
+      }
+    }
+    String key = keyOf(settings);
+    blocks.put(key, compressLines(entry.lines));
+    Map<String, Entry> allEntries = new LinkedHashMap<String, Entry>(entries);
+    allEntries.put(key, entry);
+
+    ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+    DataOutputStream header = new DataOutputStream(headerBytes);
+    header.write(sourceHash);
+    header.writeInt(blocks.size());
+    for (Map.Entry<String, byte[]> block : blocks.entrySet()) {
+      byte[] digest = allEntries.get(block.getKey()).digest;
+      header.writeUTF(block.getKey());
+      header.writeInt(digest.length);
+      header.write(digest);
+      header.writeInt(block.getValue().length);
+    }
+    header.flush();
+
+    Map<String, Entry> newEntries = new LinkedHashMap<String, Entry>();
+    long linesOffset = 8 + headerBytes.size();
+    File temp = File.createTempFile(sidecar.getName(), ".tmp", sidecar.getAbsoluteFile()
+        .getParentFile());
+    try {
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(headerBytes.size());
+        headerBytes.writeTo(out);
+        for (Map.Entry<String, byte[]> block : blocks.entrySet()) {
+          out.write(block.getValue());
+          newEntries.put(block.getKey(), new Entry(allEntries.get(block.getKey()).digest,
+              linesOffset, block.getValue().length));
+          linesOffset += block.getValue().length;
+        }
+      }
+      Files.move(temp.toPath(), sidecar.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+    finally {
+      Files.deleteIfExists(temp.toPath());
+    }
+    entries.clear();
+    entries.putAll(newEntries);
+  }
+
+  private static void readHeader(DataInputStream in, long linesOffset, Map<String, Entry> entries)
+      throws IOException {
+    int count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      String key = in.readUTF();
+      byte[] digest = new byte[in.readInt()];
+      in.readFully(digest);
+      int linesLength = in.readInt();
+      entries.put(key, new Entry(digest, linesOffset, linesLength));
+      linesOffset += linesLength;
+    }
+  }
+
+  private byte[] readBlock(Entry entry) throws IOException {
+    if (entry.lines != null) {
+      return compressLines(entry.lines);
+    }
+    byte[] ret = new byte[entry.linesLength];
+    try (RandomAccessFile in = new RandomAccessFile(sidecar, "r")) {
+      in.seek(entry.linesOffset);
+      in.readFully(ret);
+    }
+    return ret;
+  }
+
+  private static byte[] compressLines(List<String> lines) throws IOException {
+    ByteArrayOutputStream ret = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(ret))) {
+      out.writeInt(lines.size());
+      for (String line : lines) {
+        byte[] bytes = line.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+      }
+    }
+    return ret.toByteArray();
+  }
+
+  private static List<String> readLines(byte[] block) throws IOException {
+    try (DataInputStream in =
+        new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(block)))) {
+      int lineCount = in.readInt();
+      List<String> ret = new ArrayList<String>(lineCount);
+      for (int j = 0; j < lineCount; j++) {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        ret.add(new String(bytes, UTF_8));
+      }
+      return ret;
+    }
+  }
+
+  static byte[] sha256(byte[] bytes) {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(bytes);
+    }
+    catch (NoSuchAlgorithmException nsae) {
+      throw new IllegalStateException("SHA-256 is required to be supported by every JRE.", nsae);
+    }
+  }
+}
@@ -0,0 +1,483 @@
+package org.ph0.xmatch;
+
+import java.util.Arrays;
+import java.util.Set;
+
+import org.ph0.xmatch.XmlEquivalenceMatcher.Setting;
+import org.xml.sax.Attributes;
+import org.xml.sax.ext.DefaultHandler2;
+
+/**
+ * SAX handler that streams a document out as a sequence of canonical "lines", one per markup event,
+ * applying the same normalizations as XMLUnit does under the {@link Setting}s of an
+ * {@link XmlEquivalenceMatcher}: attributes are sorted (DOM attribute maps have no order),
+ * comments dropped, whitespace trimmed/collapsed in every kind of value, CDATA merged into text,
+ * and namespace prefixes replaced by their URIs (as <code>{uri}local</code> names). Two documents
+ * are then equivalent exactly when their canonical lines are equal, and a line-based diff of the
+ * canonical forms gives a readable description of where they differ.
+ *
+ * Under {@link Setting#ONLY_COMPARE_SIMILARITY}, differing namespace prefixes and comment values
+ * are tolerated, since XMLUnit considers them recoverable, but comments are still kept in place.
+ * XMLUnit also tolerates reordered sibling elements when only comparing similarity, which a
+ * stream of lines can't, so {@link XmlEquivalenceMatcher} doesn't compare canonically then.
+ *
+ * Line breaks within values are escaped, so every event is exactly one line, except that long text
+ * and CDATA values are split into chunks of at most {@value #VALUE_CHUNK_CHARS} characters, each
+ * after the first on a line starting with {@value #CONTINUATION}. Chunks end where a rolling hash
+ * of the last few characters hits a boundary value (and are at least {@value #MIN_CHUNK_CHARS}
+ * characters long), so the boundaries depend on the content rather than on offsets, and inserting
+ * or deleting characters only changes the chunks around the edit. Whitespace is normalized as the
+ * characters arrive, and (unless ignore rules need to see whole values) every complete chunk is
+ * emitted right away, so a huge text node is never held in one piece, and a diff of two such nodes
+ * pinpoints the chunks that differ. Values masked by {@link IgnoreRules} are
+ * replaced by {@value #MASKED_VALUE}.
+ *
+ * @author phanley
+ */
+/* package-private */ class CanonicalXmlWriter extends DefaultHandler2 {
+  /**
+   * Destination for the canonical lines. The line may be a reused buffer, so implementations must
+   * copy it if they need to keep it.
+   */
+  interface LineSink {
+    void line(CharSequence line);
+  }
+
+  private static final String INDENT = "  ";
+  private static final String TEXT_PREFIX = "\"";
+  private static final String CDATA_PREFIX = "<![CDATA[";
+
+  static final int VALUE_CHUNK_CHARS = 4096;
+  static final int MIN_CHUNK_CHARS = 512;
+
+  /**
+   * Chunks end (on average, past the minimum) every 2^{@value} characters.
+   */
+  private static final int BOUNDARY_BITS = 10;
+
+  /**
+   * Random values of the characters for the rolling ("gear") hash, which shifts each character's
+   * value further out with every character that follows, so the high bits of the hash depend on
+   * the last 32 characters.
+   */
+  private static final int[] GEAR = new int[256];
+
+  static {
+    long seed = 0x9E3779B97F4A7C15L;
+    for (int i = 0; i < GEAR.length; i++) {
+      seed = seed * 6364136223846793005L + 1442695040888963407L;
+      GEAR[i] = (int) (seed >>> 32);
+    }
+  }
+  static final String CONTINUATION = "+";
+
+  static final String MASKED_VALUE = "${ignored}";
+
+  private final LineSink sink;
+  private final IgnoreRules ignoreRules;
+  private final boolean dropComments;
+  private final boolean dropCommentValues;
+  private final boolean tolerateNamespacePrefixes;
+  private final boolean mergeCdata;
+  private final boolean trimWhitespace;
+  private final boolean normalizeWhitespace;
+  /**
+   * Whether whitespace-only text is kept as an (empty) value: XMLUnit only strips it as a whole
+   * when ignoring leading and trailing whitespace, but compares normalized values as empty.
+   */
+  private final boolean keepBlankText;
+
+  private final StringBuilder line = new StringBuilder();
+  /**
+   * The (normalized) text or CDATA value not emitted yet.
+   */
+  private final StringBuilder value = new StringBuilder();
+  private int valueChunks = 0;
+  /**
+   * The rolling hash of the value up to {@link #hashedLength}.
+   */
+  private int valueHash = 0;
+  private int hashedLength = 0;
+  private boolean blankText = false;
+  private boolean pendingSpace = false;
+  private final StringBuilder pendingWhitespace = new StringBuilder();
+  private boolean inCdata = false;
+  private boolean inDtd = false;
+  private int depth = 0;
+
+  /**
+   * The path of local names to the current element, only tracked if there are rules to check it.
+   */
+  private final StringBuilder path = new StringBuilder();
+  private int[] pathLengths = new int[16];
+
+  CanonicalXmlWriter(Set<Setting> settings, LineSink sink) {
+    this(settings, IgnoreRules.NONE, sink);
+  }
+
+  CanonicalXmlWriter(Set<Setting> settings, IgnoreRules ignoreRules, LineSink sink) {
+    this.sink = sink;
+    this.ignoreRules = ignoreRules;
+    // differences in prefixes and comment values are only "recoverable"
+    boolean similarity = settings.contains(Setting.ONLY_COMPARE_SIMILARITY);
+    this.dropComments = settings.contains(Setting.IGNORE_COMMENTS);
+    this.dropCommentValues = similarity;
+    this.tolerateNamespacePrefixes =
+        similarity || settings.contains(Setting.TOLERATE_DIFFERENT_NAMESPACE_PREFIXES);
+    // XMLUnit strips comments with an XSLT transform, whose result has no CDATA sections left
+    this.mergeCdata = settings.contains(Setting.IGNORE_CDATA_TEXT_DISTINCTION) || dropComments;
+    this.trimWhitespace = settings.contains(Setting.IGNORE_LEADING_TRAILING_WHITESPACE);
+    this.normalizeWhitespace = settings.contains(Setting.NORMALIZE_WHITESPACE);
+    this.keepBlankText = normalizeWhitespace && !trimWhitespace;
+  }
+
+  /**
+   * Start tracking the element path below the specified (normalized) path, rather than at the
+   * document root, for writing a subtree of a document.
+   */
+  CanonicalXmlWriter withinPath(String parentPath) {
+    path.setLength(0);
+    path.append(parentPath);
+    return this;
+  }
+
+  @Override
+  public void startElement(String uri, String localName, String qName, Attributes attributes) {
+    flushText();
+    startLine().append('<');
+    appendName(line, uri, localName, qName);
+    emitLine();
+    if (!ignoreRules.isEmpty()) {
+      enterPath(localName, qName);
+    }
+
+    int attributeCount = attributes.getLength();
+    if (attributeCount > 0) {
+      String[] attributeLines = new String[attributeCount];
+      for (int i = 0; i < attributeCount; i++) {
+        StringBuilder attributeLine = new StringBuilder();
+        appendIndent(attributeLine).append(INDENT).append('@');
+        appendName(attributeLine, attributes.getURI(i), attributes.getLocalName(i),
+            attributes.getQName(i));
+        attributeLine.append("=\"");
+        appendValue(attributeLine, localNameOf(attributes.getLocalName(i), attributes.getQName(i)),
+            normalized(attributes.getValue(i)));
+        attributeLines[i] = attributeLine.append('"').toString();
+      }
+      Arrays.sort(attributeLines);
+      for (String attributeLine : attributeLines) {
+        sink.line(attributeLine);
+      }
+    }
+    depth++;
+  }
+
+  @Override
+  public void endElement(String uri, String localName, String qName) {
+    flushText();
+    depth--;
+    if (!ignoreRules.isEmpty()) {
+      path.setLength(pathLengths[depth]);
+    }
+    startLine().append("</");
+    appendName(line, uri, localName, qName);
+    emitLine();
+  }
+
+  @Override
+  public void characters(char[] ch, int start, int length) {
+    blankText |= keepBlankText && length > 0;
+    if (!(normalizeWhitespace || trimWhitespace)) {
+      value.append(ch, start, length);
+    }
+    else if (normalizeWhitespace) {
+      appendCollapsed(ch, start, length);
+    }
+    else {
+      appendTrimmed(ch, start, length);
+    }
+    if (ignoreRules.isEmpty()) {
+      emitCompleteChunks(inCdata ? CDATA_PREFIX : TEXT_PREFIX);
+    }
+  }
+
+  /**
+   * Append characters, dropping leading and trailing whitespace, and collapsing other runs of
+   * whitespace into single spaces.
+   */
+  private void appendCollapsed(char[] ch, int start, int length) {
+    for (int i = start; i < start + length; i++) {
+      char c = ch[i];
+      if (Character.isWhitespace(c)) {
+        pendingSpace = hasValue();
+      }
+      else {
+        if (pendingSpace) {
+          value.append(' ');
+          pendingSpace = false;
+        }
+        value.append(c);
+      }
+    }
+  }
+
+  /**
+   * Append characters, dropping leading and trailing whitespace (as {@link String#trim()} does),
+   * by holding back each run of whitespace until something follows it.
+   */
+  private void appendTrimmed(char[] ch, int start, int length) {
+    for (int i = start; i < start + length; i++) {
+      char c = ch[i];
+      if (c <= ' ') {
+        if (hasValue()) {
+          pendingWhitespace.append(c);
+        }
+      }
+      else {
+        if (pendingWhitespace.length() > 0) {
+          value.append(pendingWhitespace);
+          pendingWhitespace.setLength(0);
+        }
+        value.append(c);
+      }
+    }
+  }
+
+  private boolean hasValue() {
+    return value.length() > 0 || valueChunks > 0;
+  }
+
+  @Override
+  public void ignorableWhitespace(char[] ch, int start, int length) {
+    characters(ch, start, length);
+  }
+
+  @Override
+  public void startCDATA() {
+    if (!mergeCdata) {
+      flushText();
+      inCdata = true;
+    }
+  }
+
+  @Override
+  public void endCDATA() {
+    if (!mergeCdata) {
+      flushValue(CDATA_PREFIX, true);
+      inCdata = false;
+    }
+  }
+
+  @Override
+  public void comment(char[] ch, int start, int length) {
+    if (dropComments || inDtd) {
+      return;
+    }
+    flushText();
+    startLine().append("<!--");
+    if (!dropCommentValues) {
+      appendEscaped(line, normalized(new String(ch, start, length)));
+    }
+    emitLine();
+  }
+
+  @Override
+  public void processingInstruction(String target, String data) {
+    flushText();
+    startLine().append("<?").append(target).append(' ');
+    appendEscaped(line, normalized(data));
+    emitLine();
+  }
+
+  @Override
+  public void startDTD(String name, String publicId, String systemId) {
+    inDtd = true;
+  }
+
+  @Override
+  public void endDTD() {
+    inDtd = false;
+  }
+
+  @Override
+  public void endDocument() {
+    flushText();
+  }
+
+  /**
+   * Emit the text accumulated since the last markup event, so that text split across several
+   * {@link #characters(char[], int, int)} calls (or around dropped comments) is compared as one
+   * value, the same way {@link Setting#NORMALIZE_DOCUMENT} merges adjacent text nodes.
+   */
+  void flushText() {
+    flushValue(TEXT_PREFIX, blankText);
+  }
+
+  /**
+   * Emit the rest of the current value, unless there's none and it's not required.
+   */
+  private void flushValue(String prefix, boolean required) {
+    if (!hasValue()) {
+      if (required) {
+        startLine().append(prefix);
+        emitLine();
+      }
+    }
+    else if (!ignoreRules.isEmpty() && ignoreRules.masks(path.toString(), null, value)) {
+      startLine().append(prefix).append(MASKED_VALUE);
+      emitLine();
+    }
+    else {
+      emitCompleteChunks(prefix);
+      if (value.length() > 0) {
+        emitChunk(prefix, 0, value.length());
+      }
+    }
+    value.setLength(0);
+    valueChunks = 0;
+    valueHash = 0;
+    hashedLength = 0;
+    blankText = false;
+    pendingSpace = false;
+    pendingWhitespace.setLength(0);
+  }
+
+  /**
+   * Emit the chunks of the value whose end has been found, keeping the rest.
+   */
+  private void emitCompleteChunks(String prefix) {
+    int start = 0;
+    while (start + hashedLength < value.length()) {
+      char c = value.charAt(start + hashedLength++);
+      valueHash = (valueHash << 1) + GEAR[(c ^ (c >>> 8)) & 0xff];
+      if (hashedLength == VALUE_CHUNK_CHARS || (hashedLength >= MIN_CHUNK_CHARS
+          && valueHash >>> (Integer.SIZE - BOUNDARY_BITS) == 0)) {
+        emitChunk(prefix, start, hashedLength);
+        start += hashedLength;
+        hashedLength = 0;
+      }
+    }
+    // dropped once, so a whole value held back for the ignore rules isn't shifted per chunk
+    value.delete(0, start);
+  }
+
+  private void emitChunk(String prefix, int start, int length) {
+    startLine().append(valueChunks++ == 0 ? prefix : CONTINUATION);
+    appendEscaped(line, value, start, start + length);
+    emitLine();
+  }
+
+  private void enterPath(String localName, String qName) {
+    if (depth >= pathLengths.length) {
+      pathLengths = Arrays.copyOf(pathLengths, depth * 2);
+    }
+    pathLengths[depth] = path.length();
+    path.append('/').append(localNameOf(localName, qName));
+  }
+
+  /**
+   * Append an attribute value or element content, unless it's masked by the ignore rules.
+   *
+   * @param attributeName the local name of the attribute, or {@code null} for element content.
+   */
+  private void appendValue(StringBuilder out, String attributeName, CharSequence value) {
+    if (!ignoreRules.isEmpty()) {
+      String valuePath = attributeName == null ? path.toString() : path + "/@" + attributeName;
+      if (ignoreRules.masks(valuePath, attributeName, value)) {
+        out.append(MASKED_VALUE);
+        return;
+      }
+    }
+    appendEscaped(out, value);
+  }
+
+  /**
+   * @return a whole value, trimmed and/or with whitespace collapsed the same way XMLUnit compares
+   *         values, according to the settings.
+   */
+  private String normalized(String value) {
+    if (!(trimWhitespace || normalizeWhitespace)) {
+      return value;
+    }
+    String trimmed = value.trim();
+    if (!normalizeWhitespace) {
+      return trimmed;
+    }
+    StringBuilder ret = new StringBuilder(trimmed.length());
+    boolean inWhitespace = false;
+    for (int i = 0; i < trimmed.length(); i++) {
+      char c = trimmed.charAt(i);
+      if (!Character.isWhitespace(c)) {
+        ret.append(c);
+        inWhitespace = false;
+      }
+      else if (!inWhitespace) {
+        ret.append(' ');
+        inWhitespace = true;
+      }
+    }
+    return ret.toString();
+  }
+
+  private static String localNameOf(String localName, String qName) {
+    if (localName != null && !localName.isEmpty()) {
+      return localName;
+    }
+    return qName.substring(qName.indexOf(':') + 1);
+  }
+
+  private void appendName(StringBuilder out, String uri, String localName, String qName) {
+    boolean namespaced = uri != null && !uri.isEmpty();
+    if (tolerateNamespacePrefixes) {
+      if (namespaced) {
+        out.append('{').append(uri).append('}');
+      }
+      out.append(localName == null || localName.isEmpty() ? qName : localName);
+    }
+    else {
+      out.append(qName);
+      if (namespaced) {
+        out.append('{').append(uri).append('}');
+      }
+    }
+  }
+
+  private static void appendEscaped(StringBuilder out, CharSequence value) {
+    appendEscaped(out, value, 0, value.length());
+  }
+
+  private static void appendEscaped(StringBuilder out, CharSequence value, int start, int end) {
+    for (int i = start; i < end; i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '\\':
+          out.append("\\\\");
+          break;
+        case '\n':
+          out.append("\\n");
+          break;
+        case '\r':
+          out.append("\\r");
+          break;
+        default:
+          out.append(c);
+      }
+    }
+  }
+
+  private StringBuilder startLine() {
+    line.setLength(0);
+    return appendIndent(line);
+  }
+
+  private StringBuilder appendIndent(StringBuilder out) {
+    for (int i = 0; i < depth; i++) {
+      out.append(INDENT);
+    }
+    return out;
+  }
+
+  private void emitLine() {
+    sink.line(line);
+  }
+}
@@ -0,0 +1,72 @@
+package org.ph0.xmatch;
+
+import java.io.Reader;
+
+/**
+ * {@link Reader} over any {@link CharSequence}, e.g. a {@link StringBuilder}, without copying it
+ * into a {@link String} first. The sequence must not be modified while it's being read.
+ *
+ * @author phanley
+ */
+/* package-private */ final class CharSequenceReader extends Reader {
+  private final CharSequence chars;
+  private int position = 0;
+  private int mark = 0;
+
+  CharSequenceReader(CharSequence chars) {
+    this.chars = chars;
+  }
+
+  @Override
+  public int read() {
+    return position < chars.length() ? chars.charAt(position++) : -1;
+  }
+
+  @Override
+  public int read(char[] buffer, int offset, int length) {
+    if (position >= chars.length()) {
+      return -1;
+    }
+    int count = Math.min(length, chars.length() - position);
+    if (chars instanceof StringBuilder) {
+      ((StringBuilder) chars).getChars(position, position + count, buffer, offset);
+    }
+    else {
+      for (int i = 0; i < count; i++) {
+        buffer[offset + i] = chars.charAt(position + i);
+      }
+    }
+    position += count;
+    return count;
+  }
+
+  @Override
+  public long skip(long count) {
+    int skipped = (int) Math.min(Math.max(count, 0), chars.length() - position);
+    position += skipped;
+    return skipped;
+  }
+
+  @Override
+  public boolean ready() {
+    return true;
+  }
+
+  @Override
+  public boolean markSupported() {
+    return true;
+  }
+
+  @Override
+  public void mark(int readAheadLimit) {
+    mark = position;
+  }
+
+  @Override
+  public void reset() {
+    position = mark;
+  }
+
+  @Override
+  public void close() {}
+}
@@ -0,0 +1,55 @@
+package org.ph0.xmatch;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+
+import org.xml.sax.InputSource;
+
+/**
+ * {@link InputSourceSupplier} for a compressed document at a {@link URL}. Rather than buffering
+ * the inflated document, each {@link #get()} re-opens the URL and decompresses it while the parser
+ * reads from it, so the full document never has to be held in memory.
+ *
+ * @author phanley
+ */
+/* package-private */ final class CompressedUrlInputSourceSupplier implements InputSourceSupplier {
+  private static final int BUFFER_SIZE = 8192;
+
+  private final URL url;
+  private final Compression compression;
+
+  CompressedUrlInputSourceSupplier(URL url, Compression compression) {
+    this.url = url;
+    this.compression = compression;
+  }
+
+  @Override
+  public InputSource get() {
+    InputStream urlStream = null;
+    try {
+      urlStream = url.openStream();
+      InputSource ret = new InputSource(
+          compression.decompress(new BufferedInputStream(urlStream, BUFFER_SIZE)));
+      ret.setSystemId(url.toExternalForm());
+      return ret;
+    }
+    catch (IOException ioe) {
+      closeQuietly(urlStream);
+      throw new RuntimeException(
+          "I/O exception occurred while opening " + compression + " stream at URL: " + url, ioe);
+    }
+  }
+
+  private static void closeQuietly(InputStream stream) {
+    if (stream != null) {
+      try {
+        stream.close();
+      }
+      catch (IOException ioe) {
+        // already failing, the original exception is more interesting
+      }
+    }
+  }
+}
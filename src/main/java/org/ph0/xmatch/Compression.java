@@ -0,0 +1,137 @@
+package org.ph0.xmatch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compression formats that can be transparently unwrapped when reading XML documents, identified
+ * by the "magic" bytes at the start of the stream.
+ *
+ * Only the codecs built into the JDK are always available. Zstandard is supported when the
+ * {@code zstd-jni} library happens to be on the classpath, since we don't want to force a native
+ * dependency on everyone who uses this library.
+ *
+ * @author phanley
+ */
+/* package-private */ enum Compression {
+  NONE(new int[0]) {
+    @Override
+    InputStream decompress(InputStream compressed) {
+      return compressed;
+    }
+  },
+  GZIP(new int[] {0x1f, 0x8b}) {
+    @Override
+    InputStream decompress(InputStream compressed) throws IOException {
+      return new GZIPInputStream(compressed, BUFFER_SIZE);
+    }
+  },
+  ZSTD(new int[] {0x28, 0xb5, 0x2f, 0xfd}) {
+    @Override
+    InputStream decompress(InputStream compressed) throws IOException {
+      if (zstdStreamConstructor == null) {
+        throw new IOException("Stream is Zstandard-compressed, but no Zstandard codec ("
+            + ZSTD_STREAM_CLASS + ") is available on the classpath.");
+      }
+      try {
+        return zstdStreamConstructor.newInstance(compressed);
+      }
+      catch (InvocationTargetException ite) {
+        throw new IOException("Unable to open Zstandard stream.", ite.getCause());
+      }
+      catch (ReflectiveOperationException roe) {
+        throw new IOException("Unable to open Zstandard stream.", roe);
+      }
+    }
+  },
+  /**
+   * Raw zlib streams. An XML document can never legitimately start with the {@code 'x'} that
+   * doubles as the zlib header byte, so this can't be confused with uncompressed content.
+   */
+  ZLIB(new int[] {0x78}) {
+    @Override
+    boolean matches(byte[] header, int length) {
+      return length >= 2 && super.matches(header, length)
+          && (((header[0] & 0xff) << 8) | (header[1] & 0xff)) % 31 == 0;
+    }
+
+    @Override
+    InputStream decompress(InputStream compressed) {
+      return new InflaterInputStream(compressed);
+    }
+  };
+
+  private static final int BUFFER_SIZE = 8192;
+  private static final int MAX_MAGIC_LENGTH = 4;
+  private static final String ZSTD_STREAM_CLASS = "com.github.luben.zstd.ZstdInputStream";
+  private static final Constructor<? extends InputStream> zstdStreamConstructor =
+      findStreamConstructor(ZSTD_STREAM_CLASS);
+
+  private final int[] magic;
+
+  private Compression(int[] magic) {
+    this.magic = magic;
+  }
+
+  /**
+   * Wrap a compressed stream in a stream that decompresses it incrementally as it's read.
+   */
+  abstract InputStream decompress(InputStream compressed) throws IOException;
+
+  boolean matches(byte[] header, int length) {
+    if (magic.length == 0 || length < magic.length) {
+      return false;
+    }
+    for (int i = 0; i < magic.length; i++) {
+      if ((header[i] & 0xff) != magic[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Identify the compression used by a stream without consuming any of it. The stream must support
+   * {@link InputStream#mark(int) marking}.
+   */
+  static Compression detect(InputStream stream) throws IOException {
+    if (!stream.markSupported()) {
+      throw new IllegalArgumentException("Compression detection requires a markable stream.");
+    }
+    byte[] header = new byte[MAX_MAGIC_LENGTH];
+    int length = 0;
+    stream.mark(MAX_MAGIC_LENGTH);
+    try {
+      int bytesRead;
+      while (length < header.length
+          && (bytesRead = stream.read(header, length, header.length - length)) != -1) {
+        length += bytesRead;
+      }
+    }
+    finally {
+      stream.reset();
+    }
+
+    for (Compression compression : values()) {
+      if (compression.matches(header, length)) {
+        return compression;
+      }
+    }
+    return NONE;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Constructor<? extends InputStream> findStreamConstructor(String className) {
+    try {
+      Class<?> streamClass = Class.forName(className, true, Compression.class.getClassLoader());
+      return ((Class<? extends InputStream>) streamClass).getConstructor(InputStream.class);
+    }
+    catch (ClassNotFoundException | NoSuchMethodException | LinkageError e) {
+      return null;
+    }
+  }
+}
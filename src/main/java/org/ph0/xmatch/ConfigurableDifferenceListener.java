@@ -1,56 +1,147 @@
 package org.ph0.xmatch;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
 import java.util.Set;
 
 import org.custommonkey.xmlunit.Difference;
 import org.custommonkey.xmlunit.DifferenceConstants;
 import org.custommonkey.xmlunit.DifferenceListener;
+import org.ph0.xmatch.XmlEquivalenceMatcher.DifferenceTreatment;
 import org.ph0.xmatch.XmlEquivalenceMatcher.Setting;
 import org.w3c.dom.Node;
 
 /**
  * {@link DifferenceListener} implementation that reflects the provided {@link Setting} values.
- * 
+ *
+ * Since XMLUnit reports differences node by node, the decision for every known difference type is
+ * made once up front and stored in a table indexed by {@link Difference#getId()}, so classifying
+ * a difference is a single array lookup. Only value differences are additionally checked against
+ * the {@link IgnoreRules}, if there are any.
+ *
  * @author phanley
  */
 class ConfigurableDifferenceListener implements DifferenceListener {
-  private final Set<Setting> settings;
+  /**
+   * Every difference type declared by XMLUnit, indexed by ID.
+   */
+  private static final Difference[] KNOWN_DIFFERENCES = findKnownDifferences();
+
+  /**
+   * Difference types reporting differing values, which may be suppressed by {@link IgnoreRules}.
+   */
+  private static final int[] VALUE_DIFFERENCE_IDS = {DifferenceConstants.ATTR_VALUE_ID,
+      DifferenceConstants.TEXT_VALUE_ID, DifferenceConstants.CDATA_VALUE_ID};
+
+  private final int[] outcomes;
+  private final boolean[] checkIgnoreRules;
+  private final IgnoreRules ignoreRules;
 
   ConfigurableDifferenceListener(Set<Setting> settings) {
-    this.settings = settings;
+    this(settings, Collections.<Integer, DifferenceTreatment>emptyMap(), IgnoreRules.NONE);
   }
 
-  @Override
-  public int differenceFound(Difference difference) {
-    if (difference.equals(DifferenceConstants.ATTR_SEQUENCE)) {
-      if (settings.contains(Setting.IGNORE_ATTRIBUTE_ORDER)) {
-        return RETURN_IGNORE_DIFFERENCE_NODES_IDENTICAL;
+  /**
+   * @param settings the settings determining the outcome of each difference type.
+   * @param overrides treatments that replace the outcome determined by the settings, keyed by
+   *        difference ID.
+   * @param ignoreRules rules for value differences to ignore.
+   */
+  ConfigurableDifferenceListener(Set<Setting> settings,
+      Map<Integer, DifferenceTreatment> overrides, IgnoreRules ignoreRules) {
+    int maxId = KNOWN_DIFFERENCES.length - 1;
+    for (Integer id : overrides.keySet()) {
+      maxId = Math.max(maxId, id);
+    }
+
+    outcomes = new int[maxId + 1];
+    Arrays.fill(outcomes, RETURN_ACCEPT_DIFFERENCE);
+    for (Difference difference : KNOWN_DIFFERENCES) {
+      if (difference != null) {
+        outcomes[difference.getId()] = outcomeFor(difference, settings);
       }
-      else {
-        return RETURN_IGNORE_DIFFERENCE_NODES_SIMILAR;
+    }
+    for (Map.Entry<Integer, DifferenceTreatment> override : overrides.entrySet()) {
+      outcomes[override.getKey()] = override.getValue().listenerResult();
+    }
+
+    this.ignoreRules = ignoreRules;
+    checkIgnoreRules = new boolean[outcomes.length];
+    if (!ignoreRules.isEmpty()) {
+      for (int id : VALUE_DIFFERENCE_IDS) {
+        checkIgnoreRules[id] = outcomes[id] != RETURN_IGNORE_DIFFERENCE_NODES_IDENTICAL;
       }
     }
+  }
+
+  private static int outcomeFor(Difference difference, Set<Setting> settings) {
+    if (difference.equals(DifferenceConstants.ATTR_SEQUENCE)) {
+      return ignoredIf(settings.contains(Setting.IGNORE_ATTRIBUTE_ORDER));
+    }
     else if (difference.equals(DifferenceConstants.NAMESPACE_PREFIX)) {
-      if (settings.contains(Setting.TOLERATE_DIFFERENT_NAMESPACE_PREFIXES)) {
-        return RETURN_IGNORE_DIFFERENCE_NODES_IDENTICAL;
-      }
-      else {
-        return RETURN_IGNORE_DIFFERENCE_NODES_SIMILAR;
-      }
+      return ignoredIf(settings.contains(Setting.TOLERATE_DIFFERENT_NAMESPACE_PREFIXES));
     }
     else if (difference.equals(DifferenceConstants.COMMENT_VALUE)) {
-      if (settings.contains(Setting.IGNORE_COMMENTS)) {
-        return RETURN_IGNORE_DIFFERENCE_NODES_IDENTICAL;
-      }
-      else {
-        return RETURN_IGNORE_DIFFERENCE_NODES_SIMILAR;
-      }
+      return ignoredIf(settings.contains(Setting.IGNORE_COMMENTS));
     }
     else {
       return RETURN_ACCEPT_DIFFERENCE;
     }
   }
 
+  private static int ignoredIf(boolean settingEnabled) {
+    return settingEnabled ? RETURN_IGNORE_DIFFERENCE_NODES_IDENTICAL
+        : RETURN_IGNORE_DIFFERENCE_NODES_SIMILAR;
+  }
+
+  @Override
+  public int differenceFound(Difference difference) {
+    int id = difference.getId();
+    if (id < 0 || id >= outcomes.length) {
+      return RETURN_ACCEPT_DIFFERENCE;
+    }
+    if (checkIgnoreRules[id] && ignoreRules.ignores(difference)) {
+      return RETURN_IGNORE_DIFFERENCE_NODES_IDENTICAL;
+    }
+    return outcomes[id];
+  }
+
+  /**
+   * @return whether every difference of the type is ignored outright, regardless of its nodes or
+   *         values, so that it needn't even be reported.
+   */
+  boolean ignoresAll(int differenceId) {
+    return differenceId >= 0 && differenceId < outcomes.length
+        && outcomes[differenceId] == RETURN_IGNORE_DIFFERENCE_NODES_IDENTICAL;
+  }
+
   @Override
   public void skippedComparison(Node control, Node test) {}
-}
\ No newline at end of file
+
+  /**
+   * Collect the {@link Difference} constants from {@link DifferenceConstants}, so that the table
+   * keeps covering every difference type if XMLUnit adds new ones.
+   */
+  private static Difference[] findKnownDifferences() {
+    Difference[] ret = new Difference[0];
+    for (Field field : DifferenceConstants.class.getFields()) {
+      if (Modifier.isStatic(field.getModifiers()) && field.getType() == Difference.class) {
+        try {
+          Difference difference = (Difference) field.get(null);
+          if (difference.getId() >= ret.length) {
+            ret = Arrays.copyOf(ret, difference.getId() + 1);
+          }
+          ret[difference.getId()] = difference;
+        }
+        catch (IllegalAccessException iae) {
+          throw new IllegalStateException("Unable to read XMLUnit difference constant " + field,
+              iae);
+        }
+      }
+    }
+    return ret;
+  }
+}
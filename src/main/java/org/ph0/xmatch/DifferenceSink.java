@@ -0,0 +1,261 @@
+package org.ph0.xmatch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.custommonkey.xmlunit.Difference;
+import org.custommonkey.xmlunit.NodeDetail;
+
+/**
+ * Collects the differences found by a comparison without holding all of them in memory: the
+ * first few are kept as they are (with their DOM nodes, for describing them in context), and the
+ * rest are streamed to a temporary file in a compact binary form. Counts per difference type are
+ * kept for all of them.
+ *
+ * The spill file is deleted when the sink is closed. Failing to write it shouldn't obscure the
+ * actual mismatch, so errors are logged and the remaining differences are only counted.
+ *
+ * @author phanley
+ */
+/* package-private */ final class DifferenceSink implements Closeable {
+  private static final Logger log = Logger.getLogger(DifferenceSink.class.getName());
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /**
+   * Receives the differences read back from the spill file.
+   */
+  interface SpilledDifferenceVisitor {
+    void visit(SpilledDifference difference) throws IOException;
+  }
+
+  /**
+   * A difference read back from the spill file, without its DOM nodes.
+   */
+  static final class SpilledDifference {
+    final int id;
+    final String description;
+    final boolean recoverable;
+    final String controlXpath;
+    final String controlValue;
+    final String testXpath;
+    final String testValue;
+
+    private SpilledDifference(int id, String description, boolean recoverable,
+        String controlXpath, String controlValue, String testXpath, String testValue) {
+      this.id = id;
+      this.description = description;
+      this.recoverable = recoverable;
+      this.controlXpath = controlXpath;
+      this.controlValue = controlValue;
+      this.testXpath = testXpath;
+      this.testValue = testValue;
+    }
+  }
+
+  private final int maxInMemory;
+  private final List<Difference> retained = new ArrayList<Difference>();
+  private long[] countsById = new long[0];
+  private String[] descriptionsById = new String[0];
+  private long size = 0;
+  private long spilled = 0;
+
+  private File spillFile;
+  private DataOutputStream spillOutput;
+  private boolean spillFailed = false;
+
+  DifferenceSink(int maxInMemory) {
+    this.maxInMemory = maxInMemory;
+  }
+
+  void add(Difference difference) {
+    size++;
+    count(difference);
+    if (retained.size() < maxInMemory) {
+      retained.add(difference);
+    }
+    else if (!spillFailed) {
+      try {
+        spill(difference);
+        spilled++;
+      }
+      catch (IOException ioe) {
+        log.log(Level.WARNING, "Unable to spill differences to " + spillFile
+            + ", further differences will only be counted.", ioe);
+        spillFailed = true;
+        closeQuietly();
+      }
+    }
+  }
+
+  /**
+   * @return the total number of differences added.
+   */
+  long size() {
+    return size;
+  }
+
+  /**
+   * @return the differences kept in memory, i.e. the first ones found.
+   */
+  List<Difference> retained() {
+    return Collections.unmodifiableList(retained);
+  }
+
+  /**
+   * @return the number of differences that can be read back from the spill file.
+   */
+  long spilledCount() {
+    return spilled;
+  }
+
+  /**
+   * @return the number of differences of each type, keyed by description, most frequent first.
+   */
+  Map<String, Long> countsByType() {
+    List<Integer> ids = new ArrayList<Integer>();
+    for (int id = 0; id < countsById.length; id++) {
+      if (countsById[id] > 0) {
+        ids.add(id);
+      }
+    }
+    Collections.sort(ids, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return Long.compare(countsById[b], countsById[a]);
+      }
+    });
+    Map<String, Long> ret = new LinkedHashMap<String, Long>();
+    for (Integer id : ids) {
+      ret.put(descriptionsById[id], countsById[id]);
+    }
+    return ret;
+  }
+
+  /**
+   * @param countsByType as returned by {@link #countsByType()}.
+   * @return the counts, as {@code " description xN;"} for each type.
+   */
+  static String formatCounts(Map<String, Long> countsByType) {
+    StringBuilder ret = new StringBuilder();
+    for (Map.Entry<String, Long> count : countsByType.entrySet()) {
+      ret.append(' ').append(count.getKey()).append(" x").append(count.getValue()).append(';');
+    }
+    return ret.toString();
+  }
+
+  /**
+   * Read back the spilled differences, in the order they were found.
+   */
+  void readSpilled(SpilledDifferenceVisitor visitor) throws IOException {
+    if (spilled == 0) {
+      return;
+    }
+    if (spillOutput != null) {
+      spillOutput.flush();
+    }
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(spillFile)))) {
+      for (long i = 0; i < spilled; i++) {
+        int id = in.readShort();
+        boolean recoverable = in.readBoolean();
+        visitor.visit(new SpilledDifference(id, descriptionsById[id], recoverable,
+            readString(in), readString(in), readString(in), readString(in)));
+      }
+    }
+    catch (EOFException eofe) {
+      throw new IOException("Spill file " + spillFile + " is truncated.", eofe);
+    }
+  }
+
+  @Override
+  public void close() {
+    closeQuietly();
+    if (spillFile != null && !spillFile.delete()) {
+      spillFile.deleteOnExit();
+    }
+    spillFile = null;
+  }
+
+  private void count(Difference difference) {
+    int id = difference.getId();
+    if (id >= countsById.length) {
+      countsById = Arrays.copyOf(countsById, id + 1);
+      descriptionsById = Arrays.copyOf(descriptionsById, id + 1);
+    }
+    countsById[id]++;
+    if (descriptionsById[id] == null) {
+      descriptionsById[id] = difference.getDescription();
+    }
+  }
+
+  private void spill(Difference difference) throws IOException {
+    if (spillOutput == null) {
+      spillFile = File.createTempFile("xmatch-differences-", ".bin");
+      spillOutput = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(spillFile), 64 * 1024));
+    }
+    NodeDetail control = difference.getControlNodeDetail();
+    NodeDetail test = difference.getTestNodeDetail();
+    spillOutput.writeShort(difference.getId());
+    spillOutput.writeBoolean(difference.isRecoverable());
+    writeString(spillOutput, control == null ? null : control.getXpathLocation());
+    writeString(spillOutput, control == null ? null : control.getValue());
+    writeString(spillOutput, test == null ? null : test.getXpathLocation());
+    writeString(spillOutput, test == null ? null : test.getValue());
+  }
+
+  /**
+   * Strings are written as a length and UTF-8 bytes, since {@link DataOutputStream#writeUTF}
+   * can't handle values of more than 64 KB.
+   */
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = value.getBytes(UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, UTF_8);
+  }
+
+  private void closeQuietly() {
+    if (spillOutput != null) {
+      try {
+        spillOutput.close();
+      }
+      catch (IOException ioe) {
+        log.log(Level.FINE, "Unable to close spill file " + spillFile, ioe);
+      }
+      spillOutput = null;
+    }
+  }
+}
@@ -0,0 +1,100 @@
+package org.ph0.xmatch;
+
+import java.util.regex.Pattern;
+
+/**
+ * Declarative rule for values that are expected to differ between documents, such as timestamps,
+ * UUIDs, or sequence numbers, and should therefore be ignored by an {@link XmlEquivalenceMatcher}.
+ *
+ * Rules only ever suppress differences between the <em>values</em> of attributes, text, and
+ * CDATA sections; the node itself still has to be present in both documents.
+ *
+ * @see XmlEquivalenceMatcher#ignoring(IgnoreRule...)
+ *
+ * @author phanley
+ */
+public final class IgnoreRule {
+  /**
+   * The conventional placeholder for expected values that may be anything.
+   */
+  public static final String IGNORE_PLACEHOLDER = "${ignore}";
+
+  enum Kind {
+    PATH, ATTRIBUTE, VALUE_PATTERN, PLACEHOLDER
+  }
+
+  private final Kind kind;
+  private final String argument;
+
+  private IgnoreRule(Kind kind, String argument) {
+    if (argument == null) {
+      throw new NullPointerException();
+    }
+    this.kind = kind;
+    this.argument = argument;
+  }
+
+  /**
+   * Ignore the values at a simple path of element local names, e.g. {@code /order/created} for
+   * the text of an element or {@code /order/item/@id} for an attribute. Paths starting with
+   * {@code //} match at any depth, e.g. {@code //@id} or {@code //item/created}. Namespace
+   * prefixes and positional predicates are ignored.
+   */
+  public static IgnoreRule valuesAt(String path) {
+    return new IgnoreRule(Kind.PATH, IgnoreRules.normalizePath(path));
+  }
+
+  /**
+   * Ignore the values of every attribute with the specified local name.
+   */
+  public static IgnoreRule attribute(String localName) {
+    return new IgnoreRule(Kind.ATTRIBUTE, localName);
+  }
+
+  /**
+   * Ignore differences between two values that both match a regular expression, e.g. two
+   * different UUIDs.
+   */
+  public static IgnoreRule valuesMatching(String regex) {
+    Pattern.compile(regex); // fail fast on invalid patterns
+    return new IgnoreRule(Kind.VALUE_PATTERN, regex);
+  }
+
+  /**
+   * Accept any test value where the expected value is exactly the specified placeholder.
+   */
+  public static IgnoreRule placeholder(String placeholder) {
+    return new IgnoreRule(Kind.PLACEHOLDER, placeholder);
+  }
+
+  /**
+   * Accept any test value where the expected value is {@value #IGNORE_PLACEHOLDER}.
+   */
+  public static IgnoreRule placeholder() {
+    return placeholder(IGNORE_PLACEHOLDER);
+  }
+
+  Kind getKind() {
+    return kind;
+  }
+
+  String getArgument() {
+    return argument;
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    return other instanceof IgnoreRule && ((IgnoreRule) other).kind == kind
+        && ((IgnoreRule) other).argument.equals(argument);
+  }
+
+  @Override
+  public int hashCode() {
+    return kind.hashCode() * 31 + argument.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return "IgnoreRule[" + kind + " " + argument + "]";
+  }
+}
@@ -0,0 +1,176 @@
+package org.ph0.xmatch;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.custommonkey.xmlunit.Difference;
+import org.custommonkey.xmlunit.NodeDetail;
+import org.w3c.dom.Node;
+
+/**
+ * A set of {@link IgnoreRule}s compiled into lookup structures once, when a matcher is built, so
+ * that checking a value during the comparison walk is a few hash lookups and at most one regular
+ * expression match, rather than a scan over the individual rules.
+ *
+ * @author phanley
+ */
+/* package-private */ final class IgnoreRules {
+  static final IgnoreRules NONE = compile(Collections.<IgnoreRule>emptySet());
+
+  private final Set<IgnoreRule> rules;
+  private final Set<String> exactPaths = new HashSet<String>();
+  private final List<String> pathSuffixes = new ArrayList<String>();
+  private final Set<String> attributeNames = new HashSet<String>();
+  private final Set<String> placeholders = new HashSet<String>();
+  private final Pattern valuePattern;
+
+  private IgnoreRules(Set<IgnoreRule> rules) {
+    this.rules = rules;
+    StringBuilder combinedPattern = new StringBuilder();
+    for (IgnoreRule rule : rules) {
+      String argument = rule.getArgument();
+      switch (rule.getKind()) {
+        case PATH:
+          if (argument.startsWith("//")) {
+            pathSuffixes.add(argument.substring(1));
+          }
+          else {
+            exactPaths.add(argument);
+          }
+          break;
+        case ATTRIBUTE:
+          attributeNames.add(argument);
+          break;
+        case VALUE_PATTERN:
+          combinedPattern.append(combinedPattern.length() == 0 ? "" : "|").append("(?:")
+              .append(argument).append(')');
+          break;
+        case PLACEHOLDER:
+          placeholders.add(argument);
+          break;
+      }
+    }
+    this.valuePattern =
+        combinedPattern.length() == 0 ? null : Pattern.compile(combinedPattern.toString());
+  }
+
+  static IgnoreRules compile(Collection<IgnoreRule> rules) {
+    return new IgnoreRules(Collections.unmodifiableSet(new HashSet<IgnoreRule>(rules)));
+  }
+
+  IgnoreRules with(Collection<IgnoreRule> additionalRules) {
+    Set<IgnoreRule> combined = new HashSet<IgnoreRule>(rules);
+    combined.addAll(additionalRules);
+    return compile(combined);
+  }
+
+  boolean isEmpty() {
+    return rules.isEmpty();
+  }
+
+  /**
+   * Placeholder rules depend on the expected value, so they can't be applied to each document
+   * independently.
+   */
+  boolean hasPlaceholders() {
+    return !placeholders.isEmpty();
+  }
+
+  /**
+   * Check whether a value in a single document should be masked, regardless of the value in the
+   * other document. Placeholder rules are not considered.
+   *
+   * @param path the normalized path of the value.
+   * @param attributeName the local name of the attribute, or {@code null} for element content.
+   * @param value the (already normalized) value.
+   */
+  boolean masks(String path, String attributeName, CharSequence value) {
+    return (attributeName != null && attributeNames.contains(attributeName))
+        || matchesPath(path) || (valuePattern != null && valuePattern.matcher(value).matches());
+  }
+
+  /**
+   * Check whether a difference between two values, reported by XMLUnit, should be ignored.
+   */
+  boolean ignores(Difference difference) {
+    NodeDetail control = difference.getControlNodeDetail();
+    NodeDetail test = difference.getTestNodeDetail();
+    if (control == null || test == null) {
+      return false;
+    }
+    String controlValue = trimmed(control.getValue());
+    String testValue = trimmed(test.getValue());
+    if (placeholders.contains(controlValue)) {
+      return true;
+    }
+
+    Node controlNode = control.getNode();
+    if (controlNode != null && controlNode.getNodeType() == Node.ATTRIBUTE_NODE
+        && attributeNames.contains(localName(controlNode))) {
+      return true;
+    }
+    if ((!exactPaths.isEmpty() || !pathSuffixes.isEmpty()) && control.getXpathLocation() != null
+        && matchesPath(normalizePath(control.getXpathLocation()))) {
+      return true;
+    }
+    return valuePattern != null && valuePattern.matcher(controlValue).matches()
+        && valuePattern.matcher(testValue).matches();
+  }
+
+  private boolean matchesPath(String path) {
+    if (exactPaths.contains(path)) {
+      return true;
+    }
+    for (String suffix : pathSuffixes) {
+      if (path.endsWith(suffix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String trimmed(String value) {
+    return value == null ? "" : value.trim();
+  }
+
+  private static String localName(Node node) {
+    return node.getLocalName() != null ? node.getLocalName() : node.getNodeName();
+  }
+
+  /**
+   * Normalize an XPath location (either user-supplied, or XMLUnit's) to a simple path of local
+   * names: positional predicates, namespace prefixes, and a trailing {@code text()} step are
+   * removed, e.g. {@code /ns:order[1]/item[2]/text()[1]} becomes {@code /order/item}.
+   */
+  static String normalizePath(String xpath) {
+    StringBuilder ret = new StringBuilder(xpath.length());
+    int stepStart = 0;
+    for (int i = 0; i < xpath.length(); i++) {
+      char c = xpath.charAt(i);
+      if (c == '[') {
+        int end = xpath.indexOf(']', i);
+        i = end < 0 ? xpath.length() : end;
+      }
+      else if (c == ':') {
+        // drop the prefix, keeping the '/' or '@' before it
+        ret.setLength(stepStart);
+      }
+      else {
+        ret.append(c);
+        if (c == '/' || c == '@') {
+          stepStart = ret.length();
+        }
+      }
+    }
+    int length = ret.length();
+    if (length >= 7 && ret.substring(length - 7).equals("/text()")) {
+      ret.setLength(length - 7);
+    }
+    return ret.toString();
+  }
+}
@@ -0,0 +1,349 @@
+package org.ph0.xmatch;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.hamcrest.Description;
+import org.hamcrest.TypeSafeDiagnosingMatcher;
+import org.ph0.xmatch.XmlEquivalenceMatcher.Setting;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.events.Event;
+import org.w3c.dom.events.EventListener;
+import org.w3c.dom.events.EventTarget;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Matcher for a DOM {@link Document} that is repeatedly modified and re-matched, e.g. in a
+ * property-based test that mutates one node of a large document at a time.
+ *
+ * Every element of both documents is given a fingerprint: a digest of its canonical form (see
+ * {@link CanonicalXmlWriter}) with the fingerprints of its child elements standing in for their
+ * content. The fingerprints of the last matched test document are kept, and after a change only
+ * the fingerprints of the changed elements and their ancestors are recomputed, so re-matching
+ * costs roughly the depth of the change rather than the size of the document.
+ *
+ * Changes are detected through DOM mutation events where the document supports them (as the JDK's
+ * DOM implementation does). Otherwise, changed nodes have to be reported with
+ * {@link #markChanged(Node)} before re-matching; if nothing was reported, the whole document is
+ * fingerprinted again.
+ *
+ * Only a failed match is described with a full comparison, by the {@link XmlEquivalenceMatcher}
+ * this matcher was created from. Instances keep state about the last matched document, so they
+ * must not be shared between threads.
+ *
+ * @see XmlEquivalenceMatcher#incrementally()
+ *
+ * @author phanley
+ */
+public final class IncrementalXmlMatcher extends TypeSafeDiagnosingMatcher<Document> {
+  private static final String[] MUTATION_EVENT_TYPES = {"DOMNodeInserted", "DOMNodeRemoved",
+      "DOMAttrModified", "DOMCharacterDataModified"};
+
+  private final XmlEquivalenceMatcher fullMatcher;
+  private final Set<Setting> settings;
+  private final IgnoreRules ignoreRules;
+  private final XmlMatcherValue expectedValue;
+
+  private Document expectedDocument;
+  private byte[] expectedFingerprint;
+
+  private Document testDocument;
+  private final Map<Node, byte[]> fingerprints = new IdentityHashMap<Node, byte[]>();
+  private boolean trackingMutations = false;
+  private boolean changesReported = false;
+  private int fingerprintsComputed = 0;
+
+  private final EventListener mutationListener = new EventListener() {
+    @Override
+    public void handleEvent(Event event) {
+      Node target = (Node) event.getTarget();
+      if ("DOMNodeRemoved".equals(event.getType())) {
+        forgetSubtree(target);
+      }
+      invalidate(target);
+    }
+  };
+
+  IncrementalXmlMatcher(XmlEquivalenceMatcher fullMatcher, XmlMatcherValue expectedValue,
+      Set<Setting> settings, IgnoreRules ignoreRules) {
+    this.fullMatcher = fullMatcher;
+    this.expectedValue = expectedValue;
+    this.settings = settings;
+    this.ignoreRules = ignoreRules;
+  }
+
+  /**
+   * Report a changed node of the test document (a node whose value, attributes, or children have
+   * changed), for documents that don't support mutation events.
+   */
+  public void markChanged(Node node) {
+    changesReported = true;
+    invalidate(node);
+  }
+
+  @Override
+  public void describeTo(Description description) {
+    fullMatcher.describeTo(description);
+  }
+
+  @Override
+  protected boolean matchesSafely(Document document, Description mismatchDescription) {
+    if (expectedFingerprint == null) {
+      expectedDocument = parseExpected();
+      expectedFingerprint =
+          documentFingerprint(expectedDocument, new IdentityHashMap<Node, byte[]>());
+    }
+
+    if (document != testDocument) {
+      track(document);
+    }
+    else if (!trackingMutations && !changesReported) {
+      fingerprints.clear();
+    }
+    changesReported = false;
+
+    boolean success =
+        MessageDigest.isEqual(expectedFingerprint, documentFingerprint(document, fingerprints));
+    if (!success && !(mismatchDescription instanceof Description.NullDescription)) {
+      String path = firstDifference(expectedDocument.getDocumentElement(),
+          document.getDocumentElement());
+      if (path != null) {
+        mismatchDescription.appendText("first differing subtree at " + path + "\n");
+      }
+      fullMatcher.describeMismatch(valueOf(document), mismatchDescription);
+    }
+    return success;
+  }
+
+  /**
+   * @return the number of element fingerprints computed for test documents so far.
+   */
+  int getFingerprintsComputed() {
+    return fingerprintsComputed;
+  }
+
+  private void track(Document document) {
+    if (testDocument instanceof EventTarget && trackingMutations) {
+      for (String type : MUTATION_EVENT_TYPES) {
+        ((EventTarget) testDocument).removeEventListener(type, mutationListener, false);
+      }
+    }
+    fingerprints.clear();
+    testDocument = document;
+    trackingMutations = false;
+    if (document instanceof EventTarget) {
+      try {
+        for (String type : MUTATION_EVENT_TYPES) {
+          ((EventTarget) document).addEventListener(type, mutationListener, false);
+        }
+        trackingMutations = true;
+      }
+      catch (RuntimeException e) {
+        // mutation events aren't supported after all, so rely on markChanged()
+      }
+    }
+  }
+
+  /**
+   * Drop the fingerprints of the nearest element containing a node, and all its ancestors.
+   */
+  private void invalidate(Node node) {
+    Node element = node instanceof Attr ? ((Attr) node).getOwnerElement() : node;
+    while (element != null && element.getNodeType() != Node.ELEMENT_NODE) {
+      element = element.getParentNode();
+    }
+    for (; element != null; element = element.getParentNode()) {
+      fingerprints.remove(element);
+    }
+  }
+
+  private void forgetSubtree(Node node) {
+    fingerprints.remove(node);
+    for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+      forgetSubtree(child);
+    }
+  }
+
+  private byte[] documentFingerprint(Document document, Map<Node, byte[]> cache) {
+    CanonicalComparison.DigestSink sink = new CanonicalComparison.DigestSink();
+    CanonicalXmlWriter writer = new CanonicalXmlWriter(settings, ignoreRules, sink);
+    writeContent(document, "", writer, sink, cache);
+    writer.endDocument();
+    return sink.digest();
+  }
+
+  private byte[] fingerprint(Element element, String parentPath, Map<Node, byte[]> cache) {
+    byte[] ret = cache.get(element);
+    if (ret != null) {
+      return ret;
+    }
+    if (cache == fingerprints) {
+      fingerprintsComputed++;
+    }
+
+    CanonicalComparison.DigestSink sink = new CanonicalComparison.DigestSink();
+    CanonicalXmlWriter writer =
+        new CanonicalXmlWriter(settings, ignoreRules, sink).withinPath(parentPath);
+    String localName = localNameOf(element);
+    writer.startElement(element.getNamespaceURI(), localName, element.getNodeName(),
+        attributesOf(element));
+    String path = ignoreRules.isEmpty() ? "" : parentPath + "/" + localName;
+    writeContent(element, path, writer, sink, cache);
+    writer.endElement(element.getNamespaceURI(), localName, element.getNodeName());
+
+    ret = sink.digest();
+    cache.put(element, ret);
+    return ret;
+  }
+
+  private void writeContent(Node parent, String path, CanonicalXmlWriter writer,
+      CanonicalComparison.DigestSink sink, Map<Node, byte[]> cache) {
+    for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+      switch (child.getNodeType()) {
+        case Node.ELEMENT_NODE:
+          writer.flushText();
+          sink.update(fingerprint((Element) child, path, cache));
+          break;
+        case Node.TEXT_NODE:
+          characters(writer, child.getNodeValue());
+          break;
+        case Node.CDATA_SECTION_NODE:
+          writer.startCDATA();
+          characters(writer, child.getNodeValue());
+          writer.endCDATA();
+          break;
+        case Node.COMMENT_NODE:
+          char[] comment = child.getNodeValue().toCharArray();
+          writer.comment(comment, 0, comment.length);
+          break;
+        case Node.PROCESSING_INSTRUCTION_NODE:
+          writer.processingInstruction(child.getNodeName(), child.getNodeValue());
+          break;
+        case Node.ENTITY_REFERENCE_NODE:
+          writeContent(child, path, writer, sink, cache);
+          break;
+        default:
+          // document types, etc. aren't part of the canonical form
+      }
+    }
+  }
+
+  private static void characters(CanonicalXmlWriter writer, String value) {
+    char[] chars = value.toCharArray();
+    writer.characters(chars, 0, chars.length);
+  }
+
+  /**
+   * Collect the attributes of an element as SAX would report them, i.e. without namespace
+   * declarations.
+   */
+  private static AttributesImpl attributesOf(Element element) {
+    AttributesImpl ret = new AttributesImpl();
+    NamedNodeMap attributes = element.getAttributes();
+    for (int i = 0; i < attributes.getLength(); i++) {
+      Node attribute = attributes.item(i);
+      if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attribute.getNamespaceURI())) {
+        continue;
+      }
+      String uri = attribute.getNamespaceURI();
+      ret.addAttribute(uri == null ? "" : uri, localNameOf(attribute), attribute.getNodeName(),
+          "CDATA", attribute.getNodeValue());
+    }
+    return ret;
+  }
+
+  private static String localNameOf(Node node) {
+    return node.getLocalName() != null ? node.getLocalName() : node.getNodeName();
+  }
+
+  /**
+   * Follow the differing fingerprints down from the root, as long as the structure is the same.
+   *
+   * @return the path of the deepest element known to differ, or {@code null} if the root elements
+   *         don't differ.
+   */
+  private String firstDifference(Element expected, Element test) {
+    Map<Node, byte[]> expectedFingerprints = new IdentityHashMap<Node, byte[]>();
+    if (expected == null || test == null || MessageDigest.isEqual(
+        fingerprint(expected, "", expectedFingerprints), fingerprint(test, "", fingerprints))) {
+      return null;
+    }
+    StringBuilder path = new StringBuilder("/").append(test.getNodeName());
+    String expectedPath = ignoreRules.isEmpty() ? "" : "/" + localNameOf(expected);
+    descend: while (true) {
+      List<Element> expectedChildren = childElements(expected);
+      List<Element> testChildren = childElements(test);
+      if (expectedChildren.size() != testChildren.size()) {
+        return path.toString();
+      }
+      for (int i = 0; i < testChildren.size(); i++) {
+        Element expectedChild = expectedChildren.get(i);
+        Element testChild = testChildren.get(i);
+        if (!MessageDigest.isEqual(
+            fingerprint(expectedChild, expectedPath, expectedFingerprints),
+            fingerprint(testChild, expectedPath, fingerprints))) {
+          path.append('/').append(testChild.getNodeName()).append('[').append(i + 1).append(']');
+          expectedPath =
+              ignoreRules.isEmpty() ? "" : expectedPath + "/" + localNameOf(expectedChild);
+          expected = expectedChild;
+          test = testChild;
+          continue descend;
+        }
+      }
+      // only the element's own content differs
+      return path.toString();
+    }
+  }
+
+  private static List<Element> childElements(Element element) {
+    List<Element> ret = new ArrayList<Element>();
+    for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+      if (child.getNodeType() == Node.ELEMENT_NODE) {
+        ret.add((Element) child);
+      }
+    }
+    return ret;
+  }
+
+  private Document parseExpected() {
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+    try {
+      return factory.newDocumentBuilder().parse(expectedValue.get());
+    }
+    catch (ParserConfigurationException | SAXException | IOException e) {
+      throw new RuntimeException("Exception occurred while parsing expected XML value.", e);
+    }
+  }
+
+  private static XmlMatcherValue valueOf(Document document) {
+    StringWriter sw = new StringWriter();
+    try {
+      TransformerFactory.newInstance().newTransformer().transform(new DOMSource(document),
+          new StreamResult(sw));
+    }
+    catch (TransformerException te) {
+      throw new RuntimeException("Unable to serialize test document due to an exception.", te);
+    }
+    return XmlMatchers.xmlText(sw.toString());
+  }
+}
@@ -0,0 +1,217 @@
+package org.ph0.xmatch;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+
+/**
+ * Marshals JAXB objects into {@link XmlMatcherValue}s.
+ *
+ * Creating a {@link JAXBContext} is expensive (it introspects every bound class), so contexts for
+ * single types are cached per class, and a batch of objects shares one context for all of its
+ * types. Contexts are thread-safe but {@link Marshaller}s aren't, so a batch is split into chunks,
+ * each marshalled by one task with its own marshaller and output buffer. The calling thread runs
+ * any chunks the executor hasn't started yet itself, rather than just waiting for them, so that
+ * marshalling from a task on the same (possibly saturated) executor can't deadlock.
+ *
+ * @author phanley
+ */
+/* package-private */ final class JaxbMarshalling {
+  /**
+   * Chunks per available processor, so that uneven chunks still balance out across threads.
+   */
+  private static final int CHUNKS_PER_PROCESSOR = 4;
+
+  private static final ClassValue<JAXBContext> CONTEXTS = new ClassValue<JAXBContext>() {
+    @Override
+    protected JAXBContext computeValue(Class<?> type) {
+      return newContext(type);
+    }
+  };
+
+  /**
+   * The contexts of single types, cached for as long as the types are loaded.
+   */
+  static final Contexts SHARED_CONTEXTS = new Contexts() {
+    @Override
+    public JAXBContext contextFor(Class<?> jaxbType) {
+      return CONTEXTS.get(jaxbType);
+    }
+  };
+
+  /**
+   * Where the contexts of single types come from.
+   */
+  interface Contexts {
+    JAXBContext contextFor(Class<?> jaxbType);
+  }
+
+  /**
+   * Contexts of single types, cached until they're {@link #clear() cleared}, for owners (like an
+   * {@link XmlMatcherRuntime}) that release them deterministically.
+   */
+  static final class OwnedContexts implements Contexts {
+    private final ConcurrentMap<Class<?>, JAXBContext> contexts =
+        new ConcurrentHashMap<Class<?>, JAXBContext>();
+
+    @Override
+    public JAXBContext contextFor(Class<?> jaxbType) {
+      JAXBContext ret = contexts.get(jaxbType);
+      if (ret == null) {
+        JAXBContext created = newContext(jaxbType);
+        ret = contexts.putIfAbsent(jaxbType, created);
+        if (ret == null) {
+          ret = created;
+        }
+      }
+      return ret;
+    }
+
+    int size() {
+      return contexts.size();
+    }
+
+    void clear() {
+      contexts.clear();
+    }
+  }
+
+  private JaxbMarshalling() {}
+
+  static JAXBContext contextFor(Class<?> jaxbType) {
+    return CONTEXTS.get(jaxbType);
+  }
+
+  static XmlMatcherValue marshal(Object obj, Class<?> jaxbType) {
+    return marshal(obj, jaxbType, newMarshaller(contextFor(jaxbType)), new StringWriter());
+  }
+
+  static List<XmlMatcherValue> marshalAll(Collection<?> objects, Executor executor) {
+    return marshalAll(objects, SHARED_CONTEXTS, executor);
+  }
+
+  /**
+   * Marshal a collection of objects (or {@link JAXBElement}s), in parallel, using one context for
+   * all of their types.
+   *
+   * @param contexts the source of the context, if all the objects have the same type.
+   * @return the values, in the iteration order of the collection.
+   */
+  static List<XmlMatcherValue> marshalAll(Collection<?> objects, Contexts contexts,
+      Executor executor) {
+    final Object[] items = objects.toArray();
+    if (items.length == 0) {
+      return Collections.emptyList();
+    }
+    Set<Class<?>> types = new LinkedHashSet<Class<?>>();
+    for (Object item : items) {
+      types.add(jaxbTypeOf(item));
+    }
+    final JAXBContext context = types.size() == 1 ? contexts.contextFor(types.iterator().next())
+        : newContext(types.toArray(new Class<?>[types.size()]));
+
+    final XmlMatcherValue[] values = new XmlMatcherValue[items.length];
+    int chunks = Math.min(items.length,
+        Runtime.getRuntime().availableProcessors() * CHUNKS_PER_PROCESSOR);
+    int chunkSize = (items.length + chunks - 1) / chunks;
+    List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>();
+    for (int start = 0; start < items.length; start += chunkSize) {
+      final int chunkStart = start;
+      final int chunkEnd = Math.min(items.length, start + chunkSize);
+      FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+        @Override
+        public Void call() {
+          Marshaller marshaller = newMarshaller(context);
+          StringWriter buffer = new StringWriter();
+          for (int i = chunkStart; i < chunkEnd; i++) {
+            values[i] = marshal(items[i], jaxbTypeOf(items[i]), marshaller, buffer);
+          }
+          return null;
+        }
+      });
+      tasks.add(task);
+      executor.execute(task);
+    }
+
+    try {
+      for (FutureTask<Void> task : tasks) {
+        // does nothing if the executor has already started (or finished) the chunk
+        task.run();
+        task.get();
+      }
+    }
+    catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while marshalling JAXB objects.", ie);
+    }
+    catch (ExecutionException ee) {
+      for (FutureTask<Void> task : tasks) {
+        task.cancel(true);
+      }
+      if (ee.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) ee.getCause();
+      }
+      throw new IllegalStateException("Error occurred while marshalling JAXB objects.",
+          ee.getCause());
+    }
+    return Arrays.asList(values);
+  }
+
+  private static Class<?> jaxbTypeOf(Object obj) {
+    return obj instanceof JAXBElement ? ((JAXBElement<?>) obj).getDeclaredType() : obj.getClass();
+  }
+
+  /**
+   * @param buffer a reusable output buffer, which is cleared before marshalling.
+   */
+  private static XmlMatcherValue marshal(Object obj, Class<?> jaxbType, Marshaller marshaller,
+      StringWriter buffer) {
+    buffer.getBuffer().setLength(0);
+    try {
+      marshaller.marshal(obj, buffer);
+    }
+    catch (JAXBException je) {
+      throw new IllegalStateException(
+          "Error occured during marshalling of " + jaxbType + " object for matching.", je);
+    }
+    String xmlStr = buffer.toString();
+    return new XmlMatcherValue(xmlStr, "JAXB object of type " + jaxbType, xmlStr);
+  }
+
+  private static Marshaller newMarshaller(JAXBContext context) {
+    try {
+      Marshaller marshaller = context.createMarshaller();
+      marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
+      return marshaller;
+    }
+    catch (JAXBException je) {
+      throw new IllegalStateException("Unable to create JAXB marshaller.", je);
+    }
+  }
+
+  private static JAXBContext newContext(Class<?>... jaxbTypes) {
+    try {
+      return JAXBContext.newInstance(jaxbTypes);
+    }
+    catch (JAXBException je) {
+      throw new IllegalStateException(
+          "Unable to create JAXB context for " + Arrays.toString(jaxbTypes) + ".", je);
+    }
+  }
+}
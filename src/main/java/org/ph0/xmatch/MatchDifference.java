@@ -0,0 +1,141 @@
+package org.ph0.xmatch;
+
+import java.util.List;
+
+import org.custommonkey.xmlunit.Difference;
+import org.custommonkey.xmlunit.DifferenceConstants;
+import org.custommonkey.xmlunit.NodeDetail;
+
+/**
+ * A single difference found by an {@link XmlEquivalenceMatcher}, as part of a
+ * {@link MatchResult}, for tools that want to process differences rather than parse them out of
+ * a mismatch description.
+ *
+ * Differences found by comparing documents node by node carry XMLUnit's
+ * {@link DifferenceConstants difference type}, and the XPath locations and values of the control
+ * (expected) and test nodes. Differences found by comparing canonical forms are groups of changed
+ * canonical lines, of type {@link #CANONICAL_LINES}, with the removed lines as the control value
+ * and the added lines as the test value, and no XPath locations.
+ *
+ * @author phanley
+ */
+public final class MatchDifference {
+  /**
+   * Difference type of a group of changed lines between canonical forms.
+   */
+  public static final int CANONICAL_LINES = -1;
+
+  private final int id;
+  private final String description;
+  private final boolean recoverable;
+  private final String controlXPath;
+  private final String controlValue;
+  private final String testXPath;
+  private final String testValue;
+
+  /**
+   * Snippets of the markup surrounding the control and test nodes, captured (while the documents
+   * were still available) only for the differences a {@link MismatchReporter} lists with context.
+   */
+  String controlContext;
+  String testContext;
+
+  MatchDifference(int id, String description, boolean recoverable, String controlXPath,
+      String controlValue, String testXPath, String testValue) {
+    this.id = id;
+    this.description = description;
+    this.recoverable = recoverable;
+    this.controlXPath = controlXPath;
+    this.controlValue = controlValue;
+    this.testXPath = testXPath;
+    this.testValue = testValue;
+  }
+
+  static MatchDifference of(Difference difference) {
+    NodeDetail control = difference.getControlNodeDetail();
+    NodeDetail test = difference.getTestNodeDetail();
+    return new MatchDifference(difference.getId(), difference.getDescription(),
+        difference.isRecoverable(), control != null ? control.getXpathLocation() : null,
+        control != null ? control.getValue() : null,
+        test != null ? test.getXpathLocation() : null, test != null ? test.getValue() : null);
+  }
+
+  /**
+   * @param edits the edits of a single group of changed canonical lines.
+   */
+  static MatchDifference ofCanonicalLines(List<MyersDiff.Edit> edits) {
+    StringBuilder removed = null;
+    StringBuilder added = null;
+    for (MyersDiff.Edit edit : edits) {
+      if (edit.operation == MyersDiff.Operation.DELETE) {
+        removed = appendLine(removed, edit.line);
+      }
+      else if (edit.operation == MyersDiff.Operation.INSERT) {
+        added = appendLine(added, edit.line);
+      }
+    }
+    return new MatchDifference(CANONICAL_LINES, "canonical lines", false, null,
+        removed != null ? removed.toString() : null, null,
+        added != null ? added.toString() : null);
+  }
+
+  private static StringBuilder appendLine(StringBuilder lines, String line) {
+    return lines == null ? new StringBuilder(line) : lines.append('\n').append(line);
+  }
+
+  /**
+   * @return the XMLUnit {@link DifferenceConstants difference type} id, or
+   *         {@link #CANONICAL_LINES}.
+   */
+  public int getId() {
+    return id;
+  }
+
+  /**
+   * @return the description of the difference type, e.g. {@code "text value"}.
+   */
+  public String getDescription() {
+    return description;
+  }
+
+  /**
+   * @return whether the documents are still similar despite this difference.
+   */
+  public boolean isRecoverable() {
+    return recoverable;
+  }
+
+  /**
+   * @return the XPath location of the control node, or {@code null} if there's none.
+   */
+  public String getControlXPath() {
+    return controlXPath;
+  }
+
+  /**
+   * @return the compared value of the control node, or the removed canonical lines.
+   */
+  public String getControlValue() {
+    return controlValue;
+  }
+
+  /**
+   * @return the XPath location of the test node, or {@code null} if there's none.
+   */
+  public String getTestXPath() {
+    return testXPath;
+  }
+
+  /**
+   * @return the compared value of the test node, or the added canonical lines.
+   */
+  public String getTestValue() {
+    return testValue;
+  }
+
+  @Override
+  public String toString() {
+    return description + ": expected '" + controlValue + "' at " + controlXPath + " but was '"
+        + testValue + "' at " + testXPath;
+  }
+}
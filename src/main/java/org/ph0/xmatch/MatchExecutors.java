@@ -0,0 +1,64 @@
+package org.ph0.xmatch;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Source of the default {@link ExecutorService} for asynchronous matching.
+ *
+ * Matching is mostly spent waiting on I/O (fetching documents) or on the XMLUnit configuration
+ * lock, so on JDK 21+ a virtual thread per task is the natural fit. We still compile against old
+ * JDKs, so the virtual thread executor is looked up reflectively, falling back to a cached pool of
+ * daemon threads that won't keep a finished test JVM alive.
+ *
+ * @author phanley
+ */
+/* package-private */ final class MatchExecutors {
+  private static final Logger log = Logger.getLogger(MatchExecutors.class.getName());
+
+  private MatchExecutors() {}
+
+  /**
+   * Initialization-on-demand holder, so that no threads are created unless asynchronous matching
+   * is actually used.
+   */
+  private static final class DefaultExecutorHolder {
+    static final ExecutorService DEFAULT_EXECUTOR = createDefaultExecutor();
+  }
+
+  static ExecutorService defaultExecutor() {
+    return DefaultExecutorHolder.DEFAULT_EXECUTOR;
+  }
+
+  private static ExecutorService createDefaultExecutor() {
+    try {
+      Method virtualExecutorFactory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) virtualExecutorFactory.invoke(null);
+    }
+    catch (NoSuchMethodException nsme) {
+      // pre-JDK 21, fall through to platform threads
+    }
+    catch (ReflectiveOperationException | RuntimeException e) {
+      log.log(Level.FINE, "Unable to create virtual thread executor, using platform threads.", e);
+    }
+    return Executors.newCachedThreadPool(daemonThreadFactory("xmatch-async"));
+  }
+
+  static ThreadFactory daemonThreadFactory(final String namePrefix) {
+    return new ThreadFactory() {
+      private final AtomicInteger threadCount = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, namePrefix + "-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+}
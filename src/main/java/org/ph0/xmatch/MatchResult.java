@@ -0,0 +1,107 @@
+package org.ph0.xmatch;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.hamcrest.Description;
+import org.hamcrest.SelfDescribing;
+import org.hamcrest.StringDescription;
+
+/**
+ * Outcome of a single comparison performed by an {@link XmlEquivalenceMatcher}, for callers that
+ * want to inspect or collect results rather than immediately failing an assertion.
+ *
+ * A mismatch lists its {@link #getDifferences() differences} as {@link MatchDifference}s, which
+ * tools can process directly, while its {@link #getMismatchDescription() description} is only
+ * rendered (by the matcher's {@link MismatchReporter}) when it's first asked for.
+ *
+ * @author phanley
+ */
+public class MatchResult implements SelfDescribing {
+  private final XmlMatcherValue testValue;
+  private final boolean matched;
+  private final MismatchReporter.Mismatch mismatch;
+  private final long elapsedNanos;
+  private String mismatchDescription;
+
+  /**
+   * @param mismatch the captured mismatch, or {@code null} if the test value matched.
+   */
+  MatchResult(XmlMatcherValue testValue, MismatchReporter.Mismatch mismatch, long elapsedNanos) {
+    this.testValue = testValue;
+    this.matched = mismatch == null;
+    this.mismatch = mismatch;
+    this.elapsedNanos = elapsedNanos;
+  }
+
+  /**
+   * @return the value that was compared against the matcher's expected value.
+   */
+  public XmlMatcherValue getTestValue() {
+    return testValue;
+  }
+
+  /**
+   * @return whether the test value matched.
+   */
+  public boolean matched() {
+    return matched;
+  }
+
+  /**
+   * @return the description of why the test value didn't match, or {@code null} if it did.
+   */
+  public synchronized String getMismatchDescription() {
+    if (mismatchDescription == null && mismatch != null) {
+      mismatchDescription = StringDescription.toString(mismatch);
+    }
+    return mismatchDescription;
+  }
+
+  /**
+   * @return the differences found, in document order, or an empty list if the test value
+   *         matched. Differences spilled to disk during the comparison aren't included.
+   */
+  public List<MatchDifference> getDifferences() {
+    return mismatch != null ? mismatch.differences : Collections.<MatchDifference>emptyList();
+  }
+
+  /**
+   * @return the total number of differences found, including any that aren't
+   *         {@link #getDifferences() listed}, or -1 if the comparison couldn't count them.
+   */
+  public long getDifferenceCount() {
+    return mismatch != null ? mismatch.differenceCount : 0;
+  }
+
+  /**
+   * @param unit
+   * @return the time taken by the comparison, including parsing but neither fetching the values
+   *         nor rendering the mismatch description.
+   */
+  public long getElapsedTime(TimeUnit unit) {
+    return unit.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+  }
+
+  @Override
+  public void describeTo(Description description) {
+    if (matched) {
+      description.appendText("matched ").appendText(describeSource());
+    }
+    else {
+      description.appendText(getMismatchDescription());
+    }
+  }
+
+  private String describeSource() {
+    String source = testValue.getSourceDescription();
+    return source != null ? source : "XML value";
+  }
+
+  @Override
+  public String toString() {
+    return (matched ? "matched " : "mismatched ") + describeSource() + " in "
+        + getElapsedTime(TimeUnit.MILLISECONDS) + "ms";
+  }
+}
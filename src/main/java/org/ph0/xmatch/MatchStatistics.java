@@ -0,0 +1,547 @@
+package org.ph0.xmatch;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Opt-in aggregate statistics of XML matching across a test run: how many comparisons ran and how
+ * long they took, how much XML was parsed or loaded, how often threads waited on the
+ * {@link XMLUnitContext} lock, and which expected values (fixtures) were the most expensive to
+ * match against.
+ *
+ * Collection is disabled by default, costing a single volatile read per recording site. It's
+ * enabled either {@link #enable() programmatically}, or by setting the system property
+ * {@value #STATISTICS_PROPERTY} to {@code text} or {@code json}, in which case the statistics are
+ * also written in that format when the JVM shuts down: to standard error, or to the file named by
+ * {@value #STATISTICS_FILE_PROPERTY}.
+ *
+ * Counters are lock-free, and latencies are recorded into a fixed set of log-linear buckets (like
+ * an HdrHistogram with a precision of one in eight), so recording never allocates.
+ *
+ * @author phanley
+ */
+public final class MatchStatistics {
+  private static final Logger log = Logger.getLogger(MatchStatistics.class.getName());
+
+  public static final String STATISTICS_PROPERTY = "xmatch.statistics";
+  public static final String STATISTICS_FILE_PROPERTY = "xmatch.statistics.file";
+
+  /**
+   * Fixtures beyond this many are aggregated together, so that generated expected values can't
+   * grow the statistics indefinitely.
+   */
+  static final int MAX_FIXTURES = 1024;
+  static final String OTHER_FIXTURES = "[other fixtures]";
+
+  private static final int REPORTED_FIXTURES = 10;
+  private static final int FIXTURE_SNIPPET_CHARS = 40;
+
+  private static final MatchStatistics INSTANCE = new MatchStatistics();
+  private static volatile boolean enabled = false;
+  private static final ThreadLocal<Boolean> SUPPRESSED = new ThreadLocal<Boolean>();
+
+  static {
+    String format = System.getProperty(STATISTICS_PROPERTY);
+    if (format != null) {
+      enable();
+      Runtime.getRuntime().addShutdownHook(
+          new Thread(new ShutdownReport(format, System.getProperty(STATISTICS_FILE_PROPERTY)),
+              "xmatch-statistics"));
+    }
+  }
+
+  private final AtomicLong comparisons = new AtomicLong();
+  private final AtomicLong canonicalComparisons = new AtomicLong();
+  private final AtomicLong mismatches = new AtomicLong();
+  private final LatencyHistogram latencies = new LatencyHistogram();
+  private final AtomicLong documentsParsed = new AtomicLong();
+  private final AtomicLong documentsReused = new AtomicLong();
+  private final AtomicLong bytesParsed = new AtomicLong();
+  private final AtomicLong documentsLoaded = new AtomicLong();
+  private final AtomicLong bytesLoaded = new AtomicLong();
+  private final AtomicLong objectsMarshalled = new AtomicLong();
+  private final AtomicLong marshallingNanos = new AtomicLong();
+  private final AtomicLong lockAcquisitions = new AtomicLong();
+  private final AtomicLong lockWaits = new AtomicLong();
+  private final AtomicLong lockWaitNanos = new AtomicLong();
+  private final ConcurrentMap<String, FixtureStatistics> fixtures =
+      new ConcurrentHashMap<String, FixtureStatistics>();
+
+  private MatchStatistics() {}
+
+  /**
+   * Start collecting statistics (if not already collecting).
+   *
+   * @return the collector.
+   */
+  public static MatchStatistics enable() {
+    enabled = true;
+    return INSTANCE;
+  }
+
+  /**
+   * Stop collecting statistics. Those already collected are kept until {@link #reset()}.
+   */
+  public static void disable() {
+    enabled = false;
+  }
+
+  /**
+   * @return the collector, or {@code null} if statistics aren't being collected.
+   */
+  public static MatchStatistics current() {
+    return enabled && SUPPRESSED.get() == null ? INSTANCE : null;
+  }
+
+  /**
+   * Stop or resume collecting the statistics of the calling thread's matching, for work that
+   * isn't part of the run, like warming up.
+   *
+   * @return whether collection was suppressed before.
+   */
+  static boolean suppressOnCurrentThread(boolean suppress) {
+    boolean wasSuppressed = SUPPRESSED.get() != null;
+    if (suppress) {
+      SUPPRESSED.set(Boolean.TRUE);
+    }
+    else {
+      SUPPRESSED.remove();
+    }
+    return wasSuppressed;
+  }
+
+  /**
+   * Discard the statistics collected so far.
+   */
+  public void reset() {
+    comparisons.set(0);
+    canonicalComparisons.set(0);
+    mismatches.set(0);
+    latencies.reset();
+    documentsParsed.set(0);
+    documentsReused.set(0);
+    bytesParsed.set(0);
+    documentsLoaded.set(0);
+    bytesLoaded.set(0);
+    objectsMarshalled.set(0);
+    marshallingNanos.set(0);
+    lockAcquisitions.set(0);
+    lockWaits.set(0);
+    lockWaitNanos.set(0);
+    fixtures.clear();
+  }
+
+  /*
+   * Recording, by the matchers and values
+   */
+
+  void recordComparison(XmlMatcherValue expectedValue, boolean canonical, boolean matched,
+      long elapsedNanos) {
+    comparisons.incrementAndGet();
+    if (canonical) {
+      canonicalComparisons.incrementAndGet();
+    }
+    if (!matched) {
+      mismatches.incrementAndGet();
+    }
+    latencies.record(elapsedNanos);
+    fixtureStatistics(expectedValue).record(elapsedNanos);
+  }
+
+  /**
+   * @param value a value that was parsed, or whose memoized document was reused.
+   */
+  void recordParse(XmlMatcherValue value, boolean reused) {
+    if (reused) {
+      documentsReused.incrementAndGet();
+      return;
+    }
+    documentsParsed.incrementAndGet();
+    long size = value.getSizeHint();
+    if (size > 0) {
+      bytesParsed.addAndGet(size);
+    }
+  }
+
+  void recordLoad(long bytes) {
+    documentsLoaded.incrementAndGet();
+    if (bytes > 0) {
+      bytesLoaded.addAndGet(bytes);
+    }
+  }
+
+  void recordMarshalling(int objects, long elapsedNanos) {
+    objectsMarshalled.addAndGet(objects);
+    marshallingNanos.addAndGet(elapsedNanos);
+  }
+
+  /**
+   * @param waitNanos how long the lock was waited for, or {@code 0} if it was free.
+   */
+  void recordLockAcquisition(long waitNanos) {
+    lockAcquisitions.incrementAndGet();
+    if (waitNanos > 0) {
+      lockWaits.incrementAndGet();
+      lockWaitNanos.addAndGet(waitNanos);
+    }
+  }
+
+  private FixtureStatistics fixtureStatistics(XmlMatcherValue expectedValue) {
+    String fixture = fixtureOf(expectedValue);
+    FixtureStatistics ret = fixtures.get(fixture);
+    if (ret == null) {
+      if (fixtures.size() >= MAX_FIXTURES) {
+        fixture = OTHER_FIXTURES;
+      }
+      FixtureStatistics created = new FixtureStatistics(fixture);
+      ret = fixtures.putIfAbsent(fixture, created);
+      if (ret == null) {
+        ret = created;
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * @return the description of the value, along with a hash and the start of its content if it's
+   *         in memory, since e.g. every {@link XmlMatchers#xmlText(CharSequence) XML text} has the
+   *         same description.
+   */
+  static String fixtureOf(XmlMatcherValue value) {
+    String description = value.getSourceDescription();
+    if (description == null) {
+      description = "[undescribed value]";
+    }
+    InputSourceSupplier supplier = value.getInputSourceSupplier();
+    if (supplier instanceof XmlMatcherValue.XmlTextSupplier) {
+      // strings cache their hash codes, so this only scans the text once
+      String text = supplier.toString();
+      return description + " #" + Integer.toHexString(text.hashCode()) + " " + snippetOf(text);
+    }
+    if (supplier instanceof XmlBuffer) {
+      XmlBuffer buffer = (XmlBuffer) supplier;
+      return description + " #" + Integer.toHexString(buffer.contentHash()) + " ("
+          + buffer.size() + " bytes)";
+    }
+    return description;
+  }
+
+  private static String snippetOf(String text) {
+    StringBuilder ret = new StringBuilder("\"");
+    boolean pendingSpace = false;
+    for (int i = 0; i < text.length() && ret.length() <= FIXTURE_SNIPPET_CHARS; i++) {
+      char c = text.charAt(i);
+      if (Character.isWhitespace(c)) {
+        pendingSpace = ret.length() > 1;
+      }
+      else {
+        if (pendingSpace) {
+          ret.append(' ');
+          pendingSpace = false;
+        }
+        ret.append(c);
+      }
+    }
+    if (ret.length() > FIXTURE_SNIPPET_CHARS) {
+      ret.setLength(FIXTURE_SNIPPET_CHARS);
+      ret.append("...");
+    }
+    return ret.append('"').toString();
+  }
+
+  /*
+   * Reporting
+   */
+
+  public long getComparisonCount() {
+    return comparisons.get();
+  }
+
+  public long getMismatchCount() {
+    return mismatches.get();
+  }
+
+  public long getBytesParsed() {
+    return bytesParsed.get();
+  }
+
+  public long getLockWaitCount() {
+    return lockWaits.get();
+  }
+
+  /**
+   * @param percentile between 0 and 100.
+   * @return the comparison latency at the percentile (to within an eighth), or {@code 0} if no
+   *         comparisons were recorded.
+   */
+  public long getLatencyNanosAtPercentile(double percentile) {
+    return latencies.valueAtPercentile(percentile);
+  }
+
+  /**
+   * @return the fixtures that took the longest to match against in total, most expensive first.
+   */
+  List<FixtureStatistics> mostExpensiveFixtures(int count) {
+    List<FixtureStatistics> ret = new ArrayList<FixtureStatistics>(fixtures.values());
+    // sorted by a snapshot of the totals, since other threads may still be recording
+    final Map<FixtureStatistics, Long> totals =
+        new IdentityHashMap<FixtureStatistics, Long>(ret.size() * 2);
+    for (FixtureStatistics fixture : ret) {
+      totals.put(fixture, fixture.totalNanos.get());
+    }
+    Collections.sort(ret, new Comparator<FixtureStatistics>() {
+      @Override
+      public int compare(FixtureStatistics a, FixtureStatistics b) {
+        return Long.compare(totals.get(b), totals.get(a));
+      }
+    });
+    return ret.size() > count ? ret.subList(0, count) : ret;
+  }
+
+  /**
+   * @return a human-readable report of the statistics.
+   */
+  public String toText() {
+    StringBuilder ret = new StringBuilder("XML matching statistics:\n");
+    ret.append("  comparisons: ").append(comparisons.get()).append(" (")
+        .append(canonicalComparisons.get()).append(" canonical, ").append(mismatches.get())
+        .append(" mismatched)\n");
+    ret.append("  comparison time: total ").append(millis(latencies.totalNanos()))
+        .append(" ms, p50 ").append(millis(latencies.valueAtPercentile(50)))
+        .append(" ms, p99 ").append(millis(latencies.valueAtPercentile(99)))
+        .append(" ms, max ").append(millis(latencies.maxNanos())).append(" ms\n");
+    ret.append("  documents parsed: ").append(documentsParsed.get()).append(" (")
+        .append(bytesParsed.get()).append(" bytes), reused: ").append(documentsReused.get())
+        .append('\n');
+    ret.append("  documents loaded: ").append(documentsLoaded.get()).append(" (")
+        .append(bytesLoaded.get()).append(" bytes), JAXB objects marshalled: ")
+        .append(objectsMarshalled.get()).append(" (").append(millis(marshallingNanos.get()))
+        .append(" ms)\n");
+    ret.append("  XMLUnit lock: ").append(lockAcquisitions.get()).append(" acquisitions, ")
+        .append(lockWaits.get()).append(" waited (").append(millis(lockWaitNanos.get()))
+        .append(" ms)\n");
+    ret.append("  most expensive fixtures:\n");
+    for (FixtureStatistics fixture : mostExpensiveFixtures(REPORTED_FIXTURES)) {
+      ret.append("    ").append(millis(fixture.totalNanos.get())).append(" ms in ")
+          .append(fixture.comparisons.get()).append(" comparison(s), max ")
+          .append(millis(fixture.maxNanos.get())).append(" ms: ").append(fixture.description)
+          .append('\n');
+    }
+    return ret.toString();
+  }
+
+  /**
+   * @return the statistics as a JSON object, with times in nanoseconds.
+   */
+  public String toJson() {
+    StringBuilder ret = new StringBuilder("{");
+    ret.append("\"comparisons\":").append(comparisons.get());
+    ret.append(",\"canonicalComparisons\":").append(canonicalComparisons.get());
+    ret.append(",\"mismatches\":").append(mismatches.get());
+    ret.append(",\"comparisonNanos\":{\"total\":").append(latencies.totalNanos())
+        .append(",\"p50\":").append(latencies.valueAtPercentile(50))
+        .append(",\"p90\":").append(latencies.valueAtPercentile(90))
+        .append(",\"p99\":").append(latencies.valueAtPercentile(99))
+        .append(",\"max\":").append(latencies.maxNanos()).append('}');
+    ret.append(",\"documentsParsed\":").append(documentsParsed.get());
+    ret.append(",\"documentsReused\":").append(documentsReused.get());
+    ret.append(",\"bytesParsed\":").append(bytesParsed.get());
+    ret.append(",\"documentsLoaded\":").append(documentsLoaded.get());
+    ret.append(",\"bytesLoaded\":").append(bytesLoaded.get());
+    ret.append(",\"objectsMarshalled\":").append(objectsMarshalled.get());
+    ret.append(",\"marshallingNanos\":").append(marshallingNanos.get());
+    ret.append(",\"lockAcquisitions\":").append(lockAcquisitions.get());
+    ret.append(",\"lockWaits\":").append(lockWaits.get());
+    ret.append(",\"lockWaitNanos\":").append(lockWaitNanos.get());
+    ret.append(",\"fixtures\":[");
+    String separator = "";
+    for (FixtureStatistics fixture : mostExpensiveFixtures(REPORTED_FIXTURES)) {
+      ret.append(separator).append("{\"description\":");
+      appendJsonString(ret, fixture.description);
+      ret.append(",\"comparisons\":").append(fixture.comparisons.get())
+          .append(",\"totalNanos\":").append(fixture.totalNanos.get())
+          .append(",\"maxNanos\":").append(fixture.maxNanos.get()).append('}');
+      separator = ",";
+    }
+    return ret.append("]}").toString();
+  }
+
+  @Override
+  public String toString() {
+    return toText();
+  }
+
+  private static String millis(long nanos) {
+    return String.format("%.3f", nanos / 1e6);
+  }
+
+  private static void appendJsonString(StringBuilder out, String value) {
+    out.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        out.append('\\').append(c);
+      }
+      else if (c < 0x20) {
+        out.append(String.format("\\u%04x", (int) c));
+      }
+      else {
+        out.append(c);
+      }
+    }
+    out.append('"');
+  }
+
+  /**
+   * Time spent matching against one expected value.
+   */
+  static final class FixtureStatistics {
+    final String description;
+    final AtomicLong comparisons = new AtomicLong();
+    final AtomicLong totalNanos = new AtomicLong();
+    final AtomicLong maxNanos = new AtomicLong();
+
+    FixtureStatistics(String description) {
+      this.description = description;
+    }
+
+    void record(long elapsedNanos) {
+      comparisons.incrementAndGet();
+      totalNanos.addAndGet(elapsedNanos);
+      updateMax(maxNanos, elapsedNanos);
+    }
+  }
+
+  private static void updateMax(AtomicLong max, long value) {
+    long current;
+    while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+      // retry
+    }
+  }
+
+  /**
+   * Histogram of latencies in log-linear buckets: each power of two is split into
+   * {@value #SUB_BUCKETS} linear sub-buckets, so every value is recorded to within an eighth of
+   * itself, using a fixed array covering the whole range of {@code long}.
+   */
+  static final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long nanos) {
+      if (nanos < 0) {
+        nanos = 0;
+      }
+      counts.incrementAndGet(bucketOf(nanos));
+      count.incrementAndGet();
+      total.addAndGet(nanos);
+      updateMax(max, nanos);
+    }
+
+    long totalNanos() {
+      return total.get();
+    }
+
+    long maxNanos() {
+      return max.get();
+    }
+
+    long valueAtPercentile(double percentile) {
+      long recorded = count.get();
+      if (recorded == 0) {
+        return 0;
+      }
+      long target = Math.max(1, (long) Math.ceil(percentile / 100 * recorded));
+      long cumulative = 0;
+      for (int bucket = 0; bucket < BUCKETS; bucket++) {
+        cumulative += counts.get(bucket);
+        if (cumulative >= target) {
+          return Math.min(highestValueIn(bucket), max.get());
+        }
+      }
+      return max.get();
+    }
+
+    void reset() {
+      for (int bucket = 0; bucket < BUCKETS; bucket++) {
+        counts.set(bucket, 0);
+      }
+      count.set(0);
+      total.set(0);
+      max.set(0);
+    }
+
+    static int bucketOf(long value) {
+      if (value < SUB_BUCKETS) {
+        return (int) value;
+      }
+      int exponent = 63 - Long.numberOfLeadingZeros(value);
+      int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+      return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long highestValueIn(int bucket) {
+      if (bucket < SUB_BUCKETS) {
+        return bucket;
+      }
+      int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+      long width = 1L << (exponent - SUB_BUCKET_BITS);
+      long lowest = (SUB_BUCKETS + bucket % SUB_BUCKETS) * width;
+      return lowest + width - 1;
+    }
+  }
+
+  /**
+   * Writes the statistics when the JVM shuts down.
+   */
+  private static final class ShutdownReport implements Runnable {
+    private final String format;
+    private final String file;
+
+    ShutdownReport(String format, String file) {
+      this.format = format;
+      this.file = file;
+    }
+
+    @Override
+    public void run() {
+      String report = "json".equalsIgnoreCase(format) ? INSTANCE.toJson() : INSTANCE.toText();
+      if (file == null) {
+        PrintStream err = System.err;
+        err.println(report);
+        err.flush();
+        return;
+      }
+      try (Writer out =
+          new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8"))) {
+        out.write(report);
+        out.write('\n');
+      }
+      catch (IOException ioe) {
+        log.log(Level.WARNING, "Unable to write XML matching statistics to " + file, ioe);
+      }
+    }
+  }
+}
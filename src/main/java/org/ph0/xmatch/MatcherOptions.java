@@ -0,0 +1,80 @@
+package org.ph0.xmatch;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.ph0.xmatch.XmlEquivalenceMatcher.DifferenceTreatment;
+
+/**
+ * Immutable holder for the configuration of an {@link XmlEquivalenceMatcher} beyond its
+ * {@link XmlEquivalenceMatcher.Setting Setting}s, so that the matcher's fluent copy methods don't
+ * each have to pass every option along.
+ *
+ * @author phanley
+ */
+/* package-private */ final class MatcherOptions {
+  /**
+   * Threshold disabling canonical comparison entirely.
+   */
+  static final long NEVER = Long.MAX_VALUE;
+
+  /**
+   * Limit keeping every difference in memory, i.e. in a
+   * {@link org.custommonkey.xmlunit.DetailedDiff DetailedDiff}.
+   */
+  static final int UNLIMITED = Integer.MAX_VALUE;
+
+  private static final MatcherOptions DEFAULT_OPTIONS = new MatcherOptions(
+      MismatchReporter.defaultReporter(), Collections.<Integer, DifferenceTreatment>emptyMap(),
+      NEVER, IgnoreRules.NONE, UNLIMITED);
+
+  final MismatchReporter reporter;
+  final Map<Integer, DifferenceTreatment> treatmentOverrides;
+  final long canonicalComparisonThreshold;
+  final IgnoreRules ignoreRules;
+  final int maxDifferencesInMemory;
+
+  private MatcherOptions(MismatchReporter reporter,
+      Map<Integer, DifferenceTreatment> treatmentOverrides, long canonicalComparisonThreshold,
+      IgnoreRules ignoreRules, int maxDifferencesInMemory) {
+    this.reporter = reporter;
+    this.treatmentOverrides = treatmentOverrides;
+    this.canonicalComparisonThreshold = canonicalComparisonThreshold;
+    this.ignoreRules = ignoreRules;
+    this.maxDifferencesInMemory = maxDifferencesInMemory;
+  }
+
+  static MatcherOptions defaultOptions() {
+    return DEFAULT_OPTIONS;
+  }
+
+  MatcherOptions withReporter(MismatchReporter reporter) {
+    return new MatcherOptions(reporter, treatmentOverrides, canonicalComparisonThreshold,
+        ignoreRules, maxDifferencesInMemory);
+  }
+
+  MatcherOptions withTreatment(int differenceId, DifferenceTreatment treatment) {
+    Map<Integer, DifferenceTreatment> newOverrides =
+        new HashMap<Integer, DifferenceTreatment>(treatmentOverrides);
+    newOverrides.put(differenceId, treatment);
+    return new MatcherOptions(reporter, Collections.unmodifiableMap(newOverrides),
+        canonicalComparisonThreshold, ignoreRules, maxDifferencesInMemory);
+  }
+
+  MatcherOptions withCanonicalComparisonThreshold(long canonicalComparisonThreshold) {
+    return new MatcherOptions(reporter, treatmentOverrides, canonicalComparisonThreshold,
+        ignoreRules, maxDifferencesInMemory);
+  }
+
+  MatcherOptions withIgnoreRules(Collection<IgnoreRule> additionalRules) {
+    return new MatcherOptions(reporter, treatmentOverrides, canonicalComparisonThreshold,
+        ignoreRules.with(additionalRules), maxDifferencesInMemory);
+  }
+
+  MatcherOptions withMaxDifferencesInMemory(int maxDifferencesInMemory) {
+    return new MatcherOptions(reporter, treatmentOverrides, canonicalComparisonThreshold,
+        ignoreRules, maxDifferencesInMemory);
+  }
+}
@@ -0,0 +1,643 @@
+package org.ph0.xmatch;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.custommonkey.xmlunit.Difference;
+import org.custommonkey.xmlunit.NodeDetail;
+import org.hamcrest.Description;
+import org.hamcrest.SelfDescribing;
+import org.w3c.dom.Attr;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Renders the differences found by an {@link XmlEquivalenceMatcher} into a mismatch
+ * {@link Description}, keeping the output bounded no matter how large the compared documents are
+ * or how many differences were found.
+ *
+ * The number of differences listed and the length of every value or snippet are capped, and each
+ * difference can optionally be shown with a window of surrounding markup. Since a capped report
+ * necessarily leaves things out, a complete machine-readable report can also be written to a file
+ * for tools to process later.
+ *
+ * Instances are immutable; use the fluent methods to create modified copies.
+ *
+ * @author phanley
+ */
+public final class MismatchReporter {
+  private static final Logger log = Logger.getLogger(MismatchReporter.class.getName());
+
+  private static final String ELLIPSIS = "...";
+  private static final int CANONICAL_CONTEXT_LINES = 2;
+
+  private static final MismatchReporter DEFAULT_REPORTER = new MismatchReporter(50, 1000, 0, null);
+
+  private final int maxDifferences;
+  private final int maxSnippetChars;
+  private final int contextLevels;
+  private final File fullReportDirectory;
+
+  private MismatchReporter(int maxDifferences, int maxSnippetChars, int contextLevels,
+      File fullReportDirectory) {
+    this.maxDifferences = maxDifferences;
+    this.maxSnippetChars = maxSnippetChars;
+    this.contextLevels = contextLevels;
+    this.fullReportDirectory = fullReportDirectory;
+  }
+
+  /**
+   * @return a reporter listing at most 50 differences, truncating values and snippets at 1000
+   *         characters, without any surrounding context or full report file.
+   */
+  public static MismatchReporter defaultReporter() {
+    return DEFAULT_REPORTER;
+  }
+
+  /**
+   * Create a copy of this reporter that lists at most the specified number of differences. The
+   * remaining differences are only counted.
+   */
+  public MismatchReporter limitingDifferencesTo(int maxDifferences) {
+    if (maxDifferences < 0) {
+      throw new IllegalArgumentException("Difference limit must not be negative.");
+    }
+    return new MismatchReporter(maxDifferences, maxSnippetChars, contextLevels,
+        fullReportDirectory);
+  }
+
+  /**
+   * Create a copy of this reporter that truncates every value, snippet, and document rendering at
+   * the specified number of characters.
+   */
+  public MismatchReporter truncatingSnippetsAt(int maxSnippetChars) {
+    if (maxSnippetChars < ELLIPSIS.length()) {
+      throw new IllegalArgumentException(
+          "Snippet limit must be at least " + ELLIPSIS.length() + " characters.");
+    }
+    return new MismatchReporter(maxDifferences, maxSnippetChars, contextLevels,
+        fullReportDirectory);
+  }
+
+  /**
+   * Create a copy of this reporter that shows the markup surrounding each difference, starting
+   * the specified number of ancestor levels above the differing node. Zero disables the context
+   * snippets.
+   */
+  public MismatchReporter withContext(int ancestorLevels) {
+    if (ancestorLevels < 0) {
+      throw new IllegalArgumentException("Context levels must not be negative.");
+    }
+    return new MismatchReporter(maxDifferences, maxSnippetChars, ancestorLevels,
+        fullReportDirectory);
+  }
+
+  /**
+   * Create a copy of this reporter that also writes the complete, untruncated list of differences
+   * as an XML report file in the specified directory, and refers to that file in the mismatch
+   * description.
+   */
+  public MismatchReporter writingFullReportsTo(File directory) {
+    return new MismatchReporter(maxDifferences, maxSnippetChars, contextLevels, directory);
+  }
+
+  /**
+   * A mismatch captured from a comparison: its differences, and anything else that's only
+   * available while the compared documents are, rendered into a description only on demand.
+   */
+  abstract static class Mismatch implements SelfDescribing {
+    /**
+     * Stands in for a mismatch that wasn't captured, since nothing asked for its details.
+     */
+    static final Mismatch NOT_CAPTURED =
+        new Mismatch(Collections.<MatchDifference>emptyList(), -1) {
+          @Override
+          public void describeTo(Description description) {}
+        };
+
+    final List<MatchDifference> differences;
+    final long differenceCount;
+
+    /**
+     * @param differences the differences kept in memory.
+     * @param differenceCount the total number of differences, or -1 if unknown.
+     */
+    Mismatch(List<MatchDifference> differences, long differenceCount) {
+      this.differences = differences;
+      this.differenceCount = differenceCount;
+    }
+  }
+
+  /**
+   * Capture the mismatch between two XML values, while the compared documents are available.
+   *
+   * @param differences all differences found during the comparison.
+   * @param testValue the value that failed to match.
+   */
+  Mismatch capture(List<Difference> differences, XmlMatcherValue testValue) {
+    return capture(differences, differences.size(), null, listReport(differences), testValue);
+  }
+
+  /**
+   * Capture the mismatch between two XML values, whose differences may have been partially
+   * spilled to disk, before the spilled differences are discarded.
+   *
+   * @param differences all differences found during the comparison.
+   * @param testValue the value that failed to match.
+   */
+  Mismatch capture(final DifferenceSink differences, XmlMatcherValue testValue) {
+    ReportBody reportBody = new ReportBody() {
+      @Override
+      public void write(XMLStreamWriter writer) throws XMLStreamException, IOException {
+        writeFullReport(writer, differences);
+      }
+    };
+    return capture(differences.retained(), differences.size(), differences.countsByType(),
+        reportBody, testValue);
+  }
+
+  /**
+   * Context snippets and the full report are produced right away, since they need the documents
+   * and spilled differences; only the (bounded) description itself is rendered later.
+   */
+  private Mismatch capture(List<Difference> differences, final long total,
+      final Map<String, Long> countsByType, ReportBody reportBody,
+      final XmlMatcherValue testValue) {
+
+    final List<MatchDifference> captured = new ArrayList<MatchDifference>(differences.size());
+    for (int i = 0; i < differences.size(); i++) {
+      Difference difference = differences.get(i);
+      MatchDifference matchDifference = MatchDifference.of(difference);
+      if (contextLevels > 0 && i < maxDifferences && difference.getControlNodeDetail() != null
+          && difference.getTestNodeDetail() != null) {
+        matchDifference.controlContext = contextOf(difference.getControlNodeDetail().getNode());
+        matchDifference.testContext = contextOf(difference.getTestNodeDetail().getNode());
+      }
+      captured.add(matchDifference);
+    }
+    final File reportFile =
+        fullReportDirectory != null ? writeFullReport(reportBody, testValue) : null;
+    return new Mismatch(Collections.unmodifiableList(captured), total) {
+      @Override
+      public void describeTo(Description description) {
+        describeMismatch(captured, total, countsByType, reportFile, testValue, description);
+      }
+    };
+  }
+
+  private void describeMismatch(List<MatchDifference> differences, long total,
+      Map<String, Long> countsByType, File reportFile, XmlMatcherValue testValue,
+      Description mismatchDescription) {
+
+    StringBuilder report = new StringBuilder();
+    int listed = Math.min(differences.size(), maxDifferences);
+    for (int i = 0; i < listed; i++) {
+      appendDifference(report, differences.get(i));
+    }
+    if (total > listed) {
+      report.append("\n[").append(total - listed).append(" more difference(s) not shown]");
+      if (countsByType != null) {
+        report.append("\n[difference(s) by type:")
+            .append(DifferenceSink.formatCounts(countsByType)).append(']');
+      }
+    }
+    if (reportFile != null) {
+      report.append("\n[full report of ").append(total)
+          .append(" difference(s) written to ").append(reportFile.getAbsolutePath()).append(']');
+    }
+    report.append('\n');
+
+    mismatchDescription.appendText(report.toString())
+        .appendText(truncate(testValue.toString(), maxSnippetChars));
+  }
+
+  /**
+   * Capture the mismatch between the canonical forms of two XML values, described as a unified
+   * diff.
+   *
+   * @param edits the line edits transforming the expected canonical form into the test value's,
+   *        or {@code null} if they differ in too many lines to diff.
+   * @param maxEditDistance the edit distance the diff was limited to.
+   * @param testValue the value that failed to match.
+   */
+  Mismatch captureCanonical(final List<MyersDiff.Edit> edits, final int maxEditDistance,
+      final XmlMatcherValue testValue) {
+
+    if (edits == null) {
+      return new Mismatch(Collections.<MatchDifference>emptyList(), -1) {
+        @Override
+        public void describeTo(Description description) {
+          description.appendText("\n[canonical forms differ in more than " + maxEditDistance
+              + " lines]\n").appendText(truncate(testValue.toString(), maxSnippetChars));
+        }
+      };
+    }
+    List<MatchDifference> hunks = new ArrayList<MatchDifference>();
+    int hunkStart = -1;
+    for (int i = 0; i <= edits.size(); i++) {
+      boolean changed = i < edits.size() && edits.get(i).operation != MyersDiff.Operation.EQUAL;
+      if (changed && hunkStart < 0) {
+        hunkStart = i;
+      }
+      else if (!changed && hunkStart >= 0) {
+        hunks.add(MatchDifference.ofCanonicalLines(edits.subList(hunkStart, i)));
+        hunkStart = -1;
+      }
+    }
+    final File reportFile =
+        fullReportDirectory != null ? writeFullReport(listReport(edits), testValue) : null;
+    return new Mismatch(Collections.unmodifiableList(hunks), hunks.size()) {
+      @Override
+      public void describeTo(Description description) {
+        describeCanonicalMismatch(edits, reportFile, testValue, description);
+      }
+    };
+  }
+
+  /**
+   * Describe the mismatch between the canonical forms of two XML values right away.
+   *
+   * @see #captureCanonical(List, int, XmlMatcherValue)
+   */
+  void describeCanonicalMismatch(List<MyersDiff.Edit> edits, int maxEditDistance,
+      XmlMatcherValue testValue, Description mismatchDescription) {
+    captureCanonical(edits, maxEditDistance, testValue).describeTo(mismatchDescription);
+  }
+
+  private void describeCanonicalMismatch(List<MyersDiff.Edit> edits, File reportFile,
+      XmlMatcherValue testValue, Description mismatchDescription) {
+
+    StringBuilder report = new StringBuilder();
+    int hunks = appendHunks(report, edits);
+    if (hunks > maxDifferences) {
+      report.append("\n[").append(hunks - maxDifferences)
+          .append(" more difference(s) not shown]");
+    }
+    if (reportFile != null) {
+      report.append("\n[full canonical diff written to ").append(reportFile.getAbsolutePath())
+          .append(']');
+    }
+    report.append('\n');
+
+    mismatchDescription.appendText(report.toString())
+        .appendText(truncate(testValue.toString(), maxSnippetChars));
+  }
+
+  /**
+   * Append the first {@link #maxDifferences} groups of changed lines, each surrounded by up to
+   * {@link #CANONICAL_CONTEXT_LINES} unchanged lines.
+   *
+   * @return the total number of groups of changed lines.
+   */
+  private int appendHunks(StringBuilder report, List<MyersDiff.Edit> edits) {
+    int hunks = 0;
+    int lastAppended = -1;
+    for (int i = 0; i < edits.size(); i++) {
+      if (edits.get(i).operation == MyersDiff.Operation.EQUAL
+          || (i > 0 && edits.get(i - 1).operation != MyersDiff.Operation.EQUAL)) {
+        continue;
+      }
+      hunks++;
+      if (hunks > maxDifferences) {
+        continue;
+      }
+
+      int start = Math.max(lastAppended + 1, i - CANONICAL_CONTEXT_LINES);
+      if (start > lastAppended + 1) {
+        report.append("\n@@ canonical line ").append(start + 1).append(" @@");
+      }
+      int end = i;
+      while (end < edits.size() && edits.get(end).operation != MyersDiff.Operation.EQUAL) {
+        end++;
+      }
+      int changedEnd = end;
+      end = Math.min(edits.size(), end + CANONICAL_CONTEXT_LINES);
+      for (int j = start; j < end; j++) {
+        MyersDiff.Edit edit = edits.get(j);
+        String counterpart =
+            j >= i && j < changedEnd ? counterpartOf(edits, i, changedEnd, j) : null;
+        int offset = counterpart != null ? firstDifference(edit.line, counterpart) : 0;
+        report.append('\n').append(edit.operation.symbol())
+            .append(truncateAround(edit.line, offset, maxSnippetChars - 1));
+      }
+      lastAppended = end - 1;
+    }
+    return hunks;
+  }
+
+  /**
+   * Find the line that a changed line was changed from or to, by pairing the deleted lines of a
+   * group of changes with its inserted lines in order.
+   *
+   * @return the counterpart, or {@code null} if the line was purely deleted or inserted.
+   */
+  private static String counterpartOf(List<MyersDiff.Edit> edits, int start, int end, int index) {
+    MyersDiff.Operation operation = edits.get(index).operation;
+    int rank = 0;
+    for (int i = start; i < index; i++) {
+      if (edits.get(i).operation == operation) {
+        rank++;
+      }
+    }
+    for (int i = start; i < end; i++) {
+      if (edits.get(i).operation != operation && rank-- == 0) {
+        return edits.get(i).line;
+      }
+    }
+    return null;
+  }
+
+  private void appendDifference(StringBuilder report, MatchDifference difference) {
+    report.append(difference.isRecoverable() ? "\n[not identical] " : "\n[different] ")
+        .append("Expected ").append(difference.getDescription());
+    if (difference.getControlXPath() != null || difference.getTestXPath() != null) {
+      String control = difference.getControlValue();
+      String test = difference.getTestValue();
+      int offset = control != null && test != null ? firstDifference(control, test) : 0;
+      report.append(" '").append(truncateAround(control, offset, maxSnippetChars))
+          .append("' but was '").append(truncateAround(test, offset, maxSnippetChars))
+          .append("' - comparing ").append(difference.getControlXPath()).append(" to ")
+          .append(difference.getTestXPath());
+
+      appendContext(report, "expected", difference.controlContext);
+      appendContext(report, "actual", difference.testContext);
+    }
+  }
+
+  private static void appendContext(StringBuilder report, String label, String context) {
+    if (context != null) {
+      report.append("\n    ").append(label).append(": ").append(context);
+    }
+  }
+
+  /**
+   * @return a snippet of the markup around a node, starting {@link #contextLevels} levels above
+   *         it, or {@code null} if there's no node.
+   */
+  private String contextOf(Node node) {
+    if (node == null) {
+      return null;
+    }
+    Node contextRoot = node.getNodeType() == Node.ATTRIBUTE_NODE
+        ? ((Attr) node).getOwnerElement() : node;
+    for (int i = 1; i < contextLevels && contextRoot != null
+        && contextRoot.getParentNode() != null
+        && contextRoot.getParentNode().getNodeType() == Node.ELEMENT_NODE; i++) {
+      contextRoot = contextRoot.getParentNode();
+    }
+    if (contextRoot == null) {
+      return null;
+    }
+    StringBuilder snippet = new StringBuilder();
+    appendMarkup(snippet, contextRoot, maxSnippetChars + 1);
+    return truncate(snippet.toString(), maxSnippetChars);
+  }
+
+  /**
+   * Serialize a node as markup, stopping once the output exceeds {@code budget} characters, so
+   * that producing a snippet of a huge subtree doesn't require serializing all of it.
+   */
+  private static void appendMarkup(StringBuilder out, Node node, int budget) {
+    if (out.length() > budget) {
+      return;
+    }
+    switch (node.getNodeType()) {
+      case Node.ELEMENT_NODE:
+        out.append('<').append(node.getNodeName());
+        NamedNodeMap attributes = node.getAttributes();
+        for (int i = 0; attributes != null && i < attributes.getLength(); i++) {
+          Node attribute = attributes.item(i);
+          out.append(' ').append(attribute.getNodeName()).append("=\"")
+              .append(attribute.getNodeValue()).append('"');
+        }
+        if (!node.hasChildNodes()) {
+          out.append("/>");
+          break;
+        }
+        out.append('>');
+        for (Node child = node.getFirstChild(); child != null && out.length() <= budget;
+            child = child.getNextSibling()) {
+          appendMarkup(out, child, budget);
+        }
+        out.append("</").append(node.getNodeName()).append('>');
+        break;
+      case Node.TEXT_NODE:
+        out.append(node.getNodeValue());
+        break;
+      case Node.CDATA_SECTION_NODE:
+        out.append("<![CDATA[").append(node.getNodeValue()).append("]]>");
+        break;
+      case Node.COMMENT_NODE:
+        out.append("<!--").append(node.getNodeValue()).append("-->");
+        break;
+      case Node.PROCESSING_INSTRUCTION_NODE:
+        out.append("<?").append(node.getNodeName()).append(' ').append(node.getNodeValue())
+            .append("?>");
+        break;
+      case Node.ATTRIBUTE_NODE:
+        out.append(node.getNodeName()).append("=\"").append(node.getNodeValue()).append('"');
+        break;
+      default:
+        out.append(node.getNodeName());
+    }
+  }
+
+  private static String truncate(String value, int maxChars) {
+    if (value == null || value.length() <= maxChars) {
+      return value;
+    }
+    return value.substring(0, maxChars - ELLIPSIS.length()) + ELLIPSIS;
+  }
+
+  /**
+   * Truncate a value to a window around an offset (typically where it first differs from the
+   * value it's compared to), so that a difference deep inside a long value is still shown.
+   */
+  private static String truncateAround(String value, int offset, int maxChars) {
+    int window = maxChars - 2 * ELLIPSIS.length();
+    if (value == null || value.length() <= maxChars || offset < maxChars / 2 || window < 1) {
+      return truncate(value, maxChars);
+    }
+    int start = offset - window / 2;
+    if (start + window >= value.length()) {
+      return ELLIPSIS + value.substring(value.length() - (maxChars - ELLIPSIS.length()));
+    }
+    return ELLIPSIS + value.substring(start, start + window) + ELLIPSIS;
+  }
+
+  /**
+   * @return the index of the first character at which two values differ, or the length of the
+   *         shorter one if it's a prefix of the other.
+   */
+  static int firstDifference(CharSequence a, CharSequence b) {
+    int length = Math.min(a.length(), b.length());
+    for (int i = 0; i < length; i++) {
+      if (a.charAt(i) != b.charAt(i)) {
+        return i;
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Writes the content of a full report.
+   */
+  private interface ReportBody {
+    void write(XMLStreamWriter writer) throws XMLStreamException, IOException;
+  }
+
+  /**
+   * @param differences either XMLUnit {@link Difference}s or canonical {@link MyersDiff.Edit}s.
+   */
+  private static ReportBody listReport(final List<?> differences) {
+    return new ReportBody() {
+      @Override
+      public void write(XMLStreamWriter writer) throws XMLStreamException {
+        writer.writeAttribute("differences", String.valueOf(differences.size()));
+        writeFullReport(writer, differences);
+      }
+    };
+  }
+
+  /**
+   * Write a full report to a new file. Failing to write the report shouldn't obscure the actual
+   * mismatch, so errors are logged rather than thrown.
+   *
+   * @return the written file, or {@code null} if it couldn't be written.
+   */
+  private File writeFullReport(ReportBody reportBody, XmlMatcherValue testValue) {
+    File reportFile = null;
+    try {
+      fullReportDirectory.mkdirs();
+      reportFile = File.createTempFile("xmatch-report-", ".xml", fullReportDirectory);
+      try (OutputStream out = new BufferedOutputStream(new FileOutputStream(reportFile))) {
+        XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8");
+        try {
+          writer.writeStartDocument("UTF-8", "1.0");
+          writer.writeStartElement("mismatch-report");
+          writer.writeAttribute("test-value", String.valueOf(testValue.getSourceDescription()));
+          reportBody.write(writer);
+          writer.writeEndElement();
+          writer.writeEndDocument();
+        }
+        finally {
+          writer.close();
+        }
+      }
+      return reportFile;
+    }
+    catch (IOException | XMLStreamException e) {
+      log.log(Level.WARNING, "Unable to write full mismatch report to " + reportFile, e);
+      return null;
+    }
+  }
+
+  /**
+   * Write the counts per difference type, the differences kept in memory, and then the spilled
+   * differences as they are read back from disk.
+   */
+  private static void writeFullReport(final XMLStreamWriter writer, DifferenceSink differences)
+      throws XMLStreamException, IOException {
+
+    writer.writeAttribute("differences", String.valueOf(differences.size()));
+    for (Map.Entry<String, Long> count : differences.countsByType().entrySet()) {
+      writer.writeStartElement("difference-type");
+      writer.writeAttribute("description", count.getKey());
+      writer.writeAttribute("count", String.valueOf(count.getValue()));
+      writer.writeEndElement();
+    }
+    writeFullReport(writer, differences.retained());
+    try {
+      differences.readSpilled(new DifferenceSink.SpilledDifferenceVisitor() {
+        @Override
+        public void visit(DifferenceSink.SpilledDifference difference) throws IOException {
+          try {
+            writeDifference(writer, difference.id, difference.description,
+                difference.recoverable);
+            writeNodeDetail(writer, "control", difference.controlXpath,
+                difference.controlValue);
+            writeNodeDetail(writer, "test", difference.testXpath, difference.testValue);
+            writer.writeEndElement();
+          }
+          catch (XMLStreamException xse) {
+            throw new IOException(xse);
+          }
+        }
+      });
+    }
+    catch (IOException ioe) {
+      if (ioe.getCause() instanceof XMLStreamException) {
+        throw (XMLStreamException) ioe.getCause();
+      }
+      throw ioe;
+    }
+  }
+
+  private static void writeFullReport(XMLStreamWriter writer, List<?> differences)
+      throws XMLStreamException {
+
+    for (Object element : differences) {
+      if (element instanceof MyersDiff.Edit) {
+        MyersDiff.Edit edit = (MyersDiff.Edit) element;
+        writer.writeStartElement("line");
+        writer.writeAttribute("operation", edit.operation.name().toLowerCase(Locale.ROOT));
+        writer.writeCharacters(edit.line);
+        writer.writeEndElement();
+        continue;
+      }
+      Difference difference = (Difference) element;
+      writeDifference(writer, difference.getId(), difference.getDescription(),
+          difference.isRecoverable());
+      writeNodeDetail(writer, "control", difference.getControlNodeDetail());
+      writeNodeDetail(writer, "test", difference.getTestNodeDetail());
+      writer.writeEndElement();
+    }
+  }
+
+  /**
+   * Start a {@code difference} element, leaving it open for the node details.
+   */
+  private static void writeDifference(XMLStreamWriter writer, int id, String description,
+      boolean recoverable) throws XMLStreamException {
+    writer.writeStartElement("difference");
+    writer.writeAttribute("id", String.valueOf(id));
+    writer.writeAttribute("description", description);
+    writer.writeAttribute("recoverable", String.valueOf(recoverable));
+  }
+
+  private static void writeNodeDetail(XMLStreamWriter writer, String elementName,
+      NodeDetail detail) throws XMLStreamException {
+    if (detail != null) {
+      writeNodeDetail(writer, elementName, detail.getXpathLocation(), detail.getValue());
+    }
+  }
+
+  private static void writeNodeDetail(XMLStreamWriter writer, String elementName, String xpath,
+      String value) throws XMLStreamException {
+    if (xpath == null && value == null) {
+      return;
+    }
+    writer.writeStartElement(elementName);
+    if (xpath != null) {
+      writer.writeAttribute("xpath", xpath);
+    }
+    if (value != null) {
+      writer.writeCharacters(value);
+    }
+    writer.writeEndElement();
+  }
+}
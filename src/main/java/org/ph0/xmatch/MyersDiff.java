@@ -0,0 +1,156 @@
+package org.ph0.xmatch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Line-based diff using Myers' O((N+M)D) algorithm, for describing mismatches between the
+ * canonical forms of two documents.
+ *
+ * Common leading and trailing lines are stripped before running the algorithm, since the
+ * documents being compared usually differ in only a few places. The remaining search is bounded
+ * by a maximum edit distance, because its memory use grows quadratically with the number of
+ * edits.
+ *
+ * @author phanley
+ */
+/* package-private */ final class MyersDiff {
+  enum Operation {
+    EQUAL(' '), DELETE('-'), INSERT('+');
+
+    private final char symbol;
+
+    private Operation(char symbol) {
+      this.symbol = symbol;
+    }
+
+    char symbol() {
+      return symbol;
+    }
+  }
+
+  static final class Edit {
+    final Operation operation;
+    final String line;
+
+    Edit(Operation operation, String line) {
+      this.operation = operation;
+      this.line = line;
+    }
+
+    @Override
+    public String toString() {
+      return operation.symbol() + line;
+    }
+  }
+
+  private MyersDiff() {}
+
+  /**
+   * @param control
+   * @param test
+   * @param maxEditDistance the maximum number of inserted and deleted lines to search for.
+   * @return the edits transforming {@code control} into {@code test}, or {@code null} if they
+   *         differ by more than {@code maxEditDistance} lines.
+   */
+  static List<Edit> diff(List<String> control, List<String> test, int maxEditDistance) {
+    int prefix = 0;
+    while (prefix < control.size() && prefix < test.size()
+        && control.get(prefix).equals(test.get(prefix))) {
+      prefix++;
+    }
+    int suffix = 0;
+    while (suffix < control.size() - prefix && suffix < test.size() - prefix
+        && control.get(control.size() - 1 - suffix).equals(test.get(test.size() - 1 - suffix))) {
+      suffix++;
+    }
+
+    List<Edit> middle = diffMiddle(control.subList(prefix, control.size() - suffix),
+        test.subList(prefix, test.size() - suffix), maxEditDistance);
+    if (middle == null) {
+      return null;
+    }
+
+    List<Edit> ret = new ArrayList<Edit>(prefix + middle.size() + suffix);
+    for (int i = 0; i < prefix; i++) {
+      ret.add(new Edit(Operation.EQUAL, control.get(i)));
+    }
+    ret.addAll(middle);
+    for (int i = control.size() - suffix; i < control.size(); i++) {
+      ret.add(new Edit(Operation.EQUAL, control.get(i)));
+    }
+    return ret;
+  }
+
+  private static List<Edit> diffMiddle(List<String> a, List<String> b, int maxEditDistance) {
+    int n = a.size();
+    int m = b.size();
+    int max = Math.min(n + m, maxEditDistance);
+    int offset = n + m + 1;
+    int[] v = new int[2 * offset + 1];
+    // trace.get(d) holds the furthest reaching x for each diagonal k in [-d, d] after d edits
+    List<int[]> trace = new ArrayList<int[]>();
+
+    for (int d = 0; d <= max; d++) {
+      for (int k = -d; k <= d; k += 2) {
+        int x;
+        if (k == -d || (k != d && v[offset + k - 1] < v[offset + k + 1])) {
+          x = v[offset + k + 1];
+        }
+        else {
+          x = v[offset + k - 1] + 1;
+        }
+        int y = x - k;
+        while (x < n && y < m && a.get(x).equals(b.get(y))) {
+          x++;
+          y++;
+        }
+        v[offset + k] = x;
+        if (x >= n && y >= m) {
+          trace.add(Arrays.copyOfRange(v, offset - d, offset + d + 1));
+          return backtrack(a, b, trace);
+        }
+      }
+      trace.add(Arrays.copyOfRange(v, offset - d, offset + d + 1));
+    }
+    return null;
+  }
+
+  private static List<Edit> backtrack(List<String> a, List<String> b, List<int[]> trace) {
+    List<Edit> ret = new ArrayList<Edit>();
+    int x = a.size();
+    int y = b.size();
+    for (int d = trace.size() - 1; d > 0; d--) {
+      int[] previous = trace.get(d - 1);
+      int k = x - y;
+      int previousK;
+      if (k == -d || (k != d && previous[k - 1 + d - 1] < previous[k + 1 + d - 1])) {
+        previousK = k + 1;
+      }
+      else {
+        previousK = k - 1;
+      }
+      int previousX = previous[previousK + d - 1];
+      int previousY = previousX - previousK;
+
+      while (x > previousX && y > previousY) {
+        ret.add(new Edit(Operation.EQUAL, a.get(--x)));
+        y--;
+      }
+      if (previousK == k + 1) {
+        ret.add(new Edit(Operation.INSERT, b.get(--y)));
+      }
+      else {
+        ret.add(new Edit(Operation.DELETE, a.get(--x)));
+      }
+    }
+    while (x > 0 && y > 0) {
+      ret.add(new Edit(Operation.EQUAL, a.get(--x)));
+      y--;
+    }
+    Collections.reverse(ret);
+    return ret;
+  }
+}
@@ -0,0 +1,103 @@
+package org.ph0.xmatch;
+
+import org.custommonkey.xmlunit.ComparisonController;
+import org.custommonkey.xmlunit.Diff;
+import org.custommonkey.xmlunit.Difference;
+import org.custommonkey.xmlunit.DifferenceEngine;
+import org.custommonkey.xmlunit.DifferenceListener;
+import org.custommonkey.xmlunit.ElementQualifier;
+import org.custommonkey.xmlunit.MatchTracker;
+import org.custommonkey.xmlunit.XpathNodeTracker;
+import org.ph0.xmatch.XmlEquivalenceMatcher.Setting;
+import org.w3c.dom.Node;
+
+/**
+ * {@link DifferenceEngine} that skips comparisons whose outcome is already known, rather than
+ * turning them into {@link Difference}s for the {@link ConfigurableDifferenceListener} to
+ * dismiss.
+ *
+ * XMLUnit builds a {@code Difference}, including the XPath locations of both nodes, for every
+ * single value it compares, equal or not. It compares element and attribute names by their
+ * namespace URI and local name, and then separately by their prefix. Nodes from a
+ * namespace-aware parser already carry their resolved URIs, so when
+ * {@link Setting#TOLERATE_DIFFERENT_NAMESPACE_PREFIXES different prefixes are tolerated} (or any
+ * other type of difference is ignored outright), those comparisons are skipped entirely, and names
+ * are effectively compared as (URI, local name) pairs. Equal values are skipped as well, unless a
+ * {@link MatchTracker} wants to hear about them.
+ *
+ * Ignored differences are only skipped while the {@code Diff} running the comparison is
+ * {@link ListenerAware known} to delegate to the engine's listener; a {@code Diff} configured with
+ * any other listener hears about all of them. Like XMLUnit's own engine, this one lets the
+ * comparing {@code Diff} decide whether to halt after a difference.
+ *
+ * @author phanley
+ */
+/* package-private */ final class NamespaceAwareDifferenceEngine extends DifferenceEngine {
+  /**
+   * A {@link Diff} that tells which {@link DifferenceListener} it delegates to.
+   */
+  interface ListenerAware {
+    DifferenceListener getDifferenceListener();
+  }
+
+  /**
+   * Halts whenever the {@code Diff} currently comparing wants to.
+   */
+  private static final class ComparingDiffController implements ComparisonController {
+    ComparisonController comparingDiff;
+
+    @Override
+    public boolean haltComparison(Difference afterDifference) {
+      return comparingDiff != null && comparingDiff.haltComparison(afterDifference);
+    }
+  }
+
+  private final ConfigurableDifferenceListener differenceListener;
+  private final ComparingDiffController controller;
+  private boolean trackingMatches = false;
+  private boolean skippingIgnored = false;
+
+  NamespaceAwareDifferenceEngine(ConfigurableDifferenceListener differenceListener) {
+    this(differenceListener, new ComparingDiffController());
+  }
+
+  private NamespaceAwareDifferenceEngine(ConfigurableDifferenceListener differenceListener,
+      ComparingDiffController controller) {
+    super(controller);
+    this.differenceListener = differenceListener;
+    this.controller = controller;
+  }
+
+  @Override
+  public void setMatchTracker(MatchTracker matchTracker) {
+    trackingMatches = matchTracker != null;
+    super.setMatchTracker(matchTracker);
+  }
+
+  @Override
+  public void compare(Node control, Node test, DifferenceListener listener,
+      ElementQualifier elementQualifier) {
+    controller.comparingDiff =
+        listener instanceof ComparisonController ? (ComparisonController) listener : null;
+    skippingIgnored = listener instanceof ListenerAware
+        && ((ListenerAware) listener).getDifferenceListener() == differenceListener;
+    super.compare(control, test, listener, elementQualifier);
+  }
+
+  @Override
+  protected void compare(Object expected, Object actual, Node control, Node test,
+      DifferenceListener listener, Difference difference, XpathNodeTracker controlLoc,
+      XpathNodeTracker testLoc) throws DifferenceFoundException {
+
+    if (!trackingMatches) {
+      // XMLUnit may consider more values equal (e.g. ignoring whitespace), but never fewer
+      if (expected == null ? actual == null : expected.equals(actual)) {
+        return;
+      }
+      if (skippingIgnored && differenceListener.ignoresAll(difference.getId())) {
+        return;
+      }
+    }
+    super.compare(expected, actual, control, test, listener, difference, controlLoc, testLoc);
+  }
+}
@@ -0,0 +1,132 @@
+package org.ph0.xmatch;
+
+import java.io.Closeable;
+
+import org.custommonkey.xmlunit.DetailedDiff;
+import org.custommonkey.xmlunit.Diff;
+import org.custommonkey.xmlunit.Difference;
+import org.custommonkey.xmlunit.DifferenceListener;
+import org.w3c.dom.Node;
+
+/**
+ * {@link Diff} that collects every difference, like a {@link DetailedDiff}, but into a
+ * {@link DifferenceSink} so that massive sets of differences don't have to fit in memory.
+ *
+ * {@code Diff} itself also appends a message for every difference to an unbounded buffer, so
+ * rather than delegating to it, this class tracks whether the documents are identical or similar
+ * itself.
+ *
+ * @author phanley
+ */
+/* package-private */ class SpillingDiff extends Diff
+    implements Closeable, NamespaceAwareDifferenceEngine.ListenerAware {
+  /**
+   * A copy of a difference with its recoverability overridden by the difference listener, which
+   * {@link Difference} only allows subclasses to do.
+   */
+  private static final class ReclassifiedDifference extends Difference {
+    ReclassifiedDifference(Difference difference, boolean recoverable) {
+      super(difference, difference.getControlNodeDetail(), difference.getTestNodeDetail());
+      setRecoverable(recoverable);
+    }
+  }
+
+  private final DifferenceListener differenceListener;
+  private final DifferenceSink differences;
+  private boolean identical = true;
+  private boolean similar = true;
+
+  SpillingDiff(Diff prototype, DifferenceListener differenceListener, int maxInMemory) {
+    super(prototype);
+    this.differenceListener = differenceListener;
+    this.differences = new DifferenceSink(maxInMemory);
+  }
+
+  @Override
+  public DifferenceListener getDifferenceListener() {
+    return differenceListener;
+  }
+
+  DifferenceSink getDifferences() {
+    compare();
+    return differences;
+  }
+
+  @Override
+  public boolean identical() {
+    compare();
+    return identical;
+  }
+
+  @Override
+  public boolean similar() {
+    compare();
+    return similar;
+  }
+
+  @Override
+  public int differenceFound(Difference difference) {
+    int result = differenceListener.differenceFound(difference);
+    switch (result) {
+      case RETURN_IGNORE_DIFFERENCE_NODES_IDENTICAL:
+        return result;
+      case RETURN_IGNORE_DIFFERENCE_NODES_SIMILAR:
+        identical = false;
+        if (!difference.isRecoverable()) {
+          difference = new ReclassifiedDifference(difference, true);
+        }
+        break;
+      case RETURN_ACCEPT_DIFFERENCE:
+        identical = false;
+        similar &= difference.isRecoverable();
+        break;
+      case RETURN_UPGRADE_DIFFERENCE_NODES_DIFFERENT:
+        identical = false;
+        similar = false;
+        if (difference.isRecoverable()) {
+          difference = new ReclassifiedDifference(difference, false);
+        }
+        break;
+      default:
+        throw new IllegalArgumentException(result + " is not a valid difference listener result.");
+    }
+    differences.add(difference);
+    return result;
+  }
+
+  /**
+   * Never halt, so that every difference is collected.
+   */
+  @Override
+  public boolean haltComparison(Difference difference) {
+    return false;
+  }
+
+  @Override
+  public StringBuffer appendMessage(StringBuffer toAppendTo) {
+    compare();
+    for (Difference difference : differences.retained()) {
+      toAppendTo.append(difference.isRecoverable() ? "\n[not identical] " : "\n[different] ")
+          .append(difference);
+    }
+    long notRetained = differences.size() - differences.retained().size();
+    if (notRetained > 0) {
+      toAppendTo.append("\n[").append(notRetained).append(" more difference(s):")
+          .append(DifferenceSink.formatCounts(differences.countsByType())).append(']');
+    }
+    return toAppendTo;
+  }
+
+  @Override
+  public void skippedComparison(Node control, Node test) {
+    differenceListener.skippedComparison(control, test);
+  }
+
+  /**
+   * Delete the spilled differences.
+   */
+  @Override
+  public void close() {
+    differences.close();
+  }
+}
@@ -1,8 +1,14 @@
 package org.ph0.xmatch;
 
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.custommonkey.xmlunit.XMLUnit;
@@ -12,64 +18,214 @@ import org.ph0.xmatch.XmlEquivalenceMatcher.Setting;
 /**
  * Locking context, for preventing multiple changes to XMLUnit's static configuration settings
  * across multiple executing instances of this class.
- * 
+ *
  * It seems too greedy/risky to lock on the XMLUnit class as a whole, but at least within this class
  * we want to be able to prevent conflicts and restore the previous settings after the tests
  * complete, so we don't corrupt other equivalence tests.
+ *
+ * Contexts whose settings map to the same XMLUnit configuration don't conflict, so they're shared:
+ * any number of threads may hold contexts at once, as long as they all want the configuration
+ * that's currently applied. A thread wanting a different configuration waits until all of them
+ * have closed their contexts. Waiting threads are batched by configuration, in the order their
+ * batches were started, and each batch is admitted as a whole; threads wanting the current
+ * configuration don't overtake waiting batches, so that no configuration is starved, and the
+ * configuration changes at most once per batch rather than once per thread. While a thread has a
+ * nested context open with a different configuration, other threads wait as well, even for the
+ * nested configuration, which is only applied until the nested context closes. XMLUnit's own
+ * configuration is restored once the last context closes.
  */
 /* package-private */ final class XMLUnitContext implements AutoCloseable {
   private static final Logger log = Logger.getLogger(XMLUnitContext.class.getName());
-  
+
+  private static final int NONE = -1;
+  private static final int IGNORING_ATTRIBUTE_ORDER = 1;
+  private static final int IGNORING_COMMENTS = 2;
+  private static final int IGNORING_TEXT_CDATA_DIFF = 4;
+  private static final int IGNORING_WHITESPACE = 8;
+  private static final int NORMALIZING = 16;
+  private static final int NORMALIZING_WHITESPACE = 32;
+
+  /**
+   * Lock guarding the shared state below, only held while opening or closing a context (not while
+   * it's open).
+   */
+  private static final Lock STATE_LOCK = new ReentrantLock();
+  private static final Condition BATCH_ADMITTED = STATE_LOCK.newCondition();
+
+  /**
+   * Threads waiting for the same configuration, admitted together.
+   */
+  private static final class Batch {
+    final int configuration;
+    int threads = 0;
+    boolean admitted = false;
+
+    Batch(int configuration) {
+      this.configuration = configuration;
+    }
+  }
+
   /**
-   * Lock allowing only one thread to have access to the XMLUnit static context.
+   * The configuration applied to XMLUnit by the open contexts, or {@link #NONE} if none are open.
    */
-  private static final Lock XMLUNIT_STATIC_LOCK = new ReentrantLock();
-  
+  private static int appliedConfiguration = NONE;
+  private static int openContexts = 0;
+  /**
+   * The number of open nested contexts that changed the configuration, during which no other
+   * threads are let in, since the configuration changes back when they close.
+   */
+  private static int exclusiveContexts = 0;
+  /**
+   * XMLUnit's configuration from before the first of the open contexts was opened.
+   */
+  private static int previousConfiguration;
+  private static final Map<Integer, Batch> waitingBatches = new LinkedHashMap<Integer, Batch>();
+  private static final Map<Thread, Integer> openContextsByThread =
+      new IdentityHashMap<Thread, Integer>();
+
   /**
    * Locking object to protect a single XMLUnitContext instance from concurrent {@link #close()}
    * invocations.
    */
   private final Object closeLock = new Object();
 
-  // TODO: a less repetitive way to implement saving/changing/restoring the settings
-  private final boolean prevIgnoringAttributeOrder;
-  private final boolean prevIgnoringComments;
-  private final boolean prevIgnoringTextCdataDiff;
-  private final boolean prevIgnoringWhitespace;
-  private final boolean prevNormalizing;
-  private final boolean prevNormalizingWhitespace;
+  private final Thread owner = Thread.currentThread();
+  /**
+   * The configuration to restore when closing a context nested within another of the same thread,
+   * with a different configuration, or {@link #NONE}.
+   */
+  private int nestedWithin = NONE;
   private boolean isOpen = false;
 
   public XMLUnitContext(Set<Setting> settings) {
     if (settings == null) {
       throw new NullPointerException();
     }
-    boolean locked = XMLUNIT_STATIC_LOCK.tryLock();
-    if (!locked) {
-      log.warning("Unable to immediately obtain lock on XMLUnit configuration state, "
-          + "beware of thread contention between tests.  Trying again...");
-      XMLUNIT_STATIC_LOCK.lock();
+    int configuration = configurationOf(settings);
+    long waitNanos = 0;
+    STATE_LOCK.lock();
+    try {
+      Integer ownedContexts = openContextsByThread.get(owner);
+      if (ownedContexts != null) {
+        openNested(configuration, ownedContexts);
+      }
+      else if (appliedConfiguration == NONE) {
+        previousConfiguration = currentConfiguration();
+        apply(configuration);
+        openContexts = 1;
+      }
+      else if (appliedConfiguration == configuration && waitingBatches.isEmpty()
+          && exclusiveContexts == 0) {
+        openContexts++;
+      }
+      else {
+        long waitStart = System.nanoTime();
+        awaitBatch(configuration);
+        waitNanos = Math.max(1, System.nanoTime() - waitStart);
+      }
+      openContextsByThread.put(owner, ownedContexts != null ? ownedContexts + 1 : 1);
+      isOpen = true;
+    }
+    finally {
+      STATE_LOCK.unlock();
     }
+    MatchStatistics statistics = MatchStatistics.current();
+    if (statistics != null) {
+      statistics.recordLockAcquisition(waitNanos);
+    }
+  }
 
-    isOpen = true;
-
-    // save the existing settings so they can be restored later
-    prevIgnoringAttributeOrder = XMLUnit.getIgnoreAttributeOrder();
-    prevIgnoringComments = XMLUnit.getIgnoreComments();
-    prevIgnoringTextCdataDiff = XMLUnit.getIgnoreDiffBetweenTextAndCDATA();
-    prevIgnoringWhitespace = XMLUnit.getIgnoreWhitespace();
-    prevNormalizing = XMLUnit.getNormalize();
-    prevNormalizingWhitespace = XMLUnit.getNormalizeWhitespace();
-
-    // set the settings with the desired values
-    XMLUnit.setIgnoreAttributeOrder(settings.contains(Setting.IGNORE_ATTRIBUTE_ORDER));
-    XMLUnit.setIgnoreComments(settings.contains(Setting.IGNORE_COMMENTS));
-    XMLUnit.setIgnoreDiffBetweenTextAndCDATA(settings.contains(Setting.IGNORE_CDATA_TEXT_DISTINCTION));
-    XMLUnit.setIgnoreWhitespace(settings.contains(Setting.IGNORE_LEADING_TRAILING_WHITESPACE));
-    XMLUnit.setNormalize(settings.contains(Setting.NORMALIZE_DOCUMENT));
-    XMLUnit.setNormalizeWhitespace(settings.contains(Setting.NORMALIZE_WHITESPACE));
+  /**
+   * Open a context within one already held by the same thread, which can't wait for any other
+   * threads without deadlocking.
+   */
+  private void openNested(int configuration, int ownedContexts) {
+    if (configuration != appliedConfiguration) {
+      if (ownedContexts != openContexts) {
+        throw new IllegalStateException("Unable to change the XMLUnit configuration within a "
+            + "context shared with other threads.");
+      }
+      nestedWithin = appliedConfiguration;
+      apply(configuration);
+      exclusiveContexts++;
+    }
+    openContexts++;
+  }
+
+  private static void awaitBatch(int configuration) {
+    Batch batch = waitingBatches.get(configuration);
+    if (batch == null) {
+      // waiting is expected with concurrent tests, so only noted once per batch
+      if (log.isLoggable(Level.FINE)) {
+        log.fine("Waiting for other threads to release the XMLUnit configuration before "
+            + "applying configuration " + configuration + ".");
+      }
+      batch = new Batch(configuration);
+      waitingBatches.put(configuration, batch);
+    }
+    batch.threads++;
+    while (!batch.admitted) {
+      BATCH_ADMITTED.awaitUninterruptibly();
+    }
+  }
+
+  /**
+   * Admit the longest waiting batch, or restore XMLUnit's previous configuration if there's none.
+   */
+  private static void admitNextBatch() {
+    Iterator<Batch> batches = waitingBatches.values().iterator();
+    if (!batches.hasNext()) {
+      apply(previousConfiguration);
+      appliedConfiguration = NONE;
+      return;
+    }
+    Batch next = batches.next();
+    batches.remove();
+    apply(next.configuration);
+    openContexts = next.threads;
+    next.admitted = true;
+    BATCH_ADMITTED.signalAll();
   }
-  
+
+  private static int configurationOf(Set<Setting> settings) {
+    return (settings.contains(Setting.IGNORE_ATTRIBUTE_ORDER) ? IGNORING_ATTRIBUTE_ORDER : 0)
+        | (settings.contains(Setting.IGNORE_COMMENTS) ? IGNORING_COMMENTS : 0)
+        | (settings.contains(Setting.IGNORE_CDATA_TEXT_DISTINCTION) ? IGNORING_TEXT_CDATA_DIFF
+            : 0)
+        | (settings.contains(Setting.IGNORE_LEADING_TRAILING_WHITESPACE) ? IGNORING_WHITESPACE
+            : 0)
+        | (settings.contains(Setting.NORMALIZE_DOCUMENT) ? NORMALIZING : 0)
+        | (settings.contains(Setting.NORMALIZE_WHITESPACE) ? NORMALIZING_WHITESPACE : 0);
+  }
+
+  private static int currentConfiguration() {
+    return (XMLUnit.getIgnoreAttributeOrder() ? IGNORING_ATTRIBUTE_ORDER : 0)
+        | (XMLUnit.getIgnoreComments() ? IGNORING_COMMENTS : 0)
+        | (XMLUnit.getIgnoreDiffBetweenTextAndCDATA() ? IGNORING_TEXT_CDATA_DIFF : 0)
+        | (XMLUnit.getIgnoreWhitespace() ? IGNORING_WHITESPACE : 0)
+        | (XMLUnit.getNormalize() ? NORMALIZING : 0)
+        | (XMLUnit.getNormalizeWhitespace() ? NORMALIZING_WHITESPACE : 0);
+  }
+
+  /**
+   * Apply a configuration to XMLUnit, which may only be done while no other thread has a context
+   * open. Also initializes XMLUnit's lazily created parser and transformer factories, which
+   * contexts then share: XMLUnit publishes a new parser factory before making it namespace aware,
+   * so concurrent contexts mustn't be the first to ask for one.
+   */
+  private static void apply(int configuration) {
+    appliedConfiguration = configuration;
+    XMLUnit.setIgnoreAttributeOrder((configuration & IGNORING_ATTRIBUTE_ORDER) != 0);
+    XMLUnit.setIgnoreComments((configuration & IGNORING_COMMENTS) != 0);
+    XMLUnit.setIgnoreDiffBetweenTextAndCDATA((configuration & IGNORING_TEXT_CDATA_DIFF) != 0);
+    XMLUnit.setIgnoreWhitespace((configuration & IGNORING_WHITESPACE) != 0);
+    XMLUnit.setNormalize((configuration & NORMALIZING) != 0);
+    XMLUnit.setNormalizeWhitespace((configuration & NORMALIZING_WHITESPACE) != 0);
+    XMLUnit.getControlDocumentBuilderFactory();
+    XMLUnit.getTestDocumentBuilderFactory();
+    XMLUnit.getTransformerFactory();
+  }
+
   /*
    * Logic to close the XMLUnit context under various circumstances.  In a perfect world, we'd
    * refactor XMLUnit itself to not use a static state like this.  In this world, we're only likely
@@ -82,14 +238,16 @@ import org.ph0.xmatch.XmlEquivalenceMatcher.Setting;
     synchronized(closeLock) {
       if (isOpen) {
         RuntimeException runtimeException = null;
+        STATE_LOCK.lock();
         try {
-          // restore the original settings
-          XMLUnit.setIgnoreAttributeOrder(prevIgnoringAttributeOrder);
-          XMLUnit.setIgnoreComments(prevIgnoringComments);
-          XMLUnit.setIgnoreDiffBetweenTextAndCDATA(prevIgnoringTextCdataDiff);
-          XMLUnit.setIgnoreWhitespace(prevIgnoringWhitespace);
-          XMLUnit.setNormalize(prevNormalizing);
-          XMLUnit.setNormalizeWhitespace(prevNormalizingWhitespace);
+          // restore the enclosing context's settings, or hand over to the next batch
+          if (nestedWithin != NONE) {
+            apply(nestedWithin);
+            exclusiveContexts--;
+          }
+          if (--openContexts == 0) {
+            admitNextBatch();
+          }
         }
         catch (RuntimeException re) {
           runtimeException = re;
@@ -97,6 +255,10 @@ import org.ph0.xmatch.XmlEquivalenceMatcher.Setting;
         finally {
           isOpen = false;
           try {
+            Integer ownedContexts = openContextsByThread.remove(owner);
+            if (ownedContexts != null && ownedContexts > 1) {
+              openContextsByThread.put(owner, ownedContexts - 1);
+            }
             if (runtimeException != null) {
               Logger log = Logger.getLogger(XMLUnitContext.class.getName());
               log.severe("Exception occurred while closing XMLUnit context.  "
@@ -105,7 +267,7 @@ import org.ph0.xmatch.XmlEquivalenceMatcher.Setting;
             }
           }
           finally {
-            XMLUNIT_STATIC_LOCK.unlock();
+            STATE_LOCK.unlock();
           }
         }
       }
@@ -117,9 +279,9 @@ import org.ph0.xmatch.XmlEquivalenceMatcher.Setting;
 
   /**
    * Would normally avoid overriding {@code finalize()}, but it's important to release the
-   * {@link Lock} on the XMLUnit context in the event that this object isn't explicitly
-   * {@link #close() closed}, so that it can at least try to avoid messing up other tests.
-   * 
+   * XMLUnit context in the event that this object isn't explicitly {@link #close() closed}, so
+   * that it can at least try to avoid messing up other tests.
+   *
    * @see XmlEquivalenceMatcher#xmlUnitLock
    */
   @Override
@@ -145,7 +307,7 @@ import org.ph0.xmatch.XmlEquivalenceMatcher.Setting;
         }
       }
     }
-    
+
     // only perform superclass finalization if we're actually going to be finalized ourselves
     super.finalize();
   }
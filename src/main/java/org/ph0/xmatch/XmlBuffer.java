@@ -0,0 +1,101 @@
+package org.ph0.xmatch;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.xml.sax.InputSource;
+
+/**
+ * Raw bytes of an XML document in a {@link ByteBuffer} (or a wrapped array), supplied to the
+ * parser as they are, without copying or decoding them first.
+ *
+ * If the charset of the bytes is declared, it's passed on to the parser as the
+ * {@link InputSource#setEncoding(String) encoding} of the input, so the parser doesn't have to
+ * detect it from the byte order mark or XML declaration.
+ *
+ * @author phanley
+ */
+/* package-private */ final class XmlBuffer implements InputSourceSupplier {
+  private final ByteBuffer buffer;
+  private final Charset declaredCharset;
+
+  /**
+   * @param buffer the bytes between the buffer's position and limit, which must not be modified
+   *        while this supplier is in use.
+   * @param declaredCharset the charset of the bytes, or {@code null} to detect it.
+   */
+  XmlBuffer(ByteBuffer buffer, Charset declaredCharset) {
+    this.buffer = buffer.slice();
+    this.declaredCharset = declaredCharset;
+  }
+
+  @Override
+  public InputSource get() {
+    InputStream stream;
+    if (buffer.hasArray()) {
+      stream = new ByteArrayInputStream(buffer.array(), buffer.arrayOffset(), buffer.remaining());
+    }
+    else {
+      stream = new ByteBufferInputStream(buffer.duplicate());
+    }
+    InputSource ret = new InputSource(stream);
+    if (declaredCharset != null) {
+      ret.setEncoding(declaredCharset.name());
+    }
+    return ret;
+  }
+
+  int size() {
+    return buffer.remaining();
+  }
+
+  /**
+   * @return a hash of the bytes, without consuming them.
+   */
+  int contentHash() {
+    return buffer.hashCode();
+  }
+
+  /**
+   * @return the declared charset, or {@code null} if it has to be detected.
+   */
+  Charset getDeclaredCharset() {
+    return declaredCharset;
+  }
+
+  /**
+   * Stream over the remaining bytes of a (direct) buffer.
+   */
+  private static final class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+      if (length == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      int count = Math.min(length, buffer.remaining());
+      buffer.get(bytes, offset, count);
+      return count;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+}
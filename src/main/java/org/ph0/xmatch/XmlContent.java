@@ -0,0 +1,88 @@
+package org.ph0.xmatch;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import org.xml.sax.InputSource;
+
+/**
+ * Immutable raw bytes of an XML document, which can be shared by any number of
+ * {@link XmlMatcherValue}s. The bytes are never copied once read, so callers must not modify the
+ * array passed to the constructor.
+ *
+ * @author phanley
+ */
+/* package-private */ final class XmlContent implements InputSourceSupplier {
+  private static final int INITIAL_BUFFER_SIZE = 8192;
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private final byte[] bytes;
+  private volatile String contentHash;
+
+  XmlContent(byte[] bytes) {
+    this.bytes = bytes;
+  }
+
+  /**
+   * Read the remainder of a stream, sizing the buffer by the expected length (if known) so that a
+   * document doesn't have to be copied between intermediate buffers.
+   *
+   * @param stream
+   * @param expectedLength the expected number of bytes, or a negative number if unknown.
+   */
+  static XmlContent read(InputStream stream, int expectedLength) throws IOException {
+    byte[] buffer = new byte[expectedLength > 0 ? expectedLength : INITIAL_BUFFER_SIZE];
+    int length = 0;
+    while (true) {
+      if (length == buffer.length) {
+        int next = stream.read();
+        if (next == -1) {
+          break;
+        }
+        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        buffer[length++] = (byte) next;
+      }
+      int bytesRead = stream.read(buffer, length, buffer.length - length);
+      if (bytesRead == -1) {
+        break;
+      }
+      length += bytesRead;
+    }
+    return new XmlContent(length == buffer.length ? buffer : Arrays.copyOf(buffer, length));
+  }
+
+  @Override
+  public InputSource get() {
+    return new InputSource(new ByteArrayInputStream(bytes));
+  }
+
+  int size() {
+    return bytes.length;
+  }
+
+  /**
+   * @return a hex-encoded SHA-256 digest of the content, computed on first use.
+   */
+  String contentHash() {
+    String ret = contentHash;
+    if (ret == null) {
+      try {
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+          hex[2 * i] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+          hex[2 * i + 1] = HEX_DIGITS[digest[i] & 0xf];
+        }
+        ret = contentHash = new String(hex);
+      }
+      catch (NoSuchAlgorithmException nsae) {
+        throw new IllegalStateException("SHA-256 is required to be supported by every JRE.", nsae);
+      }
+    }
+    return ret;
+  }
+}
@@ -1,16 +1,28 @@
 package org.ph0.xmatch;
 
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.EnumSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import javax.xml.parsers.DocumentBuilderFactory;
 
 import org.custommonkey.xmlunit.DetailedDiff;
 import org.custommonkey.xmlunit.Diff;
+import org.custommonkey.xmlunit.Difference;
 import org.custommonkey.xmlunit.DifferenceListener;
+import org.custommonkey.xmlunit.XMLUnit;
 import org.hamcrest.Description;
 import org.hamcrest.Matcher;
+import org.hamcrest.StringDescription;
 import org.hamcrest.TypeSafeDiagnosingMatcher;
 import org.w3c.dom.Document;
 import org.xml.sax.InputSource;
@@ -39,6 +51,44 @@ public class XmlEquivalenceMatcher extends TypeSafeDiagnosingMatcher<XmlMatcherV
     TOLERATE_DIFFERENT_NAMESPACE_PREFIXES, NORMALIZE_DOCUMENT, NORMALIZE_WHITESPACE
   }
 
+  /**
+   * How a particular type of XMLUnit {@link Difference} should be treated, overriding whatever the
+   * {@link Setting}s of the matcher would otherwise decide.
+   * 
+   * @author phanley
+   */
+  public static enum DifferenceTreatment {
+    /**
+     * Use XMLUnit's own judgement of whether the difference is recoverable.
+     */
+    ACCEPT(DifferenceListener.RETURN_ACCEPT_DIFFERENCE),
+    /**
+     * Ignore the difference entirely.
+     */
+    IGNORE(DifferenceListener.RETURN_IGNORE_DIFFERENCE_NODES_IDENTICAL),
+    /**
+     * Treat the documents as similar, but not identical.
+     */
+    SIMILAR(DifferenceListener.RETURN_IGNORE_DIFFERENCE_NODES_SIMILAR),
+    /**
+     * Treat the documents as different, even if XMLUnit considers the difference recoverable.
+     */
+    DIFFERENT(DifferenceListener.RETURN_UPGRADE_DIFFERENCE_NODES_DIFFERENT);
+
+    private final int listenerResult;
+
+    private DifferenceTreatment(int listenerResult) {
+      this.listenerResult = listenerResult;
+    }
+
+    /**
+     * @return the corresponding {@code DifferenceListener.RETURN_...} value.
+     */
+    int listenerResult() {
+      return listenerResult;
+    }
+  }
+
 
   /**
    * Reasonable default settings for XML comparisons. Relatively lax, only the "content" parts of
@@ -58,8 +108,38 @@ public class XmlEquivalenceMatcher extends TypeSafeDiagnosingMatcher<XmlMatcherV
     return DEFAULT_SETTINGS;
   }
 
+  /**
+   * Maximum number of canonical lines to diff when describing a canonical comparison mismatch.
+   */
+  private static final int MAX_CANONICAL_EDIT_DISTANCE = 2000;
+
+  /**
+   * A memoized document checked out by a comparison running on the current thread.
+   */
+  private static final class CheckedOutDocument {
+    final XmlMatcherValue value;
+    final Document document;
+
+    CheckedOutDocument(XmlMatcherValue value, Document document) {
+      this.value = value;
+      this.document = document;
+    }
+  }
+
+  private static final ThreadLocal<List<CheckedOutDocument>> CHECKED_OUT_DOCUMENTS =
+      new ThreadLocal<List<CheckedOutDocument>>() {
+        @Override
+        protected List<CheckedOutDocument> initialValue() {
+          return new ArrayList<CheckedOutDocument>();
+        }
+      };
+
   private final XmlMatcherValue expectedValue;
   private final Set<Setting> settings;
+  private final MatcherOptions options;
+  private final ConfigurableDifferenceListener differenceListener;
+  private final CanonicalComparison canonicalComparison;
+  private volatile byte[] expectedCanonicalDigest;
 
   /**
    * Create a matcher for the specified XML value using the default settings.
@@ -72,10 +152,19 @@ public class XmlEquivalenceMatcher extends TypeSafeDiagnosingMatcher<XmlMatcherV
   }
 
   protected XmlEquivalenceMatcher(XmlMatcherValue expectedValue, Set<Setting> settings) {
+    this(expectedValue, settings, MatcherOptions.defaultOptions());
+  }
+
+  private XmlEquivalenceMatcher(XmlMatcherValue expectedValue, Set<Setting> settings,
+      MatcherOptions options) {
     this.expectedValue = expectedValue;
     
     this.settings = Collections.unmodifiableSet(
         settings.isEmpty() ? EnumSet.noneOf(Setting.class) : EnumSet.copyOf(settings));
+    this.options = options;
+    this.differenceListener = new ConfigurableDifferenceListener(this.settings,
+        options.treatmentOverrides, options.ignoreRules);
+    this.canonicalComparison = new CanonicalComparison(this.settings, options.ignoreRules);
   }
   
   /**
@@ -91,7 +180,8 @@ public class XmlEquivalenceMatcher extends TypeSafeDiagnosingMatcher<XmlMatcherV
 
     EnumSet<Setting> newSettings = EnumSet.copyOf(this.settings);
     newSettings.addAll(Arrays.asList(settings));
-    return new XmlEquivalenceMatcher(this.expectedValue, Collections.unmodifiableSet(newSettings));
+    return new XmlEquivalenceMatcher(this.expectedValue, Collections.unmodifiableSet(newSettings),
+        this.options);
   }
 
   /**
@@ -106,7 +196,138 @@ public class XmlEquivalenceMatcher extends TypeSafeDiagnosingMatcher<XmlMatcherV
     }
     EnumSet<Setting> newSettings = EnumSet.copyOf(this.settings);
     newSettings.removeAll(Arrays.asList(settings));
-    return new XmlEquivalenceMatcher(this.expectedValue, Collections.unmodifiableSet(newSettings));
+    return new XmlEquivalenceMatcher(this.expectedValue, Collections.unmodifiableSet(newSettings),
+        this.options);
+  }
+
+  /**
+   * Create a copy of this matcher, but using the specified {@link MismatchReporter} to describe
+   * mismatches.
+   * 
+   * @param reporter
+   * @return
+   */
+  public XmlEquivalenceMatcher reportingWith(MismatchReporter reporter) {
+    if (reporter == null) {
+      throw new NullPointerException();
+    }
+    return new XmlEquivalenceMatcher(this.expectedValue, this.settings,
+        this.options.withReporter(reporter));
+  }
+
+  /**
+   * Create a copy of this matcher, but treating the specified types of {@link Difference} (e.g.
+   * the constants in {@link org.custommonkey.xmlunit.DifferenceConstants DifferenceConstants}) in
+   * the specified way, regardless of its settings.
+   * 
+   * @param treatment
+   * @param differenceTypes
+   * @return
+   */
+  public XmlEquivalenceMatcher treating(DifferenceTreatment treatment,
+      Difference... differenceTypes) {
+    if (treatment == null) {
+      throw new NullPointerException();
+    }
+    if (differenceTypes == null || differenceTypes.length == 0) {
+      return this;
+    }
+    MatcherOptions newOptions = this.options;
+    for (Difference differenceType : differenceTypes) {
+      if (differenceType.getId() < 0) {
+        throw new IllegalArgumentException("Invalid difference type: " + differenceType);
+      }
+      newOptions = newOptions.withTreatment(differenceType.getId(), treatment);
+    }
+    return new XmlEquivalenceMatcher(this.expectedValue, this.settings, newOptions);
+  }
+
+  /**
+   * Create a copy of this matcher, but ignoring the values matched by the specified rules (in
+   * addition to any rules it already has). The rules are compiled once, here, and applied while
+   * the documents are being compared, so volatile values such as timestamps don't need to be
+   * stripped from the XML beforehand.
+   * 
+   * @param rules
+   * @return
+   */
+  public XmlEquivalenceMatcher ignoring(IgnoreRule... rules) {
+    if (rules == null || rules.length == 0) {
+      return this;
+    }
+    return new XmlEquivalenceMatcher(this.expectedValue, this.settings,
+        this.options.withIgnoreRules(Arrays.asList(rules)));
+  }
+
+  /**
+   * Create a copy of this matcher that only keeps the first differences it finds in memory, and
+   * streams any further ones to a temporary file (deleted once the mismatch has been described),
+   * so that documents differing in millions of places can't exhaust the heap. The mismatch
+   * description then also summarizes the differences by type.
+   * 
+   * @param maxDifferencesInMemory
+   * @return
+   */
+  public XmlEquivalenceMatcher spillingDifferencesAfter(int maxDifferencesInMemory) {
+    if (maxDifferencesInMemory < 0) {
+      throw new IllegalArgumentException("Number of differences must not be negative.");
+    }
+    return new XmlEquivalenceMatcher(this.expectedValue, this.settings,
+        this.options.withMaxDifferencesInMemory(maxDifferencesInMemory));
+  }
+
+  /**
+   * Create a copy of this matcher that compares values of at least the specified size (in bytes
+   * or characters, where known) by streaming both through a canonicalizing serializer, instead of
+   * building DOM trees for XMLUnit. This is much cheaper for large documents, and mismatches are
+   * described as a line-based diff of the canonical forms.
+   * 
+   * Canonical comparison doesn't use {@link #initializeDiff(XmlMatcherValue, XmlMatcherValue)},
+   * {@link #configureDiff(Diff)}, difference treatments, or {@link IgnoreRule#placeholder()
+   * placeholder} rules, and can't tolerate reordered elements the way XMLUnit does when
+   * {@link Setting#ONLY_COMPARE_SIMILARITY only comparing similarity}, so it's only used for
+   * values whose size is known and matchers without treatments, placeholders, or that setting.
+   * 
+   * @param sizeThreshold the minimum size of the larger value for canonical comparison to be
+   *        used, zero to use it whenever the size of the values is known.
+   * @return
+   */
+  public XmlEquivalenceMatcher comparingCanonicallyAbove(long sizeThreshold) {
+    if (sizeThreshold < 0) {
+      throw new IllegalArgumentException("Size threshold must not be negative.");
+    }
+    return new XmlEquivalenceMatcher(this.expectedValue, this.settings,
+        this.options.withCanonicalComparisonThreshold(sizeThreshold));
+  }
+
+  /**
+   * Score documents by how similar they are under this matcher's settings (and ignore rules),
+   * rather than just matching them.
+   * 
+   * @return
+   */
+  public XmlSimilarity similarity() {
+    return new XmlSimilarity(this.settings, options.ignoreRules);
+  }
+
+  /**
+   * Create a matcher for DOM documents that are modified and matched repeatedly, which only
+   * re-compares the changed parts of the document on each match. It compares the same canonical
+   * forms as {@link #comparingCanonicallyAbove(long) canonical comparison}, with the same
+   * restrictions, and describes mismatches using this matcher.
+   * 
+   * @return
+   * @throws IllegalStateException if this matcher has difference treatments,
+   *         {@link IgnoreRule#placeholder() placeholder} rules, or only compares similarity.
+   */
+  public IncrementalXmlMatcher incrementally() {
+    if (!options.treatmentOverrides.isEmpty() || options.ignoreRules.hasPlaceholders()
+        || settings.contains(Setting.ONLY_COMPARE_SIMILARITY)) {
+      throw new IllegalStateException("Incremental matching doesn't support difference "
+          + "treatments, placeholder rules, or only comparing similarity.");
+    }
+    return new IncrementalXmlMatcher(this, this.expectedValue, this.settings,
+        options.ignoreRules);
   }
 
   @Override
@@ -117,6 +338,84 @@ public class XmlEquivalenceMatcher extends TypeSafeDiagnosingMatcher<XmlMatcherV
         .appendDescriptionOf(this.expectedValue);
   }
 
+  /**
+   * Compare a value against this matcher's expected value, returning the outcome instead of just
+   * a {@code boolean}. The outcome lists the differences found, but its mismatch description is
+   * only rendered when it's asked for.
+   * 
+   * @param testValue
+   * @return
+   */
+  public MatchResult match(XmlMatcherValue testValue) {
+    long start = System.nanoTime();
+    MismatchReporter.Mismatch mismatch = compareRecordingStatistics(testValue, true);
+    return new MatchResult(testValue, mismatch, System.nanoTime() - start);
+  }
+
+  /**
+   * {@link #match(XmlMatcherValue) Match} each of a collection of values, e.g. the results of
+   * {@link XmlMatchers#jaxbXmlForAll(java.util.Collection)}.
+   * 
+   * @param testValues
+   * @return the results, in the iteration order of the collection.
+   */
+  public List<MatchResult> matchAll(Iterable<? extends XmlMatcherValue> testValues) {
+    List<MatchResult> ret = new ArrayList<MatchResult>();
+    for (XmlMatcherValue testValue : testValues) {
+      ret.add(match(testValue));
+    }
+    return ret;
+  }
+
+  /**
+   * Asynchronously {@link #match(XmlMatcherValue) match} a value, using a shared default executor
+   * (virtual threads where the JDK supports them).
+   * 
+   * @param testValue
+   * @return
+   */
+  public Future<MatchResult> matchAsync(XmlMatcherValue testValue) {
+    return matchAsync(testValue, MatchExecutors.defaultExecutor());
+  }
+
+  /**
+   * Asynchronously {@link #match(XmlMatcherValue) match} a value using the specified executor.
+   * 
+   * @param testValue
+   * @param executor
+   * @return
+   */
+  public Future<MatchResult> matchAsync(final XmlMatcherValue testValue, Executor executor) {
+    return matchAsync(new Callable<XmlMatcherValue>() {
+      @Override
+      public XmlMatcherValue call() {
+        return testValue;
+      }
+    }, executor);
+  }
+
+  /**
+   * Asynchronously fetch a value and {@link #match(XmlMatcherValue) match} it, using the specified
+   * executor. Since the value is only fetched by the executing task, this allows many slow
+   * fetches (see {@link XmlMatchers#fetchingXmlAt(java.net.URL)}) to overlap with each other and
+   * with comparisons.
+   * 
+   * @param testValueFetcher
+   * @param executor
+   * @return
+   */
+  public Future<MatchResult> matchAsync(final Callable<? extends XmlMatcherValue> testValueFetcher,
+      Executor executor) {
+    FutureTask<MatchResult> task = new FutureTask<MatchResult>(new Callable<MatchResult>() {
+      @Override
+      public MatchResult call() throws Exception {
+        return match(testValueFetcher.call());
+      }
+    });
+    executor.execute(task);
+    return task;
+  }
+
   /**
    * Run the matching operation. Uses {@link #initializeDiff(XmlMatcherValue, XmlMatcherValue)} and
    * {@link #configureDiff(Diff)} to create and extend the {@link Diff} used for matching.
@@ -125,33 +424,143 @@ public class XmlEquivalenceMatcher extends TypeSafeDiagnosingMatcher<XmlMatcherV
   protected final boolean matchesSafely(XmlMatcherValue testValue,
       Description mismatchDescription) {
 
+    // Hamcrest only wants a real description on a second pass, after a failed match
+    boolean describing = !(mismatchDescription instanceof Description.NullDescription);
+    // the describing pass repeats a comparison that has already been recorded
+    MismatchReporter.Mismatch mismatch =
+        describing ? compare(testValue, true) : compareRecordingStatistics(testValue, false);
+    if (mismatch != null && describing) {
+      mismatch.describeTo(mismatchDescription);
+    }
+    return mismatch == null;
+  }
+
+  private MismatchReporter.Mismatch compareRecordingStatistics(XmlMatcherValue testValue,
+      boolean capturing) {
+    MatchStatistics statistics = MatchStatistics.current();
+    if (statistics == null) {
+      return compare(testValue, capturing);
+    }
+    long start = System.nanoTime();
+    boolean canonical = usesCanonicalComparison(testValue);
+    MismatchReporter.Mismatch mismatch = compare(testValue, capturing);
+    statistics.recordComparison(expectedValue, canonical, mismatch == null,
+        System.nanoTime() - start);
+    return mismatch;
+  }
+
+  /**
+   * @param capturing whether to capture the details of a mismatch.
+   * @return {@code null} if the value matched, otherwise the captured mismatch, or
+   *         {@link MismatchReporter.Mismatch#NOT_CAPTURED}.
+   */
+  private MismatchReporter.Mismatch compare(XmlMatcherValue testValue, boolean capturing) {
+    if (usesCanonicalComparison(testValue)) {
+      return matchesCanonically(testValue, capturing);
+    }
+
+    List<CheckedOutDocument> checkedOut = CHECKED_OUT_DOCUMENTS.get();
+    int previouslyCheckedOut = checkedOut.size();
     try (XMLUnitContext context = new XMLUnitContext(this.settings)) {
       Diff diff;
       diff = initializeDiff(expectedValue, testValue);
       diff = configureDiff(diff);
 
-      boolean success = false;
-      if (settings.contains(Setting.ONLY_COMPARE_SIMILARITY)) {
-        success = diff.similar();
+      try {
+        boolean success = false;
+        if (settings.contains(Setting.ONLY_COMPARE_SIMILARITY)) {
+          success = diff.similar();
+        }
+        else {
+          success = diff.identical();
+        }
+
+        if (success) {
+          return null;
+        }
+        // the documents and spilled differences are only available until the comparison ends
+        return capturing ? captureMismatch(diff, testValue)
+            : MismatchReporter.Mismatch.NOT_CAPTURED;
       }
-      else {
-        success = diff.identical();
+      finally {
+        if (diff instanceof SpillingDiff) {
+          ((SpillingDiff) diff).close();
+        }
       }
-
-      if (!success) {
-        StringBuffer diffMessage = new StringBuffer();
-        diff.appendMessage(diffMessage);
-        mismatchDescription.appendText(diffMessage.toString());
-        mismatchDescription.appendDescriptionOf(testValue);
+    }
+    finally {
+      while (checkedOut.size() > previouslyCheckedOut) {
+        CheckedOutDocument document = checkedOut.remove(checkedOut.size() - 1);
+        document.value.checkInParsedDocument(document.document);
       }
-      return success;
     }
   }
 
+  private boolean usesCanonicalComparison(XmlMatcherValue testValue) {
+    long threshold = options.canonicalComparisonThreshold;
+    if (threshold == MatcherOptions.NEVER || !options.treatmentOverrides.isEmpty()
+        || options.ignoreRules.hasPlaceholders()
+        || settings.contains(Setting.ONLY_COMPARE_SIMILARITY)) {
+      return false;
+    }
+    long expectedSize = expectedValue.getSizeHint();
+    long testSize = testValue.getSizeHint();
+    return expectedSize >= 0 && testSize >= 0 && Math.max(expectedSize, testSize) >= threshold;
+  }
+
+  /**
+   * Compare the digests of the canonical forms of the values, only collecting and diffing the
+   * canonical lines when a mismatch needs to be captured.
+   */
+  private MismatchReporter.Mismatch matchesCanonically(XmlMatcherValue testValue,
+      boolean capturing) {
+    byte[] expectedDigest = expectedCanonicalDigest;
+    if (expectedDigest == null) {
+      expectedDigest = expectedCanonicalDigest = canonicalComparison.digest(expectedValue);
+    }
+    if (MessageDigest.isEqual(expectedDigest, canonicalComparison.digest(testValue))) {
+      return null;
+    }
+    if (!capturing) {
+      return MismatchReporter.Mismatch.NOT_CAPTURED;
+    }
+    List<MyersDiff.Edit> edits = MyersDiff.diff(canonicalComparison.lines(expectedValue),
+        canonicalComparison.lines(testValue), MAX_CANONICAL_EDIT_DISTANCE);
+    return options.reporter.captureCanonical(edits, MAX_CANONICAL_EDIT_DISTANCE, testValue);
+  }
+
+  /**
+   * Capture a failed comparison. Differences collected by a {@link DetailedDiff} (or partially
+   * spilled to disk) are captured by this matcher's {@link MismatchReporter}; any other kind of
+   * {@code Diff} can only describe itself as a single message, without listing its differences.
+   */
+  @SuppressWarnings("unchecked")
+  private MismatchReporter.Mismatch captureMismatch(Diff diff, final XmlMatcherValue testValue) {
+    if (diff instanceof SpillingDiff) {
+      return options.reporter.capture(((SpillingDiff) diff).getDifferences(), testValue);
+    }
+    else if (diff instanceof DetailedDiff) {
+      List<Difference> differences = ((DetailedDiff) diff).getAllDifferences();
+      return options.reporter.capture(differences, testValue);
+    }
+    final StringBuffer diffMessage = new StringBuffer();
+    diff.appendMessage(diffMessage);
+    return new MismatchReporter.Mismatch(Collections.<MatchDifference>emptyList(), -1) {
+      @Override
+      public void describeTo(Description description) {
+        description.appendText(diffMessage.toString()).appendDescriptionOf(testValue);
+      }
+    };
+  }
+
   /**
    * Create an initialized {@link Diff} based on the specified {@link XmlMatcherValue}s. By default,
-   * simply calls {@link Diff#Diff(org.xml.sax.InputSource, org.xml.sax.InputSource)} using the
-   * results of {@link XmlMatcherValue#get()}. Subclasses may override this method to control the
+   * parses the values the same way as {@link Diff#Diff(org.xml.sax.InputSource,
+   * org.xml.sax.InputSource)} would, but reuses the documents memoized by the values, so that a
+   * value checked by several matchers is only parsed once. The values are compared by a
+   * {@link NamespaceAwareDifferenceEngine}, which doesn't report differences that the
+   * {@link #configureDiff(Diff) configured} listener ignores outright (such as namespace prefixes,
+   * when tolerated) in the first place. Subclasses may override this method to control the
    * {@code Diff} construction.
    * 
    * @param controlValue the XML value with which this matcher was originally created (in other
@@ -162,13 +571,42 @@ public class XmlEquivalenceMatcher extends TypeSafeDiagnosingMatcher<XmlMatcherV
    */
   protected Diff initializeDiff(XmlMatcherValue controlValue, XmlMatcherValue testValue) {
     try {
-      return new Diff(controlValue.get(), testValue.get());
+      return new Diff(parsedDocument(controlValue, true), parsedDocument(testValue, false),
+          new NamespaceAwareDifferenceEngine(differenceListener));
     }
     catch (IOException | SAXException e) {
       throw new RuntimeException("Exception occurred while initializing XML matcher values.", e);
     }
   }
 
+  /**
+   * Get the DOM of a value, reusing the one memoized by the value if it was parsed with the same
+   * XMLUnit parser configuration. XMLUnit never modifies the documents it compares (it copies them
+   * to normalize them or strip whitespace and comments), so a memoized document can safely be
+   * shared between matchers. Comparisons sharing an {@link XMLUnitContext} may run concurrently,
+   * though, so the memoized document is checked out until the comparison completes, and a
+   * concurrent comparison of the same value parses its own.
+   */
+  private static Document parsedDocument(XmlMatcherValue value, boolean control)
+      throws IOException, SAXException {
+    DocumentBuilderFactory factory = control ? XMLUnit.getControlDocumentBuilderFactory()
+        : XMLUnit.getTestDocumentBuilderFactory();
+    Document ret = value.checkOutParsedDocument(factory);
+    boolean reused = ret != null;
+    if (!reused) {
+      ret = XMLUnit.buildDocument(control ? XMLUnit.newControlParser() : XMLUnit.newTestParser(),
+          value.get());
+    }
+    if (reused || value.setParsedDocument(factory, ret)) {
+      CHECKED_OUT_DOCUMENTS.get().add(new CheckedOutDocument(value, ret));
+    }
+    MatchStatistics statistics = MatchStatistics.current();
+    if (statistics != null) {
+      statistics.recordParse(value, reused);
+    }
+    return ret;
+  }
+
   /**
    * Create a {@link Diff} object for comparing XML values. It requires a "base" {@code Diff} that
    * has already been populated with the values, and may return that same object with appropriate
@@ -176,18 +614,46 @@ public class XmlEquivalenceMatcher extends TypeSafeDiagnosingMatcher<XmlMatcherV
    * 
    * By default, it wraps the {@code Diff} object in a {@link DetailedDiff} for better comparison
    * output, then uses {@link DetailedDiff#overrideDifferenceListener(DifferenceListener)} to
-   * replacing the default behavior with a {@link ConfigurableDifferenceListener} for the settings
-   * of this matcher.
+   * replacing the default behavior with the {@link ConfigurableDifferenceListener} compiled from
+   * the settings and difference treatments of this matcher. If the matcher is
+   * {@link #spillingDifferencesAfter(int) spilling differences}, a {@code Diff} collecting them
+   * partially on disk is used instead.
    * 
    * @param control
    * @param test
    * @return
    */
   protected Diff configureDiff(Diff baseDiff) {
-    ConfigurableDifferenceListener diffListener = new ConfigurableDifferenceListener(settings);
-    baseDiff.overrideDifferenceListener(diffListener);
-    Diff ret = new DetailedDiff(baseDiff);
-    ret.overrideDifferenceListener(diffListener);
+    baseDiff.overrideDifferenceListener(differenceListener);
+    if (options.maxDifferencesInMemory != MatcherOptions.UNLIMITED) {
+      return new SpillingDiff(baseDiff, differenceListener, options.maxDifferencesInMemory);
+    }
+    Diff ret = new ListenerAwareDiff(baseDiff);
+    ret.overrideDifferenceListener(differenceListener);
     return ret;
   }
+
+  /**
+   * {@link DetailedDiff} that tells its {@link NamespaceAwareDifferenceEngine} which listener it
+   * delegates to, so that the engine stops skipping ignored differences if a subclass overrides it.
+   */
+  private static class ListenerAwareDiff extends DetailedDiff
+      implements NamespaceAwareDifferenceEngine.ListenerAware {
+    private DifferenceListener differenceListener;
+
+    ListenerAwareDiff(Diff prototype) {
+      super(prototype);
+    }
+
+    @Override
+    public void overrideDifferenceListener(DifferenceListener delegate) {
+      super.overrideDifferenceListener(delegate);
+      differenceListener = delegate;
+    }
+
+    @Override
+    public DifferenceListener getDifferenceListener() {
+      return differenceListener;
+    }
+  }
 }
@@ -0,0 +1,126 @@
+package org.ph0.xmatch;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Matching resources scoped to a test class (or any other unit of work), rather than shared by
+ * the whole process: a {@link XmlValueCache} with its own byte budget, and a dedicated executor
+ * for asynchronous matching and batch marshalling, and its own JAXB contexts. Parsers and the JAXB
+ * contexts of the specified types are warmed up when the runtime is created, so that the first
+ * test doesn't pay for them.
+ *
+ * Everything is torn down deterministically when the runtime is {@link #close() closed}, rather
+ * than whenever the garbage collector gets around to it. Usually managed by a
+ * {@link XmlMatcherRuntimeRule}.
+ *
+ * @author phanley
+ */
+public final class XmlMatcherRuntime implements Closeable {
+  private static final Logger log = Logger.getLogger(XmlMatcherRuntime.class.getName());
+
+  private static final long TERMINATION_TIMEOUT_SECONDS = 10;
+
+  private final XmlValueCache cache;
+  private final ExecutorService executor;
+  private final JaxbMarshalling.OwnedContexts jaxbContexts = new JaxbMarshalling.OwnedContexts();
+  private volatile boolean closed = false;
+
+  XmlMatcherRuntime(long cacheBudget, int threads, Collection<Class<?>> jaxbTypes) {
+    this.cache = new XmlValueCache(cacheBudget);
+    this.executor =
+        Executors.newFixedThreadPool(threads, MatchExecutors.daemonThreadFactory("xmatch-runtime"));
+    XmlMatcherWarmUp.warmUp(jaxbTypes, jaxbContexts);
+  }
+
+  /**
+   * Like {@link XmlMatchers#xmlResource(Class, String)}, but interned in this runtime's cache.
+   */
+  public XmlMatcherValue xmlResource(Class<?> loadingClass, String path) {
+    checkOpen();
+    return cache.intern(XmlMatchers.resourceUrl(loadingClass, path));
+  }
+
+  /**
+   * Like {@link XmlMatchers#jaxbXmlForAll(Collection)}, but on this runtime's executor, and with
+   * this runtime's JAXB contexts. Safe to call from tasks running on this runtime's executor.
+   */
+  public List<XmlMatcherValue> jaxbXmlForAll(Collection<?> objects) {
+    checkOpen();
+    return XmlMatchers.jaxbXmlForAll(objects, jaxbContexts, executor);
+  }
+
+  /**
+   * Like {@link XmlEquivalenceMatcher#matchAsync(XmlMatcherValue)}, but on this runtime's
+   * executor.
+   */
+  public Future<MatchResult> matchAsync(XmlEquivalenceMatcher matcher, XmlMatcherValue testValue) {
+    checkOpen();
+    return matcher.matchAsync(testValue, executor);
+  }
+
+  /**
+   * Like {@link XmlEquivalenceMatcher#matchAsync(Callable, java.util.concurrent.Executor)}, but
+   * on this runtime's executor.
+   */
+  public Future<MatchResult> matchAsync(XmlEquivalenceMatcher matcher,
+      Callable<? extends XmlMatcherValue> testValueFetcher) {
+    checkOpen();
+    return matcher.matchAsync(testValueFetcher, executor);
+  }
+
+  public XmlValueCache getCache() {
+    return cache;
+  }
+
+  public ExecutorService getExecutor() {
+    return executor;
+  }
+
+  int getJaxbContextCount() {
+    return jaxbContexts.size();
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Stop the executor (interrupting any running tasks, and waiting for them to finish), and drop
+   * the cached values and JAXB contexts.
+   */
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    executor.shutdownNow();
+    try {
+      if (!executor.awaitTermination(TERMINATION_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        log.warning("Matching tasks still running " + TERMINATION_TIMEOUT_SECONDS
+            + " seconds after the xmatch runtime was closed.");
+      }
+    }
+    catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    }
+    finally {
+      cache.clear();
+      jaxbContexts.clear();
+    }
+  }
+
+  private void checkOpen() {
+    if (closed) {
+      throw new IllegalStateException("xmatch runtime has already been closed.");
+    }
+  }
+}
@@ -0,0 +1,106 @@
+package org.ph0.xmatch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.rules.ExternalResource;
+
+/**
+ * JUnit rule owning an {@link XmlMatcherRuntime} for the duration of a test class (as a
+ * {@code @ClassRule}) or of each test (as a {@code @Rule}). The runtime is created, and warmed
+ * up, before the tests run, and closed as soon as they finish:
+ *
+ * <pre>
+ * &#64;ClassRule
+ * public static final XmlMatcherRuntimeRule xmatch =
+ *     new XmlMatcherRuntimeRule().withCacheBudget(16 * 1024 * 1024).warmingUpJaxb(Foo.class);
+ *
+ * &#64;Test
+ * public void testFoo() {
+ *   assertThat(foo, isJaxbObject(equivalentTo(xmatch.getRuntime().xmlResource(..))));
+ * }
+ * </pre>
+ *
+ * @author phanley
+ */
+public final class XmlMatcherRuntimeRule extends ExternalResource {
+  public static final long DEFAULT_CACHE_BUDGET = 16L * 1024 * 1024;
+
+  private final long cacheBudget;
+  private final int threads;
+  private final List<Class<?>> jaxbTypes;
+  private volatile XmlMatcherRuntime runtime;
+
+  public XmlMatcherRuntimeRule() {
+    this(DEFAULT_CACHE_BUDGET, Runtime.getRuntime().availableProcessors(),
+        Collections.<Class<?>>emptyList());
+  }
+
+  private XmlMatcherRuntimeRule(long cacheBudget, int threads, List<Class<?>> jaxbTypes) {
+    this.cacheBudget = cacheBudget;
+    this.threads = threads;
+    this.jaxbTypes = jaxbTypes;
+  }
+
+  /**
+   * @param cacheBudget the total content size of the most recently used resources the runtime's
+   *        {@link XmlValueCache} keeps strongly referenced.
+   * @return
+   */
+  public XmlMatcherRuntimeRule withCacheBudget(long cacheBudget) {
+    if (cacheBudget < 0) {
+      throw new IllegalArgumentException("Cache budget must not be negative.");
+    }
+    return new XmlMatcherRuntimeRule(cacheBudget, this.threads, this.jaxbTypes);
+  }
+
+  /**
+   * @param threads the number of threads of the runtime's executor.
+   * @return
+   */
+  public XmlMatcherRuntimeRule withThreads(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("A runtime needs at least one thread.");
+    }
+    return new XmlMatcherRuntimeRule(this.cacheBudget, threads, this.jaxbTypes);
+  }
+
+  /**
+   * @param jaxbTypes types whose JAXB contexts to create up front.
+   * @return
+   */
+  public XmlMatcherRuntimeRule warmingUpJaxb(Class<?>... jaxbTypes) {
+    List<Class<?>> newTypes = new ArrayList<Class<?>>(this.jaxbTypes);
+    newTypes.addAll(Arrays.asList(jaxbTypes));
+    return new XmlMatcherRuntimeRule(this.cacheBudget, this.threads,
+        Collections.unmodifiableList(newTypes));
+  }
+
+  /**
+   * @return the runtime of the running test (class).
+   * @throws IllegalStateException if no test is running.
+   */
+  public XmlMatcherRuntime getRuntime() {
+    XmlMatcherRuntime ret = runtime;
+    if (ret == null) {
+      throw new IllegalStateException("xmatch runtime is only available while tests are running.");
+    }
+    return ret;
+  }
+
+  @Override
+  protected void before() {
+    runtime = new XmlMatcherRuntime(cacheBudget, threads, jaxbTypes);
+  }
+
+  @Override
+  protected void after() {
+    XmlMatcherRuntime closing = runtime;
+    runtime = null;
+    if (closing != null) {
+      closing.close();
+    }
+  }
+}
@@ -1,11 +1,15 @@
 package org.ph0.xmatch;
 
-import java.io.ByteArrayInputStream;
 import java.io.StringReader;
+import java.lang.ref.SoftReference;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.xml.parsers.DocumentBuilderFactory;
 
 import org.hamcrest.Description;
 import org.hamcrest.SelfDescribing;
+import org.w3c.dom.Document;
 import org.xml.sax.InputSource;
 
 /**
@@ -18,35 +22,87 @@ import org.xml.sax.InputSource;
  * @author phanley
  */
 public class XmlMatcherValue implements SelfDescribing, InputSourceSupplier {
+  /**
+   * Supplies readers over XML text. Other {@link CharSequence}s than strings are read in place,
+   * rather than being copied into a string, so they must not be modified while in use.
+   */
+  static final class XmlTextSupplier implements InputSourceSupplier {
+    private final CharSequence xmlText;
+
+    XmlTextSupplier(CharSequence xmlText) {
+      this.xmlText = xmlText;
+    }
+
+    int length() {
+      return xmlText.length();
+    }
+
+    @Override
+    public InputSource get() {
+      if (xmlText instanceof String) {
+        return new InputSource(new StringReader((String) xmlText));
+      }
+      return new InputSource(new CharSequenceReader(xmlText));
+    }
+
+    @Override
+    public String toString() {
+      return xmlText.toString();
+    }
+  }
+
+  /**
+   * A parsed form of the value, along with the factory of the parser that produced it. XMLUnit
+   * reconfigures its factories in place (e.g. to coalesce CDATA sections), so the factory's
+   * configuration at the time is kept too.
+   */
+  private static final class ParsedDocument {
+    final DocumentBuilderFactory factory;
+    final int factoryConfiguration;
+    final SoftReference<Document> document;
+    final AtomicBoolean checkedOut;
+
+    ParsedDocument(DocumentBuilderFactory factory, Document document, boolean checkedOut) {
+      this.factory = factory;
+      this.factoryConfiguration = configurationOf(factory);
+      this.document = new SoftReference<Document>(document);
+      this.checkedOut = new AtomicBoolean(checkedOut);
+    }
+
+    boolean parsedBy(DocumentBuilderFactory factory) {
+      return this.factory == factory && factoryConfiguration == configurationOf(factory);
+    }
+
+    private static int configurationOf(DocumentBuilderFactory factory) {
+      return (factory.isCoalescing() ? 1 : 0) | (factory.isExpandEntityReferences() ? 2 : 0)
+          | (factory.isIgnoringComments() ? 4 : 0)
+          | (factory.isIgnoringElementContentWhitespace() ? 8 : 0)
+          | (factory.isNamespaceAware() ? 16 : 0) | (factory.isValidating() ? 32 : 0)
+          | (factory.isXIncludeAware() ? 64 : 0);
+    }
+  }
+
   private final InputSourceSupplier inputSourceSupplier;
   private final String sourceDescription;
-  private final String valueText;
+  private volatile String valueText;
+  private volatile ParsedDocument parsedDocument;
 
   protected XmlMatcherValue(final CharSequence xmlText, String sourceDescription,
       String valueText) {
 
-    this(sourceDescription, valueText, new InputSourceSupplier() {
-      final String xmlTextStr = xmlText.toString();
-
-      @Override
-      public InputSource get() {
-        return new InputSource(new StringReader(xmlTextStr));
-      }
-    });
+    this(sourceDescription, valueText, new XmlTextSupplier(xmlText.toString()));
   }
 
   protected XmlMatcherValue(final byte[] xmlBytes, String sourceDescription, String valueText) {
 
-    this(sourceDescription, valueText, new InputSourceSupplier() {
-      final byte[] xmlByteArray = Arrays.copyOf(xmlBytes, xmlBytes.length);
-
-      @Override
-      public InputSource get() {
-        return new InputSource(new ByteArrayInputStream(xmlByteArray));
-      }
-    });
+    this(sourceDescription, valueText,
+        new XmlContent(Arrays.copyOf(xmlBytes, xmlBytes.length)));
   }
 
+  /**
+   * @param valueText the textual representation of the value, or {@code null} to render it from
+   *        the document when it's first needed, e.g. to describe a mismatch.
+   */
   protected XmlMatcherValue(String sourceDescription, String valueText,
       InputSourceSupplier inputSourceSupplier) {
 
@@ -60,14 +116,106 @@ public class XmlMatcherValue implements SelfDescribing, InputSourceSupplier {
     description.appendText(this.toString());
   }
 
+  /**
+   * @return the size of this value's document in bytes (or characters, for text), or {@code -1}
+   *         if it isn't known without reading the document.
+   */
+  long getSizeHint() {
+    if (inputSourceSupplier instanceof XmlContent) {
+      return ((XmlContent) inputSourceSupplier).size();
+    }
+    else if (inputSourceSupplier instanceof XmlTextSupplier) {
+      return ((XmlTextSupplier) inputSourceSupplier).length();
+    }
+    else if (inputSourceSupplier instanceof XmlBuffer) {
+      return ((XmlBuffer) inputSourceSupplier).size();
+    }
+    return -1;
+  }
+
   @Override
   public InputSource get() {
     return this.inputSourceSupplier.get();
   }
 
+  /**
+   * @return the memoized DOM of this value, as parsed by a parser from the specified factory, or
+   *         {@code null} if it hasn't been parsed by one (or has been reclaimed since).
+   */
+  Document getParsedDocument(DocumentBuilderFactory factory) {
+    ParsedDocument parsed = parsedDocument;
+    return parsed != null && parsed.parsedBy(factory) ? parsed.document.get() : null;
+  }
+
+  /**
+   * Check out the memoized DOM of this value for exclusive use, until it's
+   * {@link #checkInParsedDocument(Document) checked back in}. DOM implementations aren't safe for
+   * concurrent reading (Xerces, for one, expands deferred nodes and caches node lists as they're
+   * read), so concurrent comparisons of the same value each need a document of their own.
+   *
+   * @return the memoized document, or {@code null} if it hasn't been parsed by a parser from the
+   *         specified factory, has been reclaimed since, or is checked out already.
+   */
+  Document checkOutParsedDocument(DocumentBuilderFactory factory) {
+    ParsedDocument parsed = parsedDocument;
+    if (parsed == null || !parsed.parsedBy(factory)) {
+      return null;
+    }
+    Document ret = parsed.document.get();
+    return ret != null && parsed.checkedOut.compareAndSet(false, true) ? ret : null;
+  }
+
+  /**
+   * Memoize the DOM of this value, so that several matchers checking the same value only parse it
+   * once, unless a usable document is memoized already (and merely checked out). The document is
+   * only softly referenced, and must not be modified by anyone using it.
+   *
+   * @return whether the document was memoized, in which case it's checked out by the caller.
+   */
+  boolean setParsedDocument(DocumentBuilderFactory factory, Document document) {
+    ParsedDocument parsed = parsedDocument;
+    if (parsed != null && parsed.parsedBy(factory) && parsed.document.get() != null) {
+      return false;
+    }
+    parsedDocument = new ParsedDocument(factory, document, true);
+    return true;
+  }
+
+  void checkInParsedDocument(Document document) {
+    ParsedDocument parsed = parsedDocument;
+    if (parsed != null && parsed.document.get() == document) {
+      parsed.checkedOut.set(false);
+    }
+  }
+
+  InputSourceSupplier getInputSourceSupplier() {
+    return inputSourceSupplier;
+  }
+
+  String getValueText() {
+    String ret = valueText;
+    if (ret == null) {
+      if (inputSourceSupplier instanceof XmlTextSupplier) {
+        ret = inputSourceSupplier.toString();
+      }
+      else {
+        ret = XmlMatchers.prettyXml(inputSourceSupplier.get());
+      }
+      valueText = ret;
+    }
+    return ret;
+  }
+
+  /**
+   * @return the brief description of this value's origin, or {@code null} if none was supplied.
+   */
+  public String getSourceDescription() {
+    return sourceDescription;
+  }
+
   @Override
   public String toString() {
-    String ret = valueText;
+    String ret = getValueText();
     if (sourceDescription != null) {
       ret = sourceDescription + ":\n" + ret;
     }
@@ -0,0 +1,178 @@
+package org.ph0.xmatch;
+
+import static org.ph0.xmatch.XmlMatchers.equivalentTo;
+import static org.ph0.xmatch.XmlMatchers.jaxbXml;
+import static org.ph0.xmatch.XmlMatchers.xmlText;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.bind.JAXBElement;
+import javax.xml.namespace.QName;
+
+import org.hamcrest.StringDescription;
+
+/**
+ * Pre-initializes everything the first assertion of a JVM would otherwise pay for: JAXP and JAXB
+ * service discovery, parser and transformer factories, XMLUnit's static configuration, the JAXB
+ * contexts of specified types, and the class loading of both the DOM and canonical comparison
+ * paths (including mismatch reporting), by matching a small built-in document.
+ *
+ * Warm-up is usually requested through {@link XmlMatchers#warmUp(Class...)} or
+ * {@link XmlMatchers#warmUpInBackground(Class...)}, or automatically in the background as soon as
+ * {@code XmlMatchers} is loaded, by setting the system property {@value #WARM_UP_PROPERTY} to
+ * {@code true}, with the JAXB types to warm up (if any) listed by their class names in
+ * {@value #WARM_UP_JAXB_TYPES_PROPERTY}, separated by commas.
+ *
+ * Since warm-up only loads classes through the usual class loaders, it also serves as the
+ * training run for an AppCDS class-data sharing archive, which saves the class loading itself:
+ *
+ * <pre>
+ * java -XX:ArchiveClassesAtExit=xmatch.jsa -cp &lt;test classpath&gt; \
+ *     org.ph0.xmatch.XmlMatcherWarmUp com.example.Order com.example.Invoice
+ * </pre>
+ *
+ * and then run the tests with {@code -XX:SharedArchiveFile=xmatch.jsa} (and the same classpath).
+ *
+ * @author phanley
+ */
+public final class XmlMatcherWarmUp {
+  private static final Logger log = Logger.getLogger(XmlMatcherWarmUp.class.getName());
+
+  public static final String WARM_UP_PROPERTY = "xmatch.warmUp";
+  public static final String WARM_UP_JAXB_TYPES_PROPERTY = "xmatch.warmUp.jaxbTypes";
+
+  private static final String WARM_UP_XML = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+      + "<xmatch xmlns:w=\"urn:xmatch:warm-up\" warm-up=\"true\">\n"
+      + "  <!-- warm-up --><w:value w:kind=\"cdata\"><![CDATA[<>]]></w:value>\n</xmatch>";
+  private static final String MISMATCHED_XML = "<xmatch xmlns:v=\"urn:xmatch:warm-up\" "
+      + "warm-up=\"false\"><v:value v:kind=\"cdata\">&lt;&gt;</v:value></xmatch>";
+
+  private static boolean builtInsWarmedUp = false;
+
+  private XmlMatcherWarmUp() {}
+
+  /**
+   * Warm up on the calling thread, then exit; see the class documentation for using this as the
+   * training run of a class-data sharing archive.
+   *
+   * @param args the class names of JAXB types to warm up.
+   */
+  public static void main(String[] args) throws ClassNotFoundException {
+    List<Class<?>> jaxbTypes = new ArrayList<Class<?>>(args.length);
+    for (String className : args) {
+      jaxbTypes.add(Class.forName(className));
+    }
+    warmUp(jaxbTypes);
+  }
+
+  /**
+   * Warm up on the calling thread. The built-in parts are only warmed up once per JVM; JAXB
+   * contexts are cached per type anyway.
+   */
+  static void warmUp(Collection<Class<?>> jaxbTypes) {
+    warmUp(jaxbTypes, JaxbMarshalling.SHARED_CONTEXTS);
+  }
+
+  /**
+   * @param contexts where to create the JAXB contexts.
+   */
+  static void warmUp(Collection<Class<?>> jaxbTypes, JaxbMarshalling.Contexts contexts) {
+    long start = System.nanoTime();
+    warmUpBuiltIns();
+    for (Class<?> jaxbType : jaxbTypes) {
+      contexts.contextFor(jaxbType);
+    }
+    if (log.isLoggable(Level.FINE)) {
+      log.fine("xmatch warm-up of " + jaxbTypes.size() + " JAXB types took "
+          + (System.nanoTime() - start) / 1000000 + "ms.");
+    }
+  }
+
+  /**
+   * Warm up on a new daemon thread.
+   *
+   * @return the warm-up, which callers may wait for, but needn't.
+   */
+  static Future<?> warmUpInBackground(Collection<Class<?>> jaxbTypes) {
+    final List<Class<?>> types = new ArrayList<Class<?>>(jaxbTypes);
+    FutureTask<Void> ret = new FutureTask<Void>(new Callable<Void>() {
+      @Override
+      public Void call() {
+        try {
+          warmUp(types);
+        }
+        catch (RuntimeException e) {
+          log.log(Level.WARNING, "xmatch warm-up failed.", e);
+          throw e;
+        }
+        return null;
+      }
+    });
+    MatchExecutors.daemonThreadFactory("xmatch-warm-up").newThread(ret).start();
+    return ret;
+  }
+
+  /**
+   * Start a background warm-up if one was requested by system properties.
+   */
+  static void warmUpIfRequested() {
+    if (!Boolean.getBoolean(WARM_UP_PROPERTY)) {
+      return;
+    }
+    String typeNames = System.getProperty(WARM_UP_JAXB_TYPES_PROPERTY, "").trim();
+    List<Class<?>> jaxbTypes = new ArrayList<Class<?>>();
+    if (!typeNames.isEmpty()) {
+      ClassLoader loader = Thread.currentThread().getContextClassLoader();
+      for (String typeName : typeNames.split("\\s*,\\s*")) {
+        try {
+          jaxbTypes.add(Class.forName(typeName, false,
+              loader != null ? loader : XmlMatcherWarmUp.class.getClassLoader()));
+        }
+        catch (ClassNotFoundException cnfe) {
+          log.warning("JAXB type to warm up not found: " + typeName);
+        }
+      }
+    }
+    warmUpInBackground(jaxbTypes);
+  }
+
+  private static synchronized void warmUpBuiltIns() {
+    if (builtInsWarmedUp) {
+      return;
+    }
+    runBuiltIns();
+    builtInsWarmedUp = true;
+  }
+
+  /**
+   * Marshal and match the built-in documents, leaving them out of the {@link MatchStatistics}.
+   */
+  static void runBuiltIns() {
+    boolean suppressed = MatchStatistics.suppressOnCurrentThread(true);
+    try {
+      jaxbXml(new JAXBElement<String>(new QName("urn:xmatch:warm-up", "value"), String.class,
+          "warm-up"));
+
+      XmlEquivalenceMatcher dom = equivalentTo(WARM_UP_XML);
+      XmlEquivalenceMatcher canonical = dom.comparingCanonicallyAbove(0);
+      XmlMatcherValue mismatched = xmlText(MISMATCHED_XML);
+      for (XmlEquivalenceMatcher matcher : Arrays.asList(dom, canonical)) {
+        matcher.matches(xmlText(WARM_UP_XML));
+        if (!matcher.matches(mismatched)) {
+          matcher.describeMismatch(mismatched, new StringDescription());
+        }
+      }
+    }
+    finally {
+      MatchStatistics.suppressOnCurrentThread(suppressed);
+    }
+  }
+}
@@ -1,18 +1,26 @@
 package org.ph0.xmatch;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringWriter;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBElement;
-import javax.xml.bind.JAXBException;
-import javax.xml.bind.Marshaller;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.sax.SAXSource;
@@ -34,13 +42,29 @@ import org.xml.sax.InputSource;
  *
  */
 public class XmlMatchers {
-  
+  static {
+    XmlMatcherWarmUp.warmUpIfRequested();
+  }
+
   public static <T> Matcher<? super T> isXml(final XmlEquivalenceMatcher matcher) {
+    return isXml(matcher, null);
+  }
+
+  /**
+   * Match XML supplied as text ({@link CharSequence}), raw bytes ({@code byte[]} or
+   * {@link ByteBuffer}), or a {@link URL} or {@link URI} to read it from. Bytes and text are
+   * handed to the parser as they are, without being copied or decoded into intermediate strings.
+   * 
+   * @param declaredCharset the charset of byte input, so that the parser doesn't have to detect
+   *        it; or {@code null} to detect it from the byte order mark or XML declaration.
+   */
+  public static <T> Matcher<? super T> isXml(final XmlEquivalenceMatcher matcher,
+      final Charset declaredCharset) {
     return (Matcher<? super T>) new CustomMatcher<Object>("") {
       @Override
       public boolean matches(Object item) {
         if (item instanceof CharSequence) {
-          return matcher.matches(xmlText((CharSequence) item));
+          return matcher.matches(recentXmlText((CharSequence) item));
         }
         else if (item instanceof URL) {
           return matcher.matches(xmlAt((URL) item));
@@ -49,7 +73,10 @@ public class XmlMatchers {
           return matcher.matches(xmlAt((URI) item));
         }
         else if (item instanceof byte[]) {
-          return matcher.matches(xmlAt((URL) item));
+          return matcher.matches(xmlBytes((byte[]) item, declaredCharset));
+        }
+        else if (item instanceof ByteBuffer) {
+          return matcher.matches(xmlBytes((ByteBuffer) item, declaredCharset));
         }
         return false;
       }
@@ -74,7 +101,7 @@ public class XmlMatchers {
     return new TypeSafeMatcher<CharSequence>() {
       @Override
       public boolean matchesSafely(CharSequence xml) {
-        return matcher.matches(xmlText(xml));
+        return matcher.matches(recentXmlText(xml));
       }
 
       @Override
@@ -101,11 +128,76 @@ public class XmlMatchers {
         .enabling(Setting.ONLY_COMPARE_SIMILARITY);
   }
 
+  /**
+   * Match values against a golden file, which is recorded from the first value matched if it
+   * doesn't exist yet. Uses the {@link XmlEquivalenceMatcher#defaultSettings() default settings}.
+   * 
+   * @see XmlSnapshotMatcher
+   */
+  public static final XmlSnapshotMatcher matchesSnapshot(File goldenFile) {
+    return new XmlSnapshotMatcher(goldenFile, XmlEquivalenceMatcher.defaultSettings(),
+        MismatchReporter.defaultReporter());
+  }
+
+  /**
+   * Match a stream of messages as they arrive, each against the same template.
+   * 
+   * @see XmlStreamMatcher
+   */
+  public static final XmlStreamMatcher eachMessageMatching(XmlEquivalenceMatcher template) {
+    return XmlStreamMatcher.matchingEach(template);
+  }
+
+  /**
+   * Match a stream of messages as they arrive, each against the corresponding template.
+   * 
+   * @see XmlStreamMatcher
+   */
+  public static final XmlStreamMatcher messagesMatching(
+      Iterable<? extends XmlEquivalenceMatcher> templates) {
+    return XmlStreamMatcher.matchingInOrder(templates);
+  }
+
   public static final XmlMatcherValue xmlText(CharSequence xmlString) {
     String str = xmlString.toString();
     return new XmlMatcherValue(str, "XML text", str);
   }
 
+  /**
+   * Create a value for the raw bytes of an XML document, whose encoding is detected by the parser.
+   * The array isn't copied, so it must not be modified while the value is in use.
+   */
+  public static final XmlMatcherValue xmlBytes(byte[] xmlBytes) {
+    return xmlBytes(xmlBytes, null);
+  }
+
+  /**
+   * Create a value for the raw bytes of an XML document in the specified charset (or {@code null}
+   * to detect it). The array isn't copied, so it must not be modified while the value is in use.
+   */
+  public static final XmlMatcherValue xmlBytes(byte[] xmlBytes, Charset declaredCharset) {
+    return xmlBytes(ByteBuffer.wrap(xmlBytes), declaredCharset);
+  }
+
+  /**
+   * Create a value for the bytes of an XML document between the buffer's position and limit,
+   * whose encoding is detected by the parser. The bytes aren't copied, so they must not be
+   * modified while the value is in use; the buffer's position and limit may be.
+   */
+  public static final XmlMatcherValue xmlBytes(ByteBuffer xmlBytes) {
+    return xmlBytes(xmlBytes, null);
+  }
+
+  /**
+   * Create a value for the bytes of an XML document between the buffer's position and limit, in
+   * the specified charset (or {@code null} to detect it).
+   * 
+   * @see #xmlBytes(ByteBuffer)
+   */
+  public static final XmlMatcherValue xmlBytes(ByteBuffer xmlBytes, Charset declaredCharset) {
+    return new XmlMatcherValue("XML bytes", null, new XmlBuffer(xmlBytes, declaredCharset));
+  }
+
   public static final XmlMatcherValue jaxbXml(JAXBElement<?> jaxbObj) {
     return jaxbXmlFor(jaxbObj, jaxbObj.getDeclaredType());
   }
@@ -115,39 +207,93 @@ public class XmlMatchers {
   }
 
   public static final XmlMatcherValue jaxbXmlFor(Object obj, Class<?> jaxbType) {
-    StringWriter xmlSink = new StringWriter();
-    try {
-      JAXBContext jaxbContext = JAXBContext.newInstance(jaxbType);
-      final Marshaller marshaller = jaxbContext.createMarshaller();
-      marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
-      marshaller.marshal(obj, xmlSink);
+    MatchStatistics statistics = MatchStatistics.current();
+    if (statistics == null) {
+      return JaxbMarshalling.marshal(obj, jaxbType);
     }
-    catch (JAXBException je) {
-      throw new IllegalStateException(
-          "Error occured during marshalling of " + jaxbType + " object for matching.", je);
+    long start = System.nanoTime();
+    XmlMatcherValue ret = JaxbMarshalling.marshal(obj, jaxbType);
+    statistics.recordMarshalling(1, System.nanoTime() - start);
+    return ret;
+  }
+
+  /**
+   * Marshal a collection of JAXB objects (or {@link JAXBElement}s), of one or more types, in
+   * parallel on a shared executor. All of them share a single {@link javax.xml.bind.JAXBContext
+   * JAXBContext}, which is much cheaper than {@link #jaxbXmlFor(Object)} for each object.
+   * 
+   * @return the values, in the iteration order of the collection.
+   */
+  public static final List<XmlMatcherValue> jaxbXmlForAll(Collection<?> objects) {
+    return jaxbXmlForAll(objects, MatchExecutors.defaultExecutor());
+  }
+
+  /**
+   * Marshal a collection of JAXB objects (or {@link JAXBElement}s), of one or more types, in
+   * parallel on the specified executor.
+   * 
+   * @see #jaxbXmlForAll(Collection)
+   */
+  public static final List<XmlMatcherValue> jaxbXmlForAll(Collection<?> objects,
+      Executor executor) {
+    return jaxbXmlForAll(objects, JaxbMarshalling.SHARED_CONTEXTS, executor);
+  }
+
+  static List<XmlMatcherValue> jaxbXmlForAll(Collection<?> objects,
+      JaxbMarshalling.Contexts contexts, Executor executor) {
+    MatchStatistics statistics = MatchStatistics.current();
+    if (statistics == null) {
+      return JaxbMarshalling.marshalAll(objects, contexts, executor);
     }
-    String xmlStr = xmlSink.toString();
-    return new XmlMatcherValue(xmlStr, "JAXB object of type " + jaxbType, xmlStr);
+    long start = System.nanoTime();
+    List<XmlMatcherValue> ret = JaxbMarshalling.marshalAll(objects, contexts, executor);
+    statistics.recordMarshalling(ret.size(), System.nanoTime() - start);
+    return ret;
   }
 
+  /**
+   * Create a value for the XML document at the specified {@link URL}. Documents compressed with
+   * any {@link Compression supported codec} (e.g. {@code .xml.gz} files) are detected by their
+   * content, and are decompressed incrementally while being parsed instead of being buffered.
+   */
   public static final XmlMatcherValue xmlAt(URL url) {
-    try (InputStream urlStream = url.openStream()) {
-      ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
-      byte[] data = new byte[1024];
-      int bytesRead = 0;
-      while ((bytesRead = urlStream.read(data)) != -1) {
-        bytesOut.write(data, 0, bytesRead);
+    try {
+      URLConnection connection = url.openConnection();
+      try (InputStream urlStream = new BufferedInputStream(connection.getInputStream())) {
+        Compression compression = Compression.detect(urlStream);
+        if (compression != Compression.NONE) {
+          return new XmlMatcherValue("XML document at URL \"" + url + "\"",
+              "[" + compression + "-compressed content, not rendered]",
+              new CompressedUrlInputSourceSupplier(url, compression));
+        }
+
+        XmlContent content = XmlContent.read(urlStream, connection.getContentLength());
+        MatchStatistics statistics = MatchStatistics.current();
+        if (statistics != null) {
+          statistics.recordLoad(content.size());
+        }
+        return new XmlMatcherValue("XML document at URL \"" + url + "\"",
+            prettyXml(content.get()), content);
       }
-      byte[] urlBytes = bytesOut.toByteArray();
-      
-      return new XmlMatcherValue(urlBytes, "XML document at URL \"" + url + "\"",
-          prettyXml(new InputSource(new ByteArrayInputStream(urlBytes))));
     }
     catch (IOException ioe) {
       throw new RuntimeException("I/O exception occurred while reading from URL: " + url, ioe);
     }
   }
 
+  /**
+   * Defer {@link #xmlAt(URL) reading} a document until it's needed, e.g. by
+   * {@link XmlEquivalenceMatcher#matchAsync(Callable, java.util.concurrent.Executor)}.
+   */
+  public static final Callable<XmlMatcherValue> fetchingXmlAt(final URL url) {
+    return new Callable<XmlMatcherValue>() {
+      @Override
+      public XmlMatcherValue call() {
+        return xmlAt(url);
+      }
+    };
+  }
+
   public static final XmlMatcherValue xmlAt(URI uri) {
     try {
       return xmlAt(uri.toURL());
@@ -158,11 +304,109 @@ public class XmlMatchers {
     }
   }
 
+  /**
+   * Create a value for a classpath resource. Resources are assumed not to change while the JVM is
+   * running, so they're {@link XmlValueCache#shared() interned}: repeated references to a resource
+   * share a single value instead of re-reading it.
+   */
   public static final XmlMatcherValue xmlResource(Class<?> loadingClass, String path) {
-    return xmlAt(loadingClass.getResource(path));
+    return XmlValueCache.shared().intern(resourceUrl(loadingClass, path));
+  }
+
+  /**
+   * Pre-initialize the XML and JAXB machinery, the JAXB contexts of the specified types, and both
+   * comparison engines, so that the first assertion doesn't pay for them.
+   * 
+   * @see XmlMatcherWarmUp
+   */
+  public static final void warmUp(Class<?>... jaxbTypes) {
+    XmlMatcherWarmUp.warmUp(Arrays.asList(jaxbTypes));
+  }
+
+  /**
+   * Like {@link #warmUp(Class...)}, but on a background thread, so that it can overlap with the
+   * rest of the test setup.
+   * 
+   * @return the warm-up, which callers may wait for, but needn't.
+   */
+  public static final Future<?> warmUpInBackground(Class<?>... jaxbTypes) {
+    return XmlMatcherWarmUp.warmUpInBackground(Arrays.asList(jaxbTypes));
+  }
+
+  static URL resourceUrl(Class<?> loadingClass, String path) {
+    URL resource = loadingClass.getResource(path);
+    if (resource == null) {
+      throw new IllegalArgumentException(
+          "No resource \"" + path + "\" found relative to " + loadingClass);
+    }
+    return resource;
+  }
+
+  /**
+   * Get the value for a test string, reusing the one recently created for the same string
+   * instance, so that combined matchers such as {@code allOf(isXmlText(..), isXmlText(..))} share
+   * the value (and its memoized document) rather than each parsing the string again. Only
+   * immutable {@link String}s are reused; other sequences are read in place, without copying them
+   * into a string.
+   */
+  private static XmlMatcherValue recentXmlText(CharSequence xml) {
+    if (!(xml instanceof String)) {
+      return new XmlMatcherValue("XML text", null, new XmlMatcherValue.XmlTextSupplier(xml));
+    }
+    RecentTextValues recent = RECENT_TEXT_VALUES.get();
+    XmlMatcherValue ret = recent.get((String) xml);
+    if (ret == null) {
+      ret = xmlText(xml);
+      recent.put((String) xml, ret);
+    }
+    return ret;
   }
 
-  private static final String prettyXml(InputSource source) {
+  /**
+   * Tiny per-thread cache of the values of the last few test strings, keyed by identity. Nothing
+   * here strongly references the strings, which may be large documents: the keys are weakly
+   * referenced, and the values (which read their strings) softly, so an entry is gone once its
+   * string is only reachable through the cache and memory gets tight.
+   */
+  private static final class RecentTextValues {
+    private static final int SIZE = 8;
+
+    private final Entry[] entries = new Entry[SIZE];
+    private int next = 0;
+
+    XmlMatcherValue get(String key) {
+      for (Entry entry : entries) {
+        if (entry != null && entry.get() == key) {
+          return entry.value.get();
+        }
+      }
+      return null;
+    }
+
+    void put(String key, XmlMatcherValue value) {
+      entries[next] = new Entry(key, value);
+      next = (next + 1) % SIZE;
+    }
+
+    private static final class Entry extends WeakReference<String> {
+      final SoftReference<XmlMatcherValue> value;
+
+      Entry(String key, XmlMatcherValue value) {
+        super(key);
+        this.value = new SoftReference<XmlMatcherValue>(value);
+      }
+    }
+  }
+
+  private static final ThreadLocal<RecentTextValues> RECENT_TEXT_VALUES =
+      new ThreadLocal<RecentTextValues>() {
+        @Override
+        protected RecentTextValues initialValue() {
+          return new RecentTextValues();
+        }
+      };
+
+  static final String prettyXml(InputSource source) {
     StringWriter sw = new StringWriter();
     try {
       TransformerFactory.newInstance().newTransformer().transform(new SAXSource(source),
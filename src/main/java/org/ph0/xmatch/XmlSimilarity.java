@@ -0,0 +1,278 @@
+package org.ph0.xmatch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.ph0.xmatch.XmlEquivalenceMatcher.Setting;
+
+/**
+ * Numeric similarity scores between documents, from 0 (nothing in common) to 1 (equivalent under
+ * the settings), for ranking candidates rather than just matching them.
+ *
+ * Scores are based on the {@link XmlEquivalenceMatcher#comparingCanonicallyAbove(long) canonical
+ * forms} of the documents, so they honor the same settings as matching does:
+ * <ul>
+ * <li>{@link #sketch(XmlMatcherValue) Sketches} are small fixed-size MinHash signatures of the
+ * elements, attributes and text of a document, each qualified by its element path. Comparing two
+ * sketches estimates the (weighted) Jaccard similarity of the documents' contents in constant
+ * time, so thousands of candidates can be sketched once and ranked cheaply.</li>
+ * <li>{@link #exactScore(XmlMatcherValue, XmlMatcherValue) Exact scores} are the fraction of
+ * canonical lines the documents have in common, as found by a line diff. The diff is bounded, so
+ * documents that differ in more than {@value #MAX_EXACT_EDIT_DISTANCE} lines fall back to the
+ * estimate.</li>
+ * </ul>
+ *
+ * @author phanley
+ */
+public final class XmlSimilarity {
+  static final int SKETCH_SIZE = 128;
+  static final int MAX_EXACT_EDIT_DISTANCE = 2000;
+
+  private static final long[] SEEDS = new long[SKETCH_SIZE];
+
+  static {
+    long seed = 0x2545F4914F6CDD1DL;
+    for (int i = 0; i < SKETCH_SIZE; i++) {
+      seed = mix(seed + 0x9E3779B97F4A7C15L);
+      SEEDS[i] = seed;
+    }
+  }
+
+  /**
+   * Fixed-size summary of the contents of a document.
+   */
+  public static final class Sketch {
+    private final long[] minimums;
+    private final boolean empty;
+
+    private Sketch(long[] minimums, boolean empty) {
+      this.minimums = minimums;
+      this.empty = empty;
+    }
+
+    /**
+     * @return the estimated similarity of the sketched documents, within about
+     *         {@code 1 / sqrt(}{@value XmlSimilarity#SKETCH_SIZE}{@code )} of the actual value.
+     */
+    public double similarityTo(Sketch other) {
+      if (empty || other.empty) {
+        return empty && other.empty ? 1.0 : 0.0;
+      }
+      int equal = 0;
+      for (int i = 0; i < SKETCH_SIZE; i++) {
+        if (minimums[i] == other.minimums[i]) {
+          equal++;
+        }
+      }
+      return (double) equal / SKETCH_SIZE;
+    }
+  }
+
+  /**
+   * A candidate value, with its score against a reference value.
+   */
+  public static final class ScoredValue {
+    private final XmlMatcherValue value;
+    private final double score;
+
+    ScoredValue(XmlMatcherValue value, double score) {
+      this.value = value;
+      this.score = score;
+    }
+
+    public XmlMatcherValue getValue() {
+      return value;
+    }
+
+    public double getScore() {
+      return score;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%.3f: %s", score, value.getSourceDescription());
+    }
+  }
+
+  private final CanonicalComparison canonicalComparison;
+
+  XmlSimilarity(Set<Setting> settings, IgnoreRules ignoreRules) {
+    this.canonicalComparison = new CanonicalComparison(
+        settings.isEmpty() ? EnumSet.noneOf(Setting.class) : EnumSet.copyOf(settings),
+        ignoreRules);
+  }
+
+  /**
+   * @return scoring under the specified settings.
+   * @see XmlEquivalenceMatcher#similarity()
+   */
+  public static XmlSimilarity withSettings(Set<Setting> settings) {
+    return new XmlSimilarity(settings, IgnoreRules.NONE);
+  }
+
+  /**
+   * @return the sketch of a value, computed in a single streaming pass over it.
+   */
+  public Sketch sketch(XmlMatcherValue value) {
+    SketchingSink sink = new SketchingSink();
+    canonicalComparison.serialize(value, sink);
+    return sink.sketch();
+  }
+
+  /**
+   * @return the estimated similarity of two values.
+   */
+  public double estimatedScore(XmlMatcherValue a, XmlMatcherValue b) {
+    return sketch(a).similarityTo(sketch(b));
+  }
+
+  /**
+   * @return the fraction of their canonical lines two values have in common, or the
+   *         {@link #estimatedScore(XmlMatcherValue, XmlMatcherValue) estimate} (capped at the
+   *         highest possible score) if they differ in too many lines to diff them exactly.
+   */
+  public double exactScore(XmlMatcherValue a, XmlMatcherValue b) {
+    List<String> aLines = canonicalComparison.lines(a);
+    List<String> bLines = canonicalComparison.lines(b);
+    int totalLines = aLines.size() + bLines.size();
+    if (totalLines == 0) {
+      return 1.0;
+    }
+    List<MyersDiff.Edit> edits = MyersDiff.diff(aLines, bLines, MAX_EXACT_EDIT_DISTANCE);
+    if (edits == null) {
+      double highest = 1.0 - (double) (MAX_EXACT_EDIT_DISTANCE + 1) / totalLines;
+      return Math.max(0.0, Math.min(highest, estimatedScore(a, b)));
+    }
+    int common = 0;
+    for (MyersDiff.Edit edit : edits) {
+      if (edit.operation == MyersDiff.Operation.EQUAL) {
+        common++;
+      }
+    }
+    return 2.0 * common / totalLines;
+  }
+
+  /**
+   * Rank candidates by their estimated similarity to a reference value.
+   *
+   * @param limit the maximum number of candidates to return.
+   * @return the most similar candidates, most similar first.
+   */
+  public List<ScoredValue> rank(XmlMatcherValue reference,
+      Collection<? extends XmlMatcherValue> candidates, int limit) {
+    Sketch referenceSketch = sketch(reference);
+    List<ScoredValue> ret = new ArrayList<ScoredValue>(candidates.size());
+    for (XmlMatcherValue candidate : candidates) {
+      ret.add(new ScoredValue(candidate, referenceSketch.similarityTo(sketch(candidate))));
+    }
+    Collections.sort(ret, new Comparator<ScoredValue>() {
+      @Override
+      public int compare(ScoredValue a, ScoredValue b) {
+        return Double.compare(b.score, a.score);
+      }
+    });
+    return ret.size() > limit ? new ArrayList<ScoredValue>(ret.subList(0, limit)) : ret;
+  }
+
+  /**
+   * Hashes each canonical line along with the path of the element it belongs to (elements
+   * themselves are represented by their path), and keeps the minimum of each of the seeded hash
+   * functions. Repeated features are numbered, so that the sketch reflects how often they occur.
+   */
+  private static final class SketchingSink implements CanonicalXmlWriter.LineSink {
+    private final long[] minimums = new long[SKETCH_SIZE];
+    private final Map<Long, Integer> occurrences = new HashMap<Long, Integer>();
+    private long[] pathHashes = new long[16];
+    private int depth = 0;
+    private boolean empty = true;
+
+    SketchingSink() {
+      Arrays.fill(minimums, Long.MAX_VALUE);
+    }
+
+    @Override
+    public void line(CharSequence line) {
+      int start = 0;
+      while (start < line.length() && line.charAt(start) == ' ') {
+        start++;
+      }
+      if (startsWith(line, start, "</")) {
+        depth = Math.max(0, depth - 1);
+        return;
+      }
+      long feature;
+      if (isElementStart(line, start)) {
+        long pathHash = hash(depth == 0 ? 0 : pathHashes[depth - 1], line, start + 1);
+        if (depth >= pathHashes.length) {
+          pathHashes = Arrays.copyOf(pathHashes, depth * 2);
+        }
+        pathHashes[depth++] = pathHash;
+        feature = pathHash;
+      }
+      else {
+        feature = hash(depth == 0 ? 0 : pathHashes[depth - 1], line, start);
+      }
+      add(feature);
+    }
+
+    private void add(long feature) {
+      Integer count = occurrences.get(feature);
+      int occurrence = count == null ? 0 : count;
+      occurrences.put(feature, occurrence + 1);
+      long numbered = mix(feature + occurrence * 0x9E3779B97F4A7C15L);
+      for (int i = 0; i < SKETCH_SIZE; i++) {
+        long value = mix(numbered ^ SEEDS[i]);
+        if (value < minimums[i]) {
+          minimums[i] = value;
+        }
+      }
+      empty = false;
+    }
+
+    Sketch sketch() {
+      return new Sketch(minimums, empty);
+    }
+
+    private static boolean isElementStart(CharSequence line, int start) {
+      return startsWith(line, start, "<") && !startsWith(line, start, "<!")
+          && !startsWith(line, start, "<?");
+    }
+
+    private static boolean startsWith(CharSequence line, int start, String prefix) {
+      if (line.length() - start < prefix.length()) {
+        return false;
+      }
+      for (int i = 0; i < prefix.length(); i++) {
+        if (line.charAt(start + i) != prefix.charAt(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private static long hash(long parent, CharSequence line, int start) {
+      long ret = parent * 0x100000001B3L + 0xCBF29CE484222325L;
+      for (int i = start; i < line.length(); i++) {
+        ret = (ret ^ line.charAt(i)) * 0x100000001B3L;
+      }
+      return mix(ret);
+    }
+  }
+
+  /**
+   * The finalizer of SplitMix64, spreading every input bit over the whole output.
+   */
+  private static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+}
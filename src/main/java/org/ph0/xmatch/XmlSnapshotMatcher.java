@@ -0,0 +1,179 @@
+package org.ph0.xmatch;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.hamcrest.Description;
+import org.hamcrest.TypeSafeDiagnosingMatcher;
+import org.ph0.xmatch.XmlEquivalenceMatcher.Setting;
+
+/**
+ * Matches values against a golden file, recording the golden file from the first value matched
+ * if it doesn't exist yet (or re-recording it on a mismatch, if the system property
+ * {@value #UPDATE_PROPERTY} is {@code true}).
+ *
+ * Values are compared by their {@link XmlEquivalenceMatcher#comparingCanonicallyAbove(long)
+ * canonical forms}. The canonical form of the golden file is kept in a sidecar file next to it
+ * (see {@link CanonicalSnapshot}), so once a golden file has been compared with a set of
+ * settings, later runs only have to hash it (once per JVM) rather than parse it, and a match only
+ * costs canonicalizing the tested value.
+ *
+ * Since there's no DOM comparison to fall back on, {@link Setting#ONLY_COMPARE_SIMILARITY} only
+ * tolerates the differences {@link CanonicalXmlWriter} can: namespace prefixes and comment values,
+ * but not reordered elements.
+ *
+ * @author phanley
+ */
+public final class XmlSnapshotMatcher extends TypeSafeDiagnosingMatcher<XmlMatcherValue> {
+  private static final Logger log = Logger.getLogger(XmlSnapshotMatcher.class.getName());
+
+  public static final String UPDATE_PROPERTY = "xmatch.snapshot.update";
+
+  private static final int MAX_CANONICAL_EDIT_DISTANCE = 2000;
+
+  private final File goldenFile;
+  private final Set<Setting> settings;
+  private final MismatchReporter reporter;
+  private final CanonicalComparison canonicalComparison;
+
+  XmlSnapshotMatcher(File goldenFile, Set<Setting> settings, MismatchReporter reporter) {
+    this.goldenFile = goldenFile;
+    this.settings = Collections.unmodifiableSet(
+        settings.isEmpty() ? EnumSet.noneOf(Setting.class) : EnumSet.copyOf(settings));
+    this.reporter = reporter;
+    this.canonicalComparison = new CanonicalComparison(this.settings);
+  }
+
+  /**
+   * Create a copy of this matcher, but with the specified additional setting(s) enabled.
+   *
+   * @param settings
+   * @return
+   */
+  public XmlSnapshotMatcher enabling(Setting... settings) {
+    EnumSet<Setting> newSettings = EnumSet.noneOf(Setting.class);
+    newSettings.addAll(this.settings);
+    newSettings.addAll(Arrays.asList(settings));
+    return new XmlSnapshotMatcher(goldenFile, newSettings, reporter);
+  }
+
+  /**
+   * Create a copy of this matcher, but with the specified setting(s) disabled.
+   *
+   * @param settings
+   * @return
+   */
+  public XmlSnapshotMatcher disabling(Setting... settings) {
+    EnumSet<Setting> newSettings = EnumSet.noneOf(Setting.class);
+    newSettings.addAll(this.settings);
+    newSettings.removeAll(Arrays.asList(settings));
+    return new XmlSnapshotMatcher(goldenFile, newSettings, reporter);
+  }
+
+  /**
+   * Create a copy of this matcher, but using the specified {@link MismatchReporter} to describe
+   * mismatches.
+   *
+   * @param reporter
+   * @return
+   */
+  public XmlSnapshotMatcher reportingWith(MismatchReporter reporter) {
+    if (reporter == null) {
+      throw new NullPointerException();
+    }
+    return new XmlSnapshotMatcher(goldenFile, settings, reporter);
+  }
+
+  @Override
+  public void describeTo(Description description) {
+    description.appendText("XML content matching snapshot " + goldenFile.getPath());
+  }
+
+  @Override
+  protected boolean matchesSafely(XmlMatcherValue testValue, Description mismatchDescription) {
+    try {
+      if (!goldenFile.exists()) {
+        record(testValue);
+        return true;
+      }
+
+      CanonicalSnapshot snapshot = CanonicalSnapshot.load(goldenFile);
+      CanonicalSnapshot.Entry golden = snapshot.get(settings);
+      if (golden == null) {
+        golden = canonicalize(XmlMatchers.xmlAt(goldenFile.toURI()));
+        snapshot.put(settings, golden);
+      }
+
+      boolean success =
+          MessageDigest.isEqual(golden.digest, canonicalComparison.digest(testValue));
+      if (!success && Boolean.getBoolean(UPDATE_PROPERTY)) {
+        record(testValue);
+        return true;
+      }
+      if (!success && !(mismatchDescription instanceof Description.NullDescription)) {
+        List<String> goldenLines = snapshot.lines(golden);
+        if (goldenLines == null) {
+          goldenLines = canonicalize(XmlMatchers.xmlAt(goldenFile.toURI())).lines;
+        }
+        List<MyersDiff.Edit> edits = MyersDiff.diff(goldenLines,
+            canonicalComparison.lines(testValue), MAX_CANONICAL_EDIT_DISTANCE);
+        reporter.describeCanonicalMismatch(edits, MAX_CANONICAL_EDIT_DISTANCE, testValue,
+            mismatchDescription);
+      }
+      return success;
+    }
+    catch (IOException ioe) {
+      throw new RuntimeException("I/O exception occurred while matching snapshot " + goldenFile,
+          ioe);
+    }
+  }
+
+  /**
+   * Write the value as the golden file, along with its canonical form for this matcher's
+   * settings.
+   */
+  private void record(XmlMatcherValue value) throws IOException {
+    File directory = goldenFile.getAbsoluteFile().getParentFile();
+    if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create snapshot directory " + directory);
+    }
+    try {
+      TransformerFactory.newInstance().newTransformer().transform(new SAXSource(value.get()),
+          new StreamResult(goldenFile));
+    }
+    catch (TransformerException te) {
+      throw new IOException("Unable to write snapshot " + goldenFile, te);
+    }
+    log.info("Recorded XML snapshot " + goldenFile.getAbsolutePath());
+
+    // canonicalize what was actually written, so the sidecar matches the golden file exactly
+    CanonicalSnapshot.reload(goldenFile).put(settings,
+        canonicalize(XmlMatchers.xmlAt(goldenFile.toURI())));
+  }
+
+  private CanonicalSnapshot.Entry canonicalize(XmlMatcherValue value) {
+    final CanonicalComparison.DigestSink digest = new CanonicalComparison.DigestSink();
+    final List<String> lines = new ArrayList<String>();
+    canonicalComparison.serialize(value, new CanonicalXmlWriter.LineSink() {
+      @Override
+      public void line(CharSequence line) {
+        digest.line(line);
+        lines.add(line.toString());
+      }
+    });
+    return new CanonicalSnapshot.Entry(digest.digest(), lines);
+  }
+}
@@ -0,0 +1,217 @@
+package org.ph0.xmatch;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+import org.hamcrest.Description;
+import org.hamcrest.SelfDescribing;
+import org.hamcrest.StringDescription;
+
+/**
+ * Matches a stream of XML messages (e.g. replayed from a capture of a message bus) as they
+ * arrive, rather than collecting them first: either each against the same template, or each
+ * against the next of a sequence of templates.
+ *
+ * Messages are pulled from an {@link Iterator}, only when there's room for another comparison in
+ * flight, so a slow consumer holds back the producer rather than buffering its messages. Up to
+ * {@link #withConcurrency(int) a bounded number} of comparisons run at once on an executor, but
+ * results are still judged in stream order, and matching stops at the first mismatch: no further
+ * messages are pulled, and the comparisons still in flight are cancelled. Only the results of
+ * in-flight comparisons are held, so memory use doesn't depend on the length of the stream.
+ *
+ * @author phanley
+ */
+public final class XmlStreamMatcher {
+  private final XmlEquivalenceMatcher template;
+  private final Iterable<? extends XmlEquivalenceMatcher> templates;
+  private final int concurrency;
+  private final Executor executor;
+
+  XmlStreamMatcher(XmlEquivalenceMatcher template,
+      Iterable<? extends XmlEquivalenceMatcher> templates, int concurrency, Executor executor) {
+    this.template = template;
+    this.templates = templates;
+    this.concurrency = concurrency;
+    this.executor = executor;
+  }
+
+  /**
+   * @return a stream matcher matching each message against the same template.
+   */
+  static XmlStreamMatcher matchingEach(XmlEquivalenceMatcher template) {
+    return new XmlStreamMatcher(template, null, Runtime.getRuntime().availableProcessors(),
+        MatchExecutors.defaultExecutor());
+  }
+
+  /**
+   * @return a stream matcher matching each message against the corresponding template, which
+   *         fails if there are more or fewer messages than templates.
+   */
+  static XmlStreamMatcher matchingInOrder(Iterable<? extends XmlEquivalenceMatcher> templates) {
+    return new XmlStreamMatcher(null, templates, Runtime.getRuntime().availableProcessors(),
+        MatchExecutors.defaultExecutor());
+  }
+
+  /**
+   * @param concurrency the maximum number of messages being compared at once, one to compare
+   *        them sequentially.
+   */
+  public XmlStreamMatcher withConcurrency(int concurrency) {
+    if (concurrency < 1) {
+      throw new IllegalArgumentException("Concurrency must be at least one.");
+    }
+    return new XmlStreamMatcher(template, templates, concurrency, executor);
+  }
+
+  public XmlStreamMatcher withExecutor(Executor executor) {
+    return new XmlStreamMatcher(template, templates, concurrency, executor);
+  }
+
+  /**
+   * Match the messages, stopping at the first mismatch.
+   *
+   * @return the outcome, which refers to the mismatched message, if any, but to no other.
+   */
+  public StreamResult match(Iterator<? extends XmlMatcherValue> messages) {
+    Iterator<? extends XmlEquivalenceMatcher> expected =
+        templates != null ? templates.iterator() : null;
+    ArrayDeque<Future<MatchResult>> inFlight = new ArrayDeque<Future<MatchResult>>(concurrency);
+    long matched = 0;
+    try {
+      while (messages.hasNext()) {
+        if (inFlight.size() == concurrency) {
+          MatchResult result = await(inFlight.poll());
+          if (!result.matched()) {
+            return StreamResult.mismatched(matched, result);
+          }
+          matched++;
+        }
+        if (expected != null && !expected.hasNext()) {
+          break;
+        }
+        XmlEquivalenceMatcher next = expected != null ? expected.next() : template;
+        inFlight.add(next.matchAsync(messages.next(), executor));
+      }
+      while (!inFlight.isEmpty()) {
+        MatchResult result = await(inFlight.poll());
+        if (!result.matched()) {
+          return StreamResult.mismatched(matched, result);
+        }
+        matched++;
+      }
+    }
+    finally {
+      for (Future<MatchResult> future : inFlight) {
+        future.cancel(true);
+      }
+    }
+    if (expected != null && messages.hasNext()) {
+      return StreamResult.unbalanced(matched, "an unexpected message after the last template");
+    }
+    if (expected != null && expected.hasNext()) {
+      return StreamResult.unbalanced(matched, "the end of the stream before the last template");
+    }
+    return StreamResult.matched(matched);
+  }
+
+  /**
+   * Match the messages, and throw an {@link AssertionError} describing the first mismatch, if
+   * any.
+   */
+  public void assertMatches(Iterator<? extends XmlMatcherValue> messages) {
+    StreamResult result = match(messages);
+    if (!result.matched()) {
+      throw new AssertionError(StringDescription.toString(result));
+    }
+  }
+
+  private static MatchResult await(Future<MatchResult> future) {
+    try {
+      return future.get();
+    }
+    catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while matching XML messages.", ie);
+    }
+    catch (ExecutionException ee) {
+      if (ee.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) ee.getCause();
+      }
+      throw new IllegalStateException("Error occurred while matching XML messages.",
+          ee.getCause());
+    }
+  }
+
+  /**
+   * Outcome of matching a stream of messages.
+   */
+  public static final class StreamResult implements SelfDescribing {
+    private final long matchedMessages;
+    private final MatchResult mismatch;
+    private final String unbalanced;
+
+    private StreamResult(long matchedMessages, MatchResult mismatch, String unbalanced) {
+      this.matchedMessages = matchedMessages;
+      this.mismatch = mismatch;
+      this.unbalanced = unbalanced;
+    }
+
+    static StreamResult matched(long matchedMessages) {
+      return new StreamResult(matchedMessages, null, null);
+    }
+
+    static StreamResult mismatched(long matchedMessages, MatchResult mismatch) {
+      return new StreamResult(matchedMessages, mismatch, null);
+    }
+
+    static StreamResult unbalanced(long matchedMessages, String unbalanced) {
+      return new StreamResult(matchedMessages, null, unbalanced);
+    }
+
+    /**
+     * @return whether every message matched (and, for a sequence of templates, there were as
+     *         many messages as templates).
+     */
+    public boolean matched() {
+      return mismatch == null && unbalanced == null;
+    }
+
+    /**
+     * @return the number of messages that matched, which is also the (zero-based) index of the
+     *         mismatched message, if any.
+     */
+    public long getMatchedMessages() {
+      return matchedMessages;
+    }
+
+    /**
+     * @return the result of the first mismatched message, or {@code null} if none mismatched.
+     */
+    public MatchResult getMismatch() {
+      return mismatch;
+    }
+
+    @Override
+    public void describeTo(Description description) {
+      if (mismatch != null) {
+        description.appendText("message #" + matchedMessages + " mismatched: ")
+            .appendDescriptionOf(mismatch);
+      }
+      else if (unbalanced != null) {
+        description.appendText("found " + unbalanced + ", after " + matchedMessages
+            + " matching messages");
+      }
+      else {
+        description.appendText("matched all " + matchedMessages + " messages");
+      }
+    }
+
+    @Override
+    public String toString() {
+      return StringDescription.toString(this);
+    }
+  }
+}
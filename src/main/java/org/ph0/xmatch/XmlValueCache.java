@@ -0,0 +1,266 @@
+package org.ph0.xmatch;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Intern table for {@link XmlMatcherValue}s loaded from immutable locations, such as classpath
+ * resources. Repeated references to the same location share a single value (and so its bytes and
+ * rendering), and locations with identical content share a single copy of the bytes.
+ *
+ * Values are only weakly referenced by the table itself, so anything still in use by a matcher
+ * stays shared. On top of that, the most recently used values are strongly retained up to a byte
+ * budget, so that golden files referenced over and over by a test suite aren't re-read between
+ * assertions.
+ *
+ * The {@link #shared() shared} instance is used by {@link XmlMatchers#xmlResource(Class, String)};
+ * its budget can be set with the {@value #MAX_RETAINED_BYTES_PROPERTY} system property.
+ *
+ * @author phanley
+ */
+public final class XmlValueCache {
+  public static final String MAX_RETAINED_BYTES_PROPERTY = "xmatch.cache.maxRetainedBytes";
+
+  private static final long DEFAULT_MAX_RETAINED_BYTES = 64L * 1024 * 1024;
+
+  private static final XmlValueCache SHARED =
+      new XmlValueCache(Long.getLong(MAX_RETAINED_BYTES_PROPERTY, DEFAULT_MAX_RETAINED_BYTES));
+
+  /**
+   * Point-in-time snapshot of a cache's counters.
+   */
+  public static final class Statistics {
+    private final long hits;
+    private final long misses;
+    private final long sharedContents;
+    private final long evictions;
+    private final int retainedValues;
+    private final long retainedBytes;
+
+    private Statistics(long hits, long misses, long sharedContents, long evictions,
+        int retainedValues, long retainedBytes) {
+      this.hits = hits;
+      this.misses = misses;
+      this.sharedContents = sharedContents;
+      this.evictions = evictions;
+      this.retainedValues = retainedValues;
+      this.retainedBytes = retainedBytes;
+    }
+
+    /**
+     * @return the number of lookups answered by an already loaded value.
+     */
+    public long getHits() {
+      return hits;
+    }
+
+    /**
+     * @return the number of lookups that had to load their value.
+     */
+    public long getMisses() {
+      return misses;
+    }
+
+    /**
+     * @return the number of loaded values whose bytes were replaced by identical content that was
+     *         already loaded from another location.
+     */
+    public long getSharedContents() {
+      return sharedContents;
+    }
+
+    /**
+     * @return the number of values dropped from the strongly retained set to stay within budget.
+     */
+    public long getEvictions() {
+      return evictions;
+    }
+
+    public int getRetainedValues() {
+      return retainedValues;
+    }
+
+    public long getRetainedBytes() {
+      return retainedBytes;
+    }
+
+    @Override
+    public String toString() {
+      return "XmlValueCache.Statistics[hits=" + hits + ", misses=" + misses + ", sharedContents="
+          + sharedContents + ", evictions=" + evictions + ", retainedValues=" + retainedValues
+          + ", retainedBytes=" + retainedBytes + "]";
+    }
+  }
+
+  /**
+   * Weak reference that remembers its table key, so it can be removed once cleared.
+   */
+  private static final class KeyedReference<T> extends WeakReference<T> {
+    final String key;
+
+    KeyedReference(String key, T referent, ReferenceQueue<? super T> queue) {
+      super(referent, queue);
+      this.key = key;
+    }
+  }
+
+  private final long maxRetainedBytes;
+
+  private final ReferenceQueue<XmlMatcherValue> clearedValues =
+      new ReferenceQueue<XmlMatcherValue>();
+  private final ReferenceQueue<XmlContent> clearedContents = new ReferenceQueue<XmlContent>();
+  private final Map<String, KeyedReference<XmlMatcherValue>> valuesByLocation =
+      new HashMap<String, KeyedReference<XmlMatcherValue>>();
+  private final Map<String, KeyedReference<XmlContent>> contentsByHash =
+      new HashMap<String, KeyedReference<XmlContent>>();
+
+  /**
+   * Strongly retained values, in least- to most-recently used order.
+   */
+  private final LinkedHashMap<String, XmlMatcherValue> retained =
+      new LinkedHashMap<String, XmlMatcherValue>(16, 0.75f, true);
+  private long retainedBytes = 0;
+
+  private long hits = 0;
+  private long misses = 0;
+  private long sharedContents = 0;
+  private long evictions = 0;
+
+  /**
+   * @param maxRetainedBytes the total content size of the most recently used values to keep
+   *        strongly referenced.
+   */
+  public XmlValueCache(long maxRetainedBytes) {
+    if (maxRetainedBytes < 0) {
+      throw new IllegalArgumentException("Retained byte budget must not be negative.");
+    }
+    this.maxRetainedBytes = maxRetainedBytes;
+  }
+
+  /**
+   * @return the process-wide cache.
+   */
+  public static XmlValueCache shared() {
+    return SHARED;
+  }
+
+  /**
+   * Get the value for the document at a URL, reading it only if it isn't already loaded. The
+   * document at the URL must not change while it's cached.
+   *
+   * @param url
+   * @return
+   */
+  public XmlMatcherValue intern(URL url) {
+    String location = url.toExternalForm();
+    synchronized (this) {
+      XmlMatcherValue value = lookup(location);
+      if (value != null) {
+        hits++;
+        return value;
+      }
+      misses++;
+    }
+
+    // read outside the lock, we'd rather occasionally read a document twice than block on I/O
+    XmlMatcherValue loaded = XmlMatchers.xmlAt(url);
+    synchronized (this) {
+      XmlMatcherValue value = lookup(location);
+      if (value != null) {
+        return value;
+      }
+      loaded = shareContent(loaded);
+      valuesByLocation.put(location,
+          new KeyedReference<XmlMatcherValue>(location, loaded, clearedValues));
+      retain(location, loaded);
+      return loaded;
+    }
+  }
+
+  /**
+   * @return a snapshot of this cache's counters.
+   */
+  public synchronized Statistics statistics() {
+    expungeClearedReferences();
+    return new Statistics(hits, misses, sharedContents, evictions, retained.size(),
+        retainedBytes);
+  }
+
+  /**
+   * Drop all cached values and reset the counters.
+   */
+  public synchronized void clear() {
+    valuesByLocation.clear();
+    contentsByHash.clear();
+    retained.clear();
+    retainedBytes = 0;
+    hits = misses = sharedContents = evictions = 0;
+  }
+
+  private XmlMatcherValue lookup(String location) {
+    expungeClearedReferences();
+    KeyedReference<XmlMatcherValue> ref = valuesByLocation.get(location);
+    XmlMatcherValue value = ref == null ? null : ref.get();
+    if (value != null) {
+      retain(location, value);
+    }
+    return value;
+  }
+
+  /**
+   * If identical content has already been loaded, create an equivalent value using that content
+   * so that only one copy of the bytes stays reachable.
+   */
+  private XmlMatcherValue shareContent(XmlMatcherValue value) {
+    if (!(value.getInputSourceSupplier() instanceof XmlContent)) {
+      // e.g. streamed compressed content, there's no buffer to share
+      return value;
+    }
+    XmlContent content = (XmlContent) value.getInputSourceSupplier();
+    String hash = content.contentHash();
+    KeyedReference<XmlContent> ref = contentsByHash.get(hash);
+    XmlContent existing = ref == null ? null : ref.get();
+    if (existing == null) {
+      contentsByHash.put(hash, new KeyedReference<XmlContent>(hash, content, clearedContents));
+      return value;
+    }
+    sharedContents++;
+    return new XmlMatcherValue(value.getSourceDescription(), value.getValueText(), existing);
+  }
+
+  private void retain(String location, XmlMatcherValue value) {
+    if (retained.put(location, value) == null) {
+      retainedBytes += sizeOf(value);
+    }
+    Iterator<XmlMatcherValue> leastRecentlyUsed = retained.values().iterator();
+    while (retainedBytes > maxRetainedBytes && leastRecentlyUsed.hasNext()) {
+      retainedBytes -= sizeOf(leastRecentlyUsed.next());
+      leastRecentlyUsed.remove();
+      evictions++;
+    }
+  }
+
+  private static long sizeOf(XmlMatcherValue value) {
+    InputSourceSupplier supplier = value.getInputSourceSupplier();
+    return supplier instanceof XmlContent ? ((XmlContent) supplier).size() : 0;
+  }
+
+  private void expungeClearedReferences() {
+    KeyedReference<?> ref;
+    while ((ref = (KeyedReference<?>) clearedValues.poll()) != null) {
+      if (valuesByLocation.get(ref.key) == ref) {
+        valuesByLocation.remove(ref.key);
+      }
+    }
+    while ((ref = (KeyedReference<?>) clearedContents.poll()) != null) {
+      if (contentsByHash.get(ref.key) == ref) {
+        contentsByHash.remove(ref.key);
+      }
+    }
+  }
+}
@@ -0,0 +1,202 @@
+package org.ph0.xmatch;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.ph0.xmatch.XmlMatchers.*;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.hamcrest.StringDescription;
+import org.junit.Test;
+import org.ph0.xmatch.XmlEquivalenceMatcher.Setting;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+public class CanonicalComparisonTest {
+  @Test
+  public void testCanonicalLines() {
+    CanonicalComparison comparison =
+        new CanonicalComparison(XmlEquivalenceMatcher.defaultSettings());
+    List<String> lines = comparison.lines(xmlText(
+        "<a:test xmlns:a='urn:x' z='1' y='2'><!-- comment -->  some \n  text  </a:test>"));
+
+    assertThat(lines, contains("<{urn:x}test", "  @y=\"2\"", "  @z=\"1\"", "  \"some text",
+        "</{urn:x}test"));
+  }
+
+  /**
+   * Pairs of documents differing in ways some combination of settings tolerates.
+   */
+  private static final String[][] PARITY_PAIRS = {
+      {"<a x='a  b'/>", "<a x='a b'/>"},
+      {"<a x=' ab'/>", "<a x='ab'/>"},
+      {"<a x='1' y='2'/>", "<a y='2' x='1'/>"},
+      {"<a><b/><!--c--></a>", "<a><b/></a>"},
+      {"<a>x<!--c-->y</a>", "<a>xy</a>"},
+      {"<a><!-- c  d --></a>", "<a><!--c d--></a>"},
+      {"<a>\n  <b> x\n y </b>\n</a>", "<a><b>x y</b></a>"},
+      {"<a><b/> <c/></a>", "<a><b/><c/></a>"},
+      {"<a>x<![CDATA[y]]></a>", "<a>xy</a>"},
+      {"<a><![CDATA[ x ]]></a>", "<a><![CDATA[x]]></a>"},
+      {"<p:a xmlns:p='urn:x' p:b='1'/>", "<q:a xmlns:q='urn:x' q:b='1'/>"},
+      {"<a><?pi x?></a>", "<a><?pi  x ?></a>"}};
+
+  /**
+   * The canonical paths must decide exactly like the DOM comparison, under every combination of
+   * settings, on the pairs above and on a generated document and a cosmetic variant of it. (Only
+   * comparing similarity isn't compared canonically, see
+   * {@link XmlEquivalenceMatcher#comparingCanonicallyAbove(long)}.)
+   */
+  @Test
+  public void testParityWithDomComparison() throws Exception {
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+    XmlDocumentGenerator generator = new XmlDocumentGenerator(42).withDepth(2).withFanOut(4)
+        .withAttributes(3).withNamespaces(true).withCommentsAndCdata(true);
+    List<String[]> pairs = new ArrayList<String[]>(Arrays.asList(PARITY_PAIRS));
+    pairs.add(new String[] { generator.generate(), generator.generateVariant() });
+
+    List<String> divergences = new ArrayList<String>();
+    for (Set<Setting> settings : SettingCombinations.all()) {
+      if (settings.contains(Setting.ONLY_COMPARE_SIMILARITY)) {
+        continue;
+      }
+      for (String[] pair : pairs) {
+        XmlEquivalenceMatcher dom = new XmlEquivalenceMatcher(xmlText(pair[0]), settings);
+        boolean expected = dom.matches(xmlText(pair[1]));
+        Document document =
+            factory.newDocumentBuilder().parse(new InputSource(new StringReader(pair[1])));
+        if (dom.comparingCanonicallyAbove(0).matches(xmlText(pair[1])) != expected
+            || dom.incrementally().matches(document) != expected) {
+          divergences.add(pair[0] + " vs " + pair[1] + " under " + settings);
+        }
+      }
+    }
+    assertThat(divergences, empty());
+  }
+
+  @Test
+  public void testMyersDiff() {
+    List<String> control = Arrays.asList("a", "b", "c", "a", "b", "b", "a");
+    List<String> test = Arrays.asList("c", "b", "a", "b", "a", "c");
+    List<MyersDiff.Edit> edits = MyersDiff.diff(control, test, 100);
+
+    List<String> rebuiltControl = new ArrayList<String>();
+    List<String> rebuiltTest = new ArrayList<String>();
+    int changes = 0;
+    for (MyersDiff.Edit edit : edits) {
+      if (edit.operation != MyersDiff.Operation.INSERT) {
+        rebuiltControl.add(edit.line);
+      }
+      if (edit.operation != MyersDiff.Operation.DELETE) {
+        rebuiltTest.add(edit.line);
+      }
+      if (edit.operation != MyersDiff.Operation.EQUAL) {
+        changes++;
+      }
+    }
+    assertThat(rebuiltControl, equalTo(control));
+    assertThat(rebuiltTest, equalTo(test));
+    assertThat("shortest edit script", changes, equalTo(5));
+
+    assertThat(MyersDiff.diff(control, test, 4), nullValue());
+  }
+
+  @Test
+  public void testCanonicalMismatchDescription() {
+    XmlEquivalenceMatcher matcher =
+        equivalentTo("<test><a>1</a><b>2</b><c>3</c></test>").comparingCanonicallyAbove(0);
+    XmlMatcherValue testValue = xmlText("<test><a>1</a><b>two</b><c>3</c></test>");
+
+    assertThat(matcher.matches(testValue), equalTo(false));
+    StringDescription description = new StringDescription();
+    matcher.describeMismatch(testValue, description);
+    assertThat(description.toString(), containsString("-    \"2\n+    \"two"));
+  }
+
+  @Test
+  public void testLargeTextIsChunked() {
+    StringBuilder text = new StringBuilder("\n  ");
+    for (int i = 0; i < 2000; i++) {
+      text.append("value").append(i).append(i % 7 == 0 ? " \n\t " : " ");
+    }
+    String xml = "<test>" + text + "</test>";
+    String collapsed = text.toString().trim().replaceAll("\\s+", " ");
+
+    List<String> lines =
+        new CanonicalComparison(XmlEquivalenceMatcher.defaultSettings()).lines(xmlText(xml));
+    assertThat(lines.get(1), startsWith("  \""));
+    StringBuilder rebuilt = new StringBuilder(lines.get(1).substring(3));
+    for (String line : lines.subList(2, lines.size() - 1)) {
+      assertThat(line, startsWith("  " + CanonicalXmlWriter.CONTINUATION));
+      rebuilt.append(line.substring(3));
+    }
+    assertThat(lines.size(), greaterThan(4));
+    assertThat(rebuilt.toString(), equalTo(collapsed));
+
+    Set<Setting> trimming = EnumSet.of(Setting.IGNORE_LEADING_TRAILING_WHITESPACE);
+    List<String> trimmedLines = new CanonicalComparison(trimming).lines(xmlText(xml));
+    String trimmed = trimmedLines.get(trimmedLines.size() - 2);
+    assertThat(trimmed, endsWith("value1999"));
+    assertThat(trimmedLines.get(1), startsWith("  \"value0 \\n\t value1 "));
+
+    XmlEquivalenceMatcher matcher = equivalentTo(xml).comparingCanonicallyAbove(0);
+    XmlMatcherValue testValue = xmlText(xml.replace("value1500 ", "value1500x "));
+    assertThat(matcher.matches(testValue), equalTo(false));
+    StringDescription description = new StringDescription();
+    matcher.describeMismatch(testValue, description);
+    assertThat(description.toString(), containsString("value1500x"));
+  }
+
+  @Test
+  public void testChunkBoundariesFollowContent() {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 5000; i++) {
+      text.append("value").append(i * 7919 % 10007).append(' ');
+    }
+    CanonicalComparison comparison =
+        new CanonicalComparison(XmlEquivalenceMatcher.defaultSettings());
+    List<String> lines = comparison.lines(xmlText("<test>" + text + "</test>"));
+    assertThat(lines.size(), greaterThan(10));
+    for (String line : lines) {
+      assertThat(line.length(), lessThanOrEqualTo(CanonicalXmlWriter.VALUE_CHUNK_CHARS + 3));
+    }
+    // held back whole for the ignore rules, the value is chunked the same way
+    CanonicalComparison ignoring = new CanonicalComparison(XmlEquivalenceMatcher.defaultSettings(),
+        IgnoreRules.compile(Arrays.asList(IgnoreRule.valuesAt("/other"))));
+    assertThat(ignoring.lines(xmlText("<test>" + text + "</test>")), equalTo(lines));
+
+    // inserting shifts everything after it, but only the chunks around it change
+    String inserted = text.substring(0, 100) + "inserted " + text.substring(100);
+    assertThat(changedLines(lines, comparison.lines(xmlText("<test>" + inserted + "</test>"))),
+        lessThanOrEqualTo(2));
+    int middle = text.length() / 2;
+    String substituted = text.substring(0, middle) + "X" + text.substring(middle + 1);
+    assertThat(
+        changedLines(lines, comparison.lines(xmlText("<test>" + substituted + "</test>"))),
+        lessThanOrEqualTo(2));
+  }
+
+  /**
+   * @return the number of lines of the first list that aren't in the common prefix or suffix.
+   */
+  private static int changedLines(List<String> a, List<String> b) {
+    int prefix = 0;
+    while (prefix < Math.min(a.size(), b.size()) && a.get(prefix).equals(b.get(prefix))) {
+      prefix++;
+    }
+    int suffix = 0;
+    while (suffix < Math.min(a.size(), b.size()) - prefix
+        && a.get(a.size() - 1 - suffix).equals(b.get(b.size() - 1 - suffix))) {
+      suffix++;
+    }
+    return a.size() - prefix - suffix;
+  }
+}
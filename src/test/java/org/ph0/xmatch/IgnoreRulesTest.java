@@ -0,0 +1,78 @@
+package org.ph0.xmatch;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.ph0.xmatch.XmlMatchers.*;
+
+import org.junit.Test;
+
+public class IgnoreRulesTest {
+  private static final String UUID_PATTERN =
+      "[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}";
+
+  private static final String EXPECTED =
+      "<ns:order xmlns:ns='urn:orders' id='1' created='2014-01-01'>"
+      + "<ns:item ref='9a2f1c3e-0d4b-4c1a-8f5e-1b2c3d4e5f60'><ns:created>2014-01-01</ns:created>"
+      + "<ns:name>widget</ns:name></ns:item></ns:order>";
+  private static final String ACTUAL =
+      "<ns:order xmlns:ns='urn:orders' id='1' created='2015-06-30'>"
+      + "<ns:item ref='0f9e8d7c-6b5a-4f3e-9d2c-1b0a9f8e7d6c'><ns:created>2015-06-30</ns:created>"
+      + "<ns:name>widget</ns:name></ns:item></ns:order>";
+
+  @Test
+  public void testNormalizePath() {
+    assertThat(IgnoreRules.normalizePath("/ns:order[1]/item[2]/text()[1]"),
+        equalTo("/order/item"));
+    assertThat(IgnoreRules.normalizePath("/order[1]/@ns:id"), equalTo("/order/@id"));
+    assertThat(IgnoreRules.normalizePath("//item/created"), equalTo("//item/created"));
+  }
+
+  @Test
+  public void testIgnoreRules() {
+    assertIgnoreRules(false);
+  }
+
+  @Test
+  public void testIgnoreRules_canonical() {
+    assertIgnoreRules(true);
+  }
+
+  private void assertIgnoreRules(boolean canonical) {
+    XmlEquivalenceMatcher matcher = equivalentTo(EXPECTED);
+    if (canonical) {
+      matcher = matcher.comparingCanonicallyAbove(0);
+    }
+
+    assertThat(xmlText(ACTUAL), not(matcher));
+    assertThat(xmlText(ACTUAL), not(matcher.ignoring(IgnoreRule.attribute("created"),
+        IgnoreRule.valuesMatching(UUID_PATTERN))));
+    assertThat(xmlText(ACTUAL), matcher.ignoring(IgnoreRule.attribute("created"),
+        IgnoreRule.valuesMatching(UUID_PATTERN), IgnoreRule.valuesAt("//item/created")));
+    assertThat(xmlText(ACTUAL),
+        matcher.ignoring(IgnoreRule.valuesAt("/order/@created"),
+            IgnoreRule.valuesAt("/order/item/@ref"),
+            IgnoreRule.valuesAt("/ns:order/ns:item/created")));
+
+    // only the ignored values may differ
+    assertThat(xmlText(ACTUAL.replace("widget", "gadget")),
+        not(matcher.ignoring(IgnoreRule.attribute("created"), IgnoreRule.attribute("ref"),
+            IgnoreRule.valuesAt("//created"))));
+    assertThat(xmlText(ACTUAL.replace("0f9e8d7c", "not-a-uuid")),
+        not(matcher.ignoring(IgnoreRule.attribute("created"), IgnoreRule.valuesAt("//created"),
+            IgnoreRule.valuesMatching(UUID_PATTERN))));
+  }
+
+  @Test
+  public void testPlaceholder() {
+    XmlEquivalenceMatcher matcher =
+        equivalentTo("<test stamp='${ignore}'><id>${ignore}</id><name>x</name></test>")
+            .ignoring(IgnoreRule.placeholder()).comparingCanonicallyAbove(0);
+
+    assertThat(xmlText("<test stamp='123'><id>456</id><name>x</name></test>"), matcher);
+    assertThat(xmlText("<test stamp='123'><id>456</id><name>y</name></test>"), not(matcher));
+    // placeholders only apply to the expected value
+    assertThat(xmlText("<test stamp='${ignore}'><id>456</id><name>x</name></test>"),
+        not(equivalentTo("<test stamp='123'><id>456</id><name>x</name></test>")
+            .ignoring(IgnoreRule.placeholder())));
+  }
+}
@@ -0,0 +1,100 @@
+package org.ph0.xmatch;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.ph0.xmatch.XmlMatchers.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MatchStatisticsTest {
+  private MatchStatistics statistics;
+
+  @Before
+  public void enableStatistics() {
+    statistics = MatchStatistics.enable();
+    statistics.reset();
+  }
+
+  @After
+  public void disableStatistics() {
+    MatchStatistics.disable();
+    statistics.reset();
+  }
+
+  @Test
+  public void testComparisonsAreRecorded() {
+    XmlEquivalenceMatcher matcher = equivalentTo("<foo><bar>hello</bar></foo>");
+    assertThat(matcher.match(xmlText("<foo><bar>hello</bar></foo>")).matched(), is(true));
+    assertThat(matcher.match(xmlText("<foo><bar>goodbye</bar></foo>")).matched(), is(false));
+
+    assertThat(statistics.getComparisonCount(), is(2L));
+    assertThat(statistics.getMismatchCount(), is(1L));
+    assertThat(statistics.getBytesParsed(), greaterThan(0L));
+    assertThat(statistics.getLatencyNanosAtPercentile(99),
+        greaterThanOrEqualTo(statistics.getLatencyNanosAtPercentile(50)));
+    assertThat(statistics.toText(), containsString("comparisons: 2"));
+    assertThat(statistics.toJson(), containsString("\"mismatches\":1"));
+    assertThat(statistics.toJson(), containsString("\"description\":\"XML text #"));
+
+    MatchStatistics.disable();
+    matcher.match(xmlText("<foo/>"));
+    assertThat(statistics.getComparisonCount(), is(2L));
+  }
+
+  @Test
+  public void testFailedAssertionIsRecordedOnce() {
+    try {
+      assertThat(xmlText("<a>2</a>"), equivalentTo("<a>1</a>"));
+      throw new IllegalStateException("assertion should have failed");
+    }
+    catch (AssertionError expected) {
+      assertThat(expected.getMessage(), containsString("2"));
+    }
+    assertThat(statistics.getComparisonCount(), is(1L));
+    assertThat(statistics.getMismatchCount(), is(1L));
+    assertThat(statistics.mostExpensiveFixtures(1).get(0).comparisons.get(), is(1L));
+  }
+
+  @Test
+  public void testWarmUpIsNotRecorded() {
+    XmlMatcherWarmUp.runBuiltIns();
+    assertThat(statistics.getComparisonCount(), is(0L));
+    assertThat(statistics.getBytesParsed(), is(0L));
+    assertThat(statistics.mostExpensiveFixtures(10), empty());
+
+    equivalentTo("<foo/>").match(xmlText("<foo/>"));
+    assertThat(statistics.getComparisonCount(), is(1L));
+  }
+
+  @Test
+  public void testFixturesAreKeyedByContent() {
+    equivalentTo("<foo><bar>hello</bar></foo>").match(xmlText("<foo/>"));
+    equivalentTo("<foo><bar>hello</bar></foo>").match(xmlText("<foo/>"));
+    equivalentTo("<foo>\n  <baz/>\n</foo>").match(xmlText("<foo/>"));
+    assertThat(statistics.mostExpensiveFixtures(10), hasSize(2));
+    assertThat(MatchStatistics.fixtureOf(xmlText("<foo>\n  <baz/>\n</foo>")),
+        endsWith("\"<foo> <baz/> </foo>\""));
+    assertThat(MatchStatistics.fixtureOf(xmlBytes("<foo/>".getBytes())),
+        endsWith("(6 bytes)"));
+  }
+
+  @Test
+  public void testLatencyHistogramBuckets() {
+    for (long value : new long[] { 0, 7, 8, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE }) {
+      int bucket = MatchStatistics.LatencyHistogram.bucketOf(value);
+      long highest = MatchStatistics.LatencyHistogram.highestValueIn(bucket);
+      assertThat(highest, greaterThanOrEqualTo(value));
+      assertThat("within an eighth of " + value, highest - value, lessThanOrEqualTo(value / 8));
+    }
+
+    MatchStatistics.LatencyHistogram histogram = new MatchStatistics.LatencyHistogram();
+    for (int i = 1; i <= 100; i++) {
+      histogram.record(i * 1000L);
+    }
+    assertThat(histogram.valueAtPercentile(50), allOf(greaterThanOrEqualTo(50000L),
+        lessThanOrEqualTo(50000L + 50000L / 8)));
+    assertThat(histogram.valueAtPercentile(100), is(100000L));
+  }
+}
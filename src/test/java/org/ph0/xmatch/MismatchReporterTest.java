@@ -0,0 +1,128 @@
+package org.ph0.xmatch;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.ph0.xmatch.XmlMatchers.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.hamcrest.StringDescription;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+public class MismatchReporterTest {
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private static String repeatedElements(String name, String value, int count) {
+    StringBuilder xml = new StringBuilder("<test>");
+    for (int i = 0; i < count; i++) {
+      xml.append('<').append(name).append('>').append(value).append(i).append("</").append(name)
+          .append('>');
+    }
+    return xml.append("</test>").toString();
+  }
+
+  private static String mismatchOf(XmlEquivalenceMatcher matcher, XmlMatcherValue testValue) {
+    StringDescription description = new StringDescription();
+    assertThat(matcher.matches(testValue), equalTo(false));
+    matcher.describeMismatch(testValue, description);
+    return description.toString();
+  }
+
+  @Test
+  public void testDifferenceLimit() {
+    XmlEquivalenceMatcher matcher = equivalentTo(repeatedElements("a", "expected", 20))
+        .reportingWith(MismatchReporter.defaultReporter().limitingDifferencesTo(5));
+
+    String mismatch = mismatchOf(matcher, xmlText(repeatedElements("a", "actual", 20)));
+    Matcher differenceLines = Pattern.compile("\\[different\\]").matcher(mismatch);
+    int listed = 0;
+    while (differenceLines.find()) {
+      listed++;
+    }
+    assertThat(listed, equalTo(5));
+    assertThat(mismatch, containsString("[15 more difference(s) not shown]"));
+  }
+
+  @Test
+  public void testSnippetTruncation() {
+    StringBuilder longValue = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      longValue.append("0123456789");
+    }
+    XmlEquivalenceMatcher matcher = equivalentTo("<test>" + longValue + "</test>")
+        .reportingWith(MismatchReporter.defaultReporter().truncatingSnippetsAt(40));
+
+    String mismatch = mismatchOf(matcher, xmlText("<test>" + longValue + "x</test>"));
+    assertThat(mismatch.length(), lessThan(1000));
+    // snippets are windows around the first difference, at the very end of the values
+    assertThat(mismatch, containsString("56789' but was '...4567"));
+    assertThat(mismatch, containsString("6789x' - comparing"));
+  }
+
+  @Test
+  public void testContextWindow() {
+    XmlEquivalenceMatcher matcher =
+        equivalentTo("<test><outer><inner attr='1'>value</inner></outer></test>")
+            .reportingWith(MismatchReporter.defaultReporter().withContext(2));
+
+    String mismatch = mismatchOf(matcher,
+        xmlText("<test><outer><inner attr='2'>value</inner></outer></test>"));
+    assertThat(mismatch, containsString("expected: <outer><inner attr=\"1\">value</inner></outer>"));
+    assertThat(mismatch, containsString("actual: <outer><inner attr=\"2\">value</inner></outer>"));
+  }
+
+  @Test
+  public void testFullReportFile() throws Exception {
+    File reportDir = tempFolder.newFolder();
+    XmlEquivalenceMatcher matcher = equivalentTo(repeatedElements("a", "expected", 20))
+        .reportingWith(MismatchReporter.defaultReporter().limitingDifferencesTo(1)
+            .writingFullReportsTo(reportDir));
+
+    String mismatch = mismatchOf(matcher, xmlText(repeatedElements("a", "actual", 20)));
+    File[] reports = reportDir.listFiles();
+    assertThat(reports.length, equalTo(1));
+    assertThat(mismatch, containsString(reports[0].getAbsolutePath()));
+
+    Document report = parse(reports[0]);
+    assertThat(report.getDocumentElement().getAttribute("differences"), equalTo("20"));
+    assertThat(report.getElementsByTagName("difference").getLength(), equalTo(20));
+  }
+
+  @Test
+  public void testSpilledDifferences() throws Exception {
+    File reportDir = tempFolder.newFolder();
+    XmlEquivalenceMatcher matcher = equivalentTo(repeatedElements("a", "expected", 200))
+        .spillingDifferencesAfter(10)
+        .reportingWith(MismatchReporter.defaultReporter().limitingDifferencesTo(5)
+            .writingFullReportsTo(reportDir));
+
+    String mismatch = mismatchOf(matcher, xmlText(repeatedElements("a", "actual", 200)));
+    assertThat(mismatch, containsString("[195 more difference(s) not shown]"));
+    assertThat(mismatch, containsString("[difference(s) by type: text value x200;]"));
+
+    Document report = parse(reportDir.listFiles()[0]);
+    assertThat(report.getDocumentElement().getAttribute("differences"), equalTo("200"));
+    assertThat(report.getElementsByTagName("difference").getLength(), equalTo(200));
+    Element last = (Element) report.getElementsByTagName("difference").item(199);
+    assertThat(last.getElementsByTagName("test").item(0).getTextContent(), equalTo("actual199"));
+  }
+
+  private static Document parse(File file) throws IOException {
+    try {
+      return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file);
+    }
+    catch (Exception e) {
+      throw new IOException(e);
+    }
+  }
+}
@@ -0,0 +1,36 @@
+package org.ph0.xmatch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import org.ph0.xmatch.XmlEquivalenceMatcher.Setting;
+
+/**
+ * Every combination of {@link Setting}s, for tests that must hold under all of them.
+ *
+ * @author phanley
+ */
+/* package-private */ final class SettingCombinations {
+  private SettingCombinations() {}
+
+  /**
+   * @return all 2^n subsets of the settings, starting with none of them.
+   */
+  static List<Set<Setting>> all() {
+    Setting[] allSettings = Setting.values();
+    List<Set<Setting>> ret = new ArrayList<Set<Setting>>(1 << allSettings.length);
+    for (int mask = 0; mask < 1 << allSettings.length; mask++) {
+      Set<Setting> settings = EnumSet.noneOf(Setting.class);
+      for (int i = 0; i < allSettings.length; i++) {
+        if ((mask & (1 << i)) != 0) {
+          settings.add(allSettings[i]);
+        }
+      }
+      ret.add(Collections.unmodifiableSet(settings));
+    }
+    return ret;
+  }
+}
@@ -0,0 +1,212 @@
+package org.ph0.xmatch;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Generates documents of controlled size and shape for stress tests and benchmarks. The same seed
+ * and parameters always produce the same document, and can also produce copies of it with
+ * injected differences in their values, or with purely cosmetic variations (indentation, attribute
+ * order, namespace prefixes, comment placement) that the default settings tolerate.
+ *
+ * @author phanley
+ */
+public final class XmlDocumentGenerator {
+  private static final String NAMESPACE_URI = "urn:xmatch:generated";
+  private static final String[] WORDS = { "alpha", "bravo", "charlie", "delta", "echo",
+      "foxtrot", "golf", "hotel", "india", "juliett", "kilo", "lima" };
+
+  private final long seed;
+  private final int depth;
+  private final int fanOut;
+  private final int attributes;
+  private final boolean namespaces;
+  private final boolean commentsAndCdata;
+
+  public XmlDocumentGenerator(long seed) {
+    this(seed, 3, 5, 2, false, false);
+  }
+
+  private XmlDocumentGenerator(long seed, int depth, int fanOut, int attributes,
+      boolean namespaces, boolean commentsAndCdata) {
+    this.seed = seed;
+    this.depth = depth;
+    this.fanOut = fanOut;
+    this.attributes = attributes;
+    this.namespaces = namespaces;
+    this.commentsAndCdata = commentsAndCdata;
+  }
+
+  /**
+   * @param depth the number of levels of elements below the root.
+   */
+  public XmlDocumentGenerator withDepth(int depth) {
+    return new XmlDocumentGenerator(seed, depth, fanOut, attributes, namespaces,
+        commentsAndCdata);
+  }
+
+  /**
+   * @param fanOut the number of child elements of each non-leaf element.
+   */
+  public XmlDocumentGenerator withFanOut(int fanOut) {
+    return new XmlDocumentGenerator(seed, depth, fanOut, attributes, namespaces,
+        commentsAndCdata);
+  }
+
+  /**
+   * @param attributes the number of attributes of each element.
+   */
+  public XmlDocumentGenerator withAttributes(int attributes) {
+    return new XmlDocumentGenerator(seed, depth, fanOut, attributes, namespaces,
+        commentsAndCdata);
+  }
+
+  /**
+   * @param namespaces whether some elements and attributes are in a (prefixed) namespace.
+   */
+  public XmlDocumentGenerator withNamespaces(boolean namespaces) {
+    return new XmlDocumentGenerator(seed, depth, fanOut, attributes, namespaces,
+        commentsAndCdata);
+  }
+
+  /**
+   * @param commentsAndCdata whether to include comments, and to write some text as CDATA.
+   */
+  public XmlDocumentGenerator withCommentsAndCdata(boolean commentsAndCdata) {
+    return new XmlDocumentGenerator(seed, depth, fanOut, attributes, namespaces,
+        commentsAndCdata);
+  }
+
+  /**
+   * @return the number of elements in the generated documents, including the root.
+   */
+  public int elementCount() {
+    int ret = 1;
+    int level = 1;
+    for (int i = 0; i < depth; i++) {
+      level *= fanOut;
+      ret += level;
+    }
+    return ret;
+  }
+
+  public String generate() {
+    return new Writer(Collections.<Integer>emptySet(), false).write();
+  }
+
+  /**
+   * @return the document, with the specified number of attribute values and text contents
+   *         changed, at positions chosen deterministically from the seed.
+   */
+  public String generateWithDifferences(int differences) {
+    int values = new Writer(Collections.<Integer>emptySet(), false).countValues();
+    if (differences > values) {
+      throw new IllegalArgumentException(
+          "Only " + values + " values are available to change, not " + differences + ".");
+    }
+    Random random = new Random(seed ^ 0x5DEECE66DL);
+    Set<Integer> changed = new HashSet<Integer>();
+    while (changed.size() < differences) {
+      changed.add(random.nextInt(values));
+    }
+    return new Writer(changed, false).write();
+  }
+
+  /**
+   * @return the document, written with different indentation, attribute order, namespace
+   *         prefixes and comment placement, but equivalent under the default settings.
+   */
+  public String generateVariant() {
+    return new Writer(Collections.<Integer>emptySet(), true).write();
+  }
+
+  /**
+   * Writes one document. The random sequence only depends on the seed and the shape, not on the
+   * changes or variations, so that all documents from one generator line up.
+   */
+  private final class Writer {
+    private final Random random = new Random(seed);
+    private final Set<Integer> changedValues;
+    private final boolean variant;
+    private final StringBuilder out = new StringBuilder();
+    private int values = 0;
+
+    Writer(Set<Integer> changedValues, boolean variant) {
+      this.changedValues = changedValues;
+      this.variant = variant;
+    }
+
+    String write() {
+      out.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+      newLine(0);
+      writeElement(0);
+      return out.toString();
+    }
+
+    int countValues() {
+      write();
+      return values;
+    }
+
+    private void writeElement(int level) {
+      boolean namespaced = namespaces && random.nextInt(3) == 0;
+      String name = (namespaced ? prefix() + ":" : "") + "node" + random.nextInt(8);
+      out.append('<').append(name);
+      if (level == 0 && namespaces) {
+        out.append(" xmlns:").append(prefix()).append("=\"").append(NAMESPACE_URI).append('"');
+      }
+      String[] attributeMarkup = new String[attributes];
+      for (int i = 0; i < attributes; i++) {
+        boolean namespacedAttribute = namespaces && random.nextInt(4) == 0;
+        attributeMarkup[i] = (namespacedAttribute ? prefix() + ":" : "") + "attr" + i + "=\""
+            + value(random.nextInt(1000)) + '"';
+      }
+      for (int i = 0; i < attributes; i++) {
+        out.append(' ').append(attributeMarkup[variant ? attributes - 1 - i : i]);
+      }
+      out.append('>');
+
+      boolean comment = commentsAndCdata && random.nextInt(4) == 0;
+      if (comment && !variant) {
+        out.append("<!-- generated ").append(level).append(" -->");
+      }
+      if (level == depth) {
+        boolean cdata = commentsAndCdata && random.nextInt(3) == 0;
+        String text = value(random.nextInt(1000));
+        out.append(cdata ? "<![CDATA[" + text + "]]>" : text);
+      }
+      else {
+        for (int i = 0; i < fanOut; i++) {
+          newLine(level + 1);
+          writeElement(level + 1);
+        }
+        newLine(level);
+      }
+      if (comment && variant) {
+        out.append("<!-- moved ").append(level).append(" -->");
+      }
+      out.append("</").append(name).append('>');
+    }
+
+    private String value(int index) {
+      int valueIndex = values++;
+      String ret = WORDS[index % WORDS.length] + index;
+      return changedValues.contains(valueIndex) ? ret + "-changed" : ret;
+    }
+
+    private String prefix() {
+      return variant ? "v" : "g";
+    }
+
+    private void newLine(int level) {
+      if (variant) {
+        out.append('\n');
+        for (int i = 0; i < level; i++) {
+          out.append("    ");
+        }
+      }
+    }
+  }
+}
@@ -7,16 +7,31 @@ import static org.hamcrest.Matchers.*;
 import static org.mockito.Matchers.*;
 import static org.mockito.Mockito.*;
 
+import java.io.StringReader;
+import java.lang.reflect.Field;
+import java.net.URL;
+import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.List;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 
+import org.custommonkey.xmlunit.DetailedDiff;
 import org.custommonkey.xmlunit.Diff;
+import org.custommonkey.xmlunit.Difference;
 import org.custommonkey.xmlunit.DifferenceConstants;
+import org.custommonkey.xmlunit.DifferenceListener;
+import org.custommonkey.xmlunit.XMLUnit;
 import org.hamcrest.Matcher;
+import org.hamcrest.StringDescription;
 import org.junit.Test;
 import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
@@ -26,7 +41,9 @@ import org.w3c.dom.Node;
 import org.w3c.dom.Text;
 import org.xml.sax.InputSource;
 
+import org.ph0.xmatch.XmlEquivalenceMatcher.DifferenceTreatment;
 import org.ph0.xmatch.XmlEquivalenceMatcher.Setting;
+import org.ph0.xmatch.examples.XmlMatcherExampleTests;
 
 public class XmlEquivalenceMatcherTest {
   @Test
@@ -202,6 +219,401 @@ public class XmlEquivalenceMatcherTest {
     verify(spy.spiedDiff, atLeastOnce()).differenceFound(eq(DifferenceConstants.TEXT_VALUE));
   }
 
+  @Test
+  public void testXmlEquivalence_configureDiffOverrides() {
+    final List<Integer> foundIds = new ArrayList<Integer>();
+    final DifferenceListener acceptingAll = new DifferenceListener() {
+      @Override
+      public int differenceFound(Difference difference) {
+        foundIds.add(difference.getId());
+        return RETURN_ACCEPT_DIFFERENCE;
+      }
+
+      @Override
+      public void skippedComparison(Node control, Node test) {}
+    };
+
+    // a listener of the subclass' own hears about differences the matcher would ignore
+    XmlEquivalenceMatcher ownListener = new XmlEquivalenceMatcher(
+        xmlText("<test xmlns:abc='urn:x'><abc:elem/></test>"),
+        EnumSet.of(TOLERATE_DIFFERENT_NAMESPACE_PREFIXES)) {
+      @Override
+      protected Diff configureDiff(Diff baseDiff) {
+        Diff ret = new DetailedDiff(baseDiff);
+        ret.overrideDifferenceListener(acceptingAll);
+        return ret;
+      }
+    };
+    assertThat(ownListener.matches(xmlText("<test xmlns:def='urn:x'><def:elem/></test>")),
+        equalTo(false));
+    assertThat(foundIds, hasItem(DifferenceConstants.NAMESPACE_PREFIX_ID));
+
+    // and a plain Diff still halts at the first real difference
+    foundIds.clear();
+    XmlEquivalenceMatcher halting = new XmlEquivalenceMatcher(
+        xmlText("<test><a>first</a><b>first</b></test>"), EnumSet.noneOf(Setting.class)) {
+      @Override
+      protected Diff configureDiff(Diff baseDiff) {
+        baseDiff.overrideDifferenceListener(acceptingAll);
+        return baseDiff;
+      }
+    };
+    assertThat(halting.matches(xmlText("<test><a>second</a><b>second</b></test>")),
+        equalTo(false));
+    assertThat(foundIds, contains(DifferenceConstants.TEXT_VALUE_ID));
+  }
+
+  @Test
+  public void testXmlEquivalence_treatmentOverrides() {
+    XmlEquivalenceMatcher matcher = equivalentTo("<test><a>first</a></test>");
+    XmlMatcherValue differentText = xmlText("<test><a>second</a></test>");
+
+    assertThat(matcher.matches(differentText), equalTo(false));
+    assertThat(matcher.treating(DifferenceTreatment.IGNORE, DifferenceConstants.TEXT_VALUE)
+        .matches(differentText), equalTo(true));
+    assertThat(matcher.treating(DifferenceTreatment.SIMILAR, DifferenceConstants.TEXT_VALUE)
+        .enabling(ONLY_COMPARE_SIMILARITY).matches(differentText), equalTo(true));
+
+    XmlMatcherValue otherPrefix =
+        xmlText("<test xmlns:def='http://example.com/ns'><def:elem/></test>");
+    XmlEquivalenceMatcher prefixMatcher =
+        equivalentTo("<test xmlns:abc='http://example.com/ns'><abc:elem/></test>");
+    assertThat(prefixMatcher.matches(otherPrefix), equalTo(true));
+    assertThat(prefixMatcher
+        .treating(DifferenceTreatment.DIFFERENT, DifferenceConstants.NAMESPACE_PREFIX)
+        .enabling(ONLY_COMPARE_SIMILARITY).matches(otherPrefix), equalTo(false));
+  }
+
+  @Test
+  public void testNamespaceAwareDifferenceEngine_skipsIgnoredDifferences() throws Exception {
+    Document control =
+        XMLUnit.buildControlDocument("<abc:test xmlns:abc='http://example.com/ns' abc:a='1'/>");
+    Document test =
+        XMLUnit.buildTestDocument("<def:test xmlns:def='http://example.com/ns' def:a='1'/>");
+    ConfigurableDifferenceListener listener =
+        new ConfigurableDifferenceListener(XmlEquivalenceMatcher.defaultSettings());
+
+    ConfigurableDifferenceListener plainListener = spy(listener);
+    Diff plain = new DetailedDiff(new Diff(control, test));
+    plain.overrideDifferenceListener(plainListener);
+    assertThat(plain.similar(), equalTo(true));
+    verify(plainListener, atLeastOnce()).differenceFound(eq(DifferenceConstants.NAMESPACE_PREFIX));
+
+    final ConfigurableDifferenceListener engineListener = listener;
+    final List<Difference> reported = new ArrayList<Difference>();
+    class ListenerAwareDiff extends DetailedDiff
+        implements NamespaceAwareDifferenceEngine.ListenerAware {
+      ListenerAwareDiff(Diff prototype) {
+        super(prototype);
+      }
+
+      @Override
+      public int differenceFound(Difference difference) {
+        reported.add(difference);
+        return super.differenceFound(difference);
+      }
+
+      @Override
+      public DifferenceListener getDifferenceListener() {
+        return engineListener;
+      }
+    }
+    Diff namespaceAware = new ListenerAwareDiff(
+        new Diff(control, test, new NamespaceAwareDifferenceEngine(listener)));
+    namespaceAware.overrideDifferenceListener(listener);
+    assertThat(namespaceAware.similar(), equalTo(true));
+    assertThat(reported, empty());
+
+    // a Diff delegating to any other listener hears about the ignored differences
+    ConfigurableDifferenceListener otherListener = spy(listener);
+    Diff otherDiff =
+        new DetailedDiff(new Diff(control, test, new NamespaceAwareDifferenceEngine(listener)));
+    otherDiff.overrideDifferenceListener(otherListener);
+    assertThat(otherDiff.similar(), equalTo(true));
+    verify(otherListener, atLeastOnce()).differenceFound(eq(DifferenceConstants.NAMESPACE_PREFIX));
+
+    Document otherNamespace =
+        XMLUnit.buildTestDocument("<abc:test xmlns:abc='http://example.com/other' abc:a='1'/>");
+    DetailedDiff different = new DetailedDiff(
+        new Diff(control, otherNamespace, new NamespaceAwareDifferenceEngine(listener)));
+    different.overrideDifferenceListener(listener);
+    assertThat(different.similar(), equalTo(false));
+  }
+
+  @Test
+  public void testDifferenceListener_classifiesEveryDifferenceType() {
+    ConfigurableDifferenceListener listener =
+        new ConfigurableDifferenceListener(XmlEquivalenceMatcher.defaultSettings());
+    ConfigurableDifferenceListener strictListener =
+        new ConfigurableDifferenceListener(EnumSet.noneOf(Setting.class));
+
+    assertThat(listener.differenceFound(DifferenceConstants.ATTR_SEQUENCE),
+        equalTo(DifferenceListener.RETURN_IGNORE_DIFFERENCE_NODES_IDENTICAL));
+    assertThat(strictListener.differenceFound(DifferenceConstants.ATTR_SEQUENCE),
+        equalTo(DifferenceListener.RETURN_IGNORE_DIFFERENCE_NODES_SIMILAR));
+    assertThat(listener.differenceFound(DifferenceConstants.NAMESPACE_PREFIX),
+        equalTo(DifferenceListener.RETURN_IGNORE_DIFFERENCE_NODES_IDENTICAL));
+    assertThat(strictListener.differenceFound(DifferenceConstants.COMMENT_VALUE),
+        equalTo(DifferenceListener.RETURN_IGNORE_DIFFERENCE_NODES_SIMILAR));
+    assertThat(listener.differenceFound(DifferenceConstants.NO_NAMESPACE_SCHEMA_LOCATION),
+        equalTo(DifferenceListener.RETURN_ACCEPT_DIFFERENCE));
+  }
+
+  @Test
+  public void testMatchAsync() throws Exception {
+    XmlEquivalenceMatcher matcher = equivalentTo("<test><a>1</a></test>");
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<MatchResult>> results = new ArrayList<Future<MatchResult>>();
+      for (int i = 0; i < 20; i++) {
+        results.add(matcher.matchAsync(xmlText("<test><a>" + (i % 2 + 1) + "</a></test>"),
+            executor));
+      }
+      for (int i = 0; i < results.size(); i++) {
+        MatchResult result = results.get(i).get(10, TimeUnit.SECONDS);
+        assertThat(result.matched(), equalTo(i % 2 == 0));
+        if (i % 2 == 0) {
+          assertThat(result.getMismatchDescription(), nullValue());
+        }
+        else {
+          assertThat(result.getMismatchDescription(),
+              containsString("Expected text value '1' but was '2'"));
+        }
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testMatchResultDifferences() {
+    XmlEquivalenceMatcher matcher = equivalentTo("<test><a>1</a><b x=\"y\"/></test>");
+    XmlMatcherValue testValue = xmlText("<test><a>2</a><b x=\"z\"/></test>");
+
+    MatchResult result = matcher.match(testValue);
+    assertThat(result.matched(), is(false));
+    assertThat(result.getDifferenceCount(), is(2L));
+    MatchDifference text = result.getDifferences().get(0);
+    assertThat(text.getId(), equalTo(DifferenceConstants.TEXT_VALUE_ID));
+    assertThat(text.getControlXPath(), equalTo("/test[1]/a[1]/text()[1]"));
+    assertThat(text.getControlValue(), equalTo("1"));
+    assertThat(text.getTestValue(), equalTo("2"));
+    MatchDifference attribute = result.getDifferences().get(1);
+    assertThat(attribute.getId(), equalTo(DifferenceConstants.ATTR_VALUE_ID));
+    assertThat(attribute.getTestXPath(), equalTo("/test[1]/b[1]/@x"));
+
+    StringDescription description = new StringDescription();
+    matcher.describeMismatch(testValue, description);
+    assertThat(result.getMismatchDescription(), equalTo(description.toString()));
+    assertThat(matcher.match(xmlText("<test><a>1</a><b x=\"y\"/></test>")).getDifferences(),
+        empty());
+
+    MatchResult canonical =
+        matcher.comparingCanonicallyAbove(0).match(xmlText("<test><a>2</a><b x=\"y\"/></test>"));
+    assertThat(canonical.getDifferenceCount(), is(1L));
+    MatchDifference lines = canonical.getDifferences().get(0);
+    assertThat(lines.getId(), equalTo(MatchDifference.CANONICAL_LINES));
+    assertThat(lines.getControlValue(), containsString("\"1"));
+    assertThat(lines.getTestValue(), containsString("\"2"));
+  }
+
+  @Test
+  public void testMatchAsync_fetchingWithDefaultExecutor() throws Exception {
+    URL foo = XmlMatcherExampleTests.class.getResource("foo.xml");
+    MatchResult result = equivalentTo("<foo><bar>hello world</bar></foo>")
+        .matchAsync(fetchingXmlAt(foo), MatchExecutors.defaultExecutor())
+        .get(10, TimeUnit.SECONDS);
+    assertThat(result.matched(), equalTo(true));
+    assertThat(result.getTestValue().getSourceDescription(), containsString("foo.xml"));
+  }
+
+  @Test
+  public void testParsedDocumentIsShared() {
+    XmlMatcherValue value = xmlText("<test><a>1</a></test>");
+    assertThat(value, equivalentTo("<test><a>1</a></test>"));
+    Document parsed = parsedTestDocument(value);
+    assertThat(parsed, notNullValue());
+
+    assertThat(value, allOf(not(equivalentTo("<test><a>2</a></test>")),
+        similarTo("<test>\n  <a>1</a>\n</test>")));
+    assertThat(parsedTestDocument(value), sameInstance(parsed));
+  }
+
+  /**
+   * The memoized document depends on the XMLUnit parser configuration during the match.
+   */
+  private static Document parsedTestDocument(XmlMatcherValue value) {
+    XMLUnitContext context = new XMLUnitContext(XmlEquivalenceMatcher.defaultSettings());
+    try {
+      return value.getParsedDocument(XMLUnit.getTestDocumentBuilderFactory());
+    }
+    finally {
+      context.close();
+    }
+  }
+
+  @Test
+  public void testXmlUnitContext_sharedByConfiguration() throws Exception {
+    final Set<Setting> defaults = XmlEquivalenceMatcher.defaultSettings();
+    final Set<Setting> strict = EnumSet.noneOf(Setting.class);
+    boolean ignoringComments = XMLUnit.getIgnoreComments();
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<Boolean> strictContext;
+      XMLUnitContext context = new XMLUnitContext(defaults);
+      try {
+        Future<Boolean> sharedContext = executor.submit(ignoringCommentsWithin(defaults));
+        assertThat("entered while the other context is open",
+            sharedContext.get(10, TimeUnit.SECONDS), equalTo(true));
+
+        strictContext = executor.submit(ignoringCommentsWithin(strict));
+        Thread.sleep(100);
+        assertThat(strictContext.isDone(), equalTo(false));
+        assertThat(XMLUnit.getIgnoreComments(), equalTo(true));
+      }
+      finally {
+        context.close();
+      }
+      assertThat(strictContext.get(10, TimeUnit.SECONDS), equalTo(false));
+      assertThat(XMLUnit.getIgnoreComments(), equalTo(ignoringComments));
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testXmlUnitContext_nestedConfigurationIsExclusive() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(1);
+    try {
+      Future<Boolean> strictContext;
+      XMLUnitContext context = new XMLUnitContext(XmlEquivalenceMatcher.defaultSettings());
+      try {
+        XMLUnitContext nested = new XMLUnitContext(EnumSet.noneOf(Setting.class));
+        try {
+          strictContext = executor.submit(ignoringCommentsWithin(EnumSet.noneOf(Setting.class)));
+          Thread.sleep(100);
+          assertThat("joined a nested configuration", strictContext.isDone(), equalTo(false));
+        }
+        finally {
+          nested.close();
+        }
+        assertThat(XMLUnit.getIgnoreComments(), equalTo(true));
+        Thread.sleep(100);
+        assertThat(strictContext.isDone(), equalTo(false));
+      }
+      finally {
+        context.close();
+      }
+      assertThat(strictContext.get(10, TimeUnit.SECONDS), equalTo(false));
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testConcurrentFirstComparisons() throws Exception {
+    // start from XMLUnit's initial state, without any parser factories
+    for (String factoryField : new String[] { "controlBuilderFactory", "testBuilderFactory" }) {
+      Field field = XMLUnit.class.getDeclaredField(factoryField);
+      field.setAccessible(true);
+      field.set(null, null);
+    }
+    XmlEquivalenceMatcher matcher = equivalentTo("<p:test xmlns:p='urn:x'><p:a>1</p:a></p:test>");
+    List<XmlMatcherValue> testValues = new ArrayList<XmlMatcherValue>();
+    List<Future<MatchResult>> results = new ArrayList<Future<MatchResult>>();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      for (int i = 0; i < 8; i++) {
+        testValues.add(xmlText("<q:test xmlns:q='urn:x'><q:a>1</q:a></q:test>"));
+        results.add(matcher.matchAsync(testValues.get(i), executor));
+      }
+      for (int i = 0; i < results.size(); i++) {
+        assertThat(results.get(i).get(10, TimeUnit.SECONDS).matched(), equalTo(true));
+        assertThat(parsedTestDocument(testValues.get(i)).getDocumentElement().getNamespaceURI(),
+            equalTo("urn:x"));
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * @return a task reporting whether XMLUnit ignores comments within a context for the settings.
+   */
+  private static Callable<Boolean> ignoringCommentsWithin(final Set<Setting> settings) {
+    return new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        XMLUnitContext context = new XMLUnitContext(settings);
+        try {
+          return XMLUnit.getIgnoreComments();
+        }
+        finally {
+          context.close();
+        }
+      }
+    };
+  }
+
+  @Test
+  public void testConcurrentMatchingWithMixedSettings() throws Exception {
+    XmlMatcherValue expected = xmlText("<test><!-- note --><a>1</a></test>");
+    XmlEquivalenceMatcher lenient = equivalentTo(expected);
+    XmlEquivalenceMatcher strict = lenient.disabling(IGNORE_COMMENTS);
+    XmlMatcherValue testValue = xmlText("<test><a>1</a></test>");
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<MatchResult>> results = new ArrayList<Future<MatchResult>>();
+      for (int i = 0; i < 200; i++) {
+        results.add((i % 3 == 0 ? strict : lenient).matchAsync(testValue, executor));
+      }
+      for (int i = 0; i < results.size(); i++) {
+        assertThat(results.get(i).get(30, TimeUnit.SECONDS).matched(), equalTo(i % 3 != 0));
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testIncrementalMatching() throws Exception {
+    StringBuilder xml = new StringBuilder("<root>");
+    for (int i = 0; i < 50; i++) {
+      xml.append("<item id='").append(i).append("'><name>item ").append(i).append("</name></item>");
+    }
+    xml.append("</root>");
+    IncrementalXmlMatcher matcher = equivalentTo(xml).incrementally();
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+    Document document =
+        factory.newDocumentBuilder().parse(new InputSource(new StringReader(xml.toString())));
+
+    assertThat(document, matcher);
+    assertThat(matcher.getFingerprintsComputed(), equalTo(101));
+
+    Element name = (Element) document.getElementsByTagName("name").item(20);
+    name.getFirstChild().setNodeValue("changed");
+    assertThat(matcher.matches(document), equalTo(false));
+    assertThat("only the changed path is fingerprinted again", matcher.getFingerprintsComputed(),
+        equalTo(104));
+    StringDescription description = new StringDescription();
+    matcher.describeMismatch(document, description);
+    assertThat(description.toString(),
+        containsString("first differing subtree at /root/item[21]/name[1]"));
+
+    name.getFirstChild().setNodeValue("item 20");
+    ((Element) name.getParentNode()).setAttribute("id", "20");
+    assertThat(document, matcher);
+
+    name.getParentNode().removeChild(name);
+    assertThat(matcher.matches(document), equalTo(false));
+  }
+
   @Test
   public void testMockDocument_attributeOrderBehavior() {
     final int numAttrs = 15;
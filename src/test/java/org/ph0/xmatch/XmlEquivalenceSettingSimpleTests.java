@@ -88,9 +88,11 @@ public class XmlEquivalenceSettingSimpleTests {
     this.disablingShouldMatch = disablingShouldMatch;
   }
 
-  private void assertMatchBehavior(boolean enableSetting) {
+  private void assertMatchBehavior(boolean enableSetting, boolean canonical) {
     Set<Setting> settings = enableSetting ? EnumSet.of(setting) : EnumSet.noneOf(Setting.class);
-    Matcher<XmlMatcherValue> xmlMatcher = new XmlEquivalenceMatcher(expectedValue, settings);
+    XmlEquivalenceMatcher equivalenceMatcher = new XmlEquivalenceMatcher(expectedValue, settings);
+    Matcher<XmlMatcherValue> xmlMatcher =
+        canonical ? equivalenceMatcher.comparingCanonicallyAbove(0) : equivalenceMatcher;
 
     // if [enabled should match] and [disabled for this test]
     // or [enabled should not match] and [enabled for this test]
@@ -110,11 +112,21 @@ public class XmlEquivalenceSettingSimpleTests {
 
   @Test
   public void testSettingBehavior_enabled() {
-    assertMatchBehavior(true);
+    assertMatchBehavior(true, false);
   }
 
   @Test
   public void testSettingBehavior_disabled() {
-    assertMatchBehavior(false);
+    assertMatchBehavior(false, false);
+  }
+
+  @Test
+  public void testSettingBehavior_enabledCanonical() {
+    assertMatchBehavior(true, true);
+  }
+
+  @Test
+  public void testSettingBehavior_disabledCanonical() {
+    assertMatchBehavior(false, true);
   }
 }
@@ -0,0 +1,97 @@
+package org.ph0.xmatch;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.ph0.xmatch.XmlMatchers.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.ph0.xmatch.examples.XmlMatcherExampleTests;
+import org.ph0.xmatch.examples.XmlMatcherExampleTests.MyJaxbThing;
+
+public class XmlMatcherRuntimeRuleTest {
+  @ClassRule
+  public static final XmlMatcherRuntimeRule xmatch =
+      new XmlMatcherRuntimeRule().withCacheBudget(1024 * 1024).withThreads(2);
+
+  @Test
+  public void testResourcesUseRuntimeCache() {
+    XmlMatcherRuntime runtime = xmatch.getRuntime();
+    XmlMatcherValue foo = runtime.xmlResource(XmlMatcherExampleTests.class, "foo.xml");
+    assertThat(runtime.xmlResource(XmlMatcherExampleTests.class, "foo.xml"), sameInstance(foo));
+    assertThat(runtime.getCache().statistics().getHits(), greaterThanOrEqualTo(1L));
+    assertThat(runtime.getCache(), not(sameInstance(XmlValueCache.shared())));
+  }
+
+  @Test
+  public void testMatchesOnRuntimeExecutor() throws InterruptedException, ExecutionException {
+    final String[] threadName = new String[1];
+    MatchResult result = xmatch.getRuntime().matchAsync(equivalentTo("<foo/>"),
+        new Callable<XmlMatcherValue>() {
+          @Override
+          public XmlMatcherValue call() {
+            threadName[0] = Thread.currentThread().getName();
+            return xmlText("<foo></foo>");
+          }
+        }).get();
+    assertThat(result.matched(), is(true));
+    assertThat(threadName[0], startsWith("xmatch-runtime-"));
+  }
+
+  @Test
+  public void testBatchMarshallingFromRuntimeTask() throws Exception {
+    XmlMatcherRuntimeRule rule =
+        new XmlMatcherRuntimeRule().withThreads(1).warmingUpJaxb(MyJaxbThing.class);
+    rule.before();
+    final XmlMatcherRuntime runtime = rule.getRuntime();
+    try {
+      assertThat(runtime.getJaxbContextCount(), is(1));
+      final List<Object> things = new ArrayList<Object>();
+      for (int i = 0; i < 100; i++) {
+        MyJaxbThing thing = new MyJaxbThing();
+        thing.bar = "hello " + i;
+        things.add(thing);
+      }
+      MatchResult result = runtime.matchAsync(equivalentTo("<foo><bar>hello 99</bar></foo>"),
+          new Callable<XmlMatcherValue>() {
+            @Override
+            public XmlMatcherValue call() {
+              // the only pool thread is busy running this fetcher
+              return runtime.jaxbXmlForAll(things).get(99);
+            }
+          }).get(30, TimeUnit.SECONDS);
+      assertThat(result.matched(), is(true));
+    }
+    catch (TimeoutException e) {
+      throw new AssertionError("marshalling from a runtime task deadlocked");
+    }
+    finally {
+      rule.after();
+    }
+    assertThat("contexts are released on close", runtime.getJaxbContextCount(), is(0));
+  }
+
+  @Test
+  public void testRuntimeIsClosedAfterTests() {
+    XmlMatcherRuntimeRule rule = new XmlMatcherRuntimeRule().withThreads(1);
+    rule.before();
+    XmlMatcherRuntime runtime = rule.getRuntime();
+    rule.after();
+    assertThat(runtime.isClosed(), is(true));
+    assertThat(runtime.getExecutor().isTerminated(), is(true));
+    try {
+      rule.getRuntime();
+      throw new AssertionError("runtime should no longer be available");
+    }
+    catch (IllegalStateException expected) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,122 @@
+package org.ph0.xmatch;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.ph0.xmatch.XmlMatchers.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.xml.bind.JAXBContext;
+
+import org.junit.Test;
+
+public class XmlMatchersTest {
+  private static final String FOO_XML = "<foo><bar>hello world</bar></foo>";
+
+  private File writeTempFile(String suffix, String content, Compression compression)
+      throws IOException {
+    File file = File.createTempFile("xmatch", suffix);
+    file.deleteOnExit();
+    OutputStream out = new FileOutputStream(file);
+    if (compression == Compression.GZIP) {
+      out = new GZIPOutputStream(out);
+    }
+    else if (compression == Compression.ZLIB) {
+      out = new DeflaterOutputStream(out);
+    }
+    try {
+      out.write(content.getBytes(StandardCharsets.UTF_8));
+    }
+    finally {
+      out.close();
+    }
+    return file;
+  }
+
+  @Test
+  public void testXmlAt_gzipCompressed() throws IOException {
+    File gzipped = writeTempFile(".xml.gz", FOO_XML, Compression.GZIP);
+    XmlMatcherValue value = xmlAt(gzipped.toURI());
+
+    assertThat(value, equivalentTo(FOO_XML));
+    assertThat(value, not(equivalentTo("<foo><bar>goodbye world</bar></foo>")));
+    assertThat("compressed content is streamed rather than rendered", value.toString(),
+        not(containsString("hello world")));
+  }
+
+  @Test
+  public void testXmlAt_zlibCompressed() throws IOException {
+    File deflated = writeTempFile(".xml.z", FOO_XML, Compression.ZLIB);
+    assertThat(xmlAt(deflated.toURI()), equivalentTo(FOO_XML));
+  }
+
+  @Test
+  public void testXmlAt_uncompressed() throws IOException {
+    File plain = writeTempFile(".xml", FOO_XML, Compression.NONE);
+    XmlMatcherValue value = xmlAt(plain.toURI());
+    assertThat(value, equivalentTo(FOO_XML));
+    assertThat(value.toString(), containsString("hello world"));
+  }
+
+  @Test
+  public void testXmlBytes() {
+    byte[] utf16 = ("<?xml version=\"1.0\" encoding=\"UTF-16\"?>" + FOO_XML)
+        .getBytes(StandardCharsets.UTF_16);
+    assertThat(xmlBytes(utf16), equivalentTo(FOO_XML));
+    assertThat(xmlBytes(utf16, StandardCharsets.UTF_16), equivalentTo(FOO_XML));
+    assertThat(xmlBytes(utf16).toString(), containsString("hello world"));
+
+    byte[] latin1 = "<foo><bar>h\u00e9llo world</bar></foo>".getBytes(StandardCharsets.ISO_8859_1);
+    assertThat("declared charset overrides the UTF-8 default",
+        xmlBytes(latin1, StandardCharsets.ISO_8859_1),
+        equivalentTo("<foo><bar>h\u00e9llo world</bar></foo>"));
+  }
+
+  @Test
+  public void testXmlBytes_byteBuffers() {
+    byte[] bytes = ("garbage" + FOO_XML + "garbage").getBytes(StandardCharsets.UTF_8);
+    ByteBuffer heap = ByteBuffer.wrap(bytes, 7, FOO_XML.length());
+    ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+    direct.put(bytes);
+    direct.position(7).limit(7 + FOO_XML.length());
+
+    XmlMatcherValue heapValue = xmlBytes(heap);
+    XmlMatcherValue directValue = xmlBytes(direct, StandardCharsets.UTF_8);
+    assertThat(heapValue, equivalentTo(FOO_XML));
+    assertThat(directValue, equivalentTo(FOO_XML));
+    assertThat(directValue.getSizeHint(), is((long) FOO_XML.length()));
+    assertThat("buffers are read without consuming them", direct.position(), is(7));
+  }
+
+  @Test
+  public void testIsXml_inputTypes() {
+    assertThat(FOO_XML.getBytes(StandardCharsets.UTF_8), isXml(equivalentTo(FOO_XML)));
+    assertThat(FOO_XML.getBytes(StandardCharsets.UTF_16BE),
+        isXml(equivalentTo(FOO_XML), StandardCharsets.UTF_16BE));
+    assertThat(ByteBuffer.wrap(FOO_XML.getBytes(StandardCharsets.UTF_8)),
+        isXml(equivalentTo(FOO_XML)));
+    assertThat(new StringBuilder(FOO_XML), isXml(equivalentTo(FOO_XML)));
+    assertThat(new StringBuilder(FOO_XML), not(isXml(equivalentTo("<foo/>"))));
+  }
+
+  @Test
+  public void testWarmUp() throws Exception {
+    Future<?> warmUp = warmUpInBackground(String.class);
+    assertThat(warmUp.get(30, TimeUnit.SECONDS), nullValue());
+    JAXBContext context = JaxbMarshalling.contextFor(String.class);
+
+    warmUp(String.class);
+    assertThat("contexts are only created once", JaxbMarshalling.contextFor(String.class),
+        sameInstance(context));
+    assertThat(xmlText(FOO_XML), equivalentTo(FOO_XML));
+  }
+}
@@ -0,0 +1,83 @@
+package org.ph0.xmatch;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.ph0.xmatch.XmlMatchers.*;
+
+import org.junit.Test;
+
+/**
+ * Timing and memory checks, which are too sensitive to the machine's load and garbage collector
+ * for the unit tests; run them with {@code mvn test -Pbenchmarks}.
+ */
+public class XmlScalingBenchmark {
+  /**
+   * Checks that matching time grows roughly linearly with document size: an eight times larger
+   * document may take much longer than eight times as long on a noisy machine, but a quadratic
+   * algorithm would take around 64 times as long.
+   */
+  @Test
+  public void testMatchingScalesLinearly() {
+    XmlDocumentGenerator small = new XmlDocumentGenerator(1).withDepth(3).withFanOut(10);
+    XmlDocumentGenerator large = small.withFanOut(20);
+    assertThat(large.elementCount() / small.elementCount(), is(7));
+
+    for (long threshold : new long[] { Long.MAX_VALUE, 0 }) {
+      long smallNanos = fastestMatch(small, threshold);
+      long largeNanos = fastestMatch(large, threshold);
+      assertThat("threshold " + threshold + ": " + smallNanos + "ns vs " + largeNanos + "ns",
+          largeNanos, lessThan(smallNanos * 32));
+    }
+  }
+
+  /**
+   * Checks that memory stays bounded while matching many distinct documents: the parsed values,
+   * readers and recent strings kept between matches must not accumulate.
+   */
+  @Test
+  public void testRetainedMemoryIsBounded() {
+    for (long threshold : new long[] { Long.MAX_VALUE, 0 }) {
+      long before = 0;
+      long matched = 0;
+      for (int seed = 0; seed <= 200; seed++) {
+        if (seed == 1) {
+          // after the first match, which loads classes and fills the caches it can fill
+          before = usedHeapAfterGc();
+          matched = 0;
+        }
+        XmlDocumentGenerator generator =
+            new XmlDocumentGenerator(seed).withDepth(3).withFanOut(10);
+        String document = generator.generate();
+        XmlEquivalenceMatcher matcher =
+            equivalentTo(document).comparingCanonicallyAbove(threshold);
+        assertThat(matcher.matches(xmlText(generator.generateVariant())), is(true));
+        matched += document.length() * 2;
+      }
+      long retained = usedHeapAfterGc() - before;
+      assertThat("threshold " + threshold + ": " + retained + " bytes retained after matching "
+          + matched + " bytes of text", retained, lessThan(matched / 5));
+    }
+  }
+
+  private static long usedHeapAfterGc() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  private static long fastestMatch(XmlDocumentGenerator generator, long canonicalThreshold) {
+    XmlEquivalenceMatcher matcher =
+        equivalentTo(generator.generate()).comparingCanonicallyAbove(canonicalThreshold);
+    String variant = generator.generateVariant();
+    long fastest = Long.MAX_VALUE;
+    for (int run = 0; run < 5; run++) {
+      XmlMatcherValue testValue = xmlText(variant);
+      long start = System.nanoTime();
+      assertThat(matcher.matches(testValue), is(true));
+      fastest = Math.min(fastest, System.nanoTime() - start);
+    }
+    return fastest;
+  }
+}
@@ -0,0 +1,55 @@
+package org.ph0.xmatch;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.ph0.xmatch.XmlMatchers.*;
+
+import java.util.Set;
+
+import org.junit.Test;
+import org.ph0.xmatch.XmlEquivalenceMatcher.Setting;
+
+public class XmlScalingStressTest {
+  private static final XmlDocumentGenerator SMALL = new XmlDocumentGenerator(42).withDepth(2)
+      .withFanOut(4).withAttributes(3).withNamespaces(true).withCommentsAndCdata(true);
+
+  @Test
+  public void testGeneratorIsDeterministic() {
+    assertThat(new XmlDocumentGenerator(7).generate(),
+        equalTo(new XmlDocumentGenerator(7).generate()));
+    assertThat(new XmlDocumentGenerator(7).generate(),
+        not(equalTo(new XmlDocumentGenerator(8).generate())));
+    assertThat(SMALL.generateWithDifferences(3), equalTo(SMALL.generateWithDifferences(3)));
+    assertThat(SMALL.elementCount(), is(21));
+  }
+
+  /**
+   * Checks that both comparisons match an identical document and detect a changed value under
+   * every combination of settings; whether they agree on cosmetic variants is checked by
+   * {@link CanonicalComparisonTest#testParityWithDomComparison()}.
+   */
+  @Test
+  public void testEverySettingCombination() {
+    XmlMatcherValue document = xmlText(SMALL.generate());
+    XmlMatcherValue same = xmlText(SMALL.generate());
+    XmlMatcherValue changed = xmlText(SMALL.generateWithDifferences(1));
+
+    for (Set<Setting> settings : SettingCombinations.all()) {
+      XmlEquivalenceMatcher dom = new XmlEquivalenceMatcher(document, settings);
+      XmlEquivalenceMatcher canonical = dom.comparingCanonicallyAbove(0);
+      for (XmlEquivalenceMatcher matcher : new XmlEquivalenceMatcher[] { dom, canonical }) {
+        assertThat(settings + " matches itself", matcher.matches(same), is(true));
+        assertThat(settings + " detects a changed value", matcher.matches(changed), is(false));
+      }
+    }
+  }
+
+  @Test
+  public void testCosmeticVariationsUnderDefaultSettings() {
+    XmlEquivalenceMatcher matcher = equivalentTo(SMALL.generate());
+    assertThat(xmlText(SMALL.generateVariant()), matcher);
+    assertThat(xmlText(SMALL.generateVariant()), matcher.comparingCanonicallyAbove(0));
+    assertThat(xmlText(SMALL.generateVariant()),
+        not(matcher.disabling(Setting.IGNORE_COMMENTS)));
+  }
+}
@@ -0,0 +1,56 @@
+package org.ph0.xmatch;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.ph0.xmatch.XmlMatchers.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class XmlSimilarityTest {
+  private static String items(int count, int changed) {
+    StringBuilder xml = new StringBuilder("<items>");
+    for (int i = 0; i < count; i++) {
+      xml.append("<item id=\"").append(i).append("\"><name>")
+          .append(i < changed ? "changed" : "item").append(i).append("</name></item>");
+    }
+    return xml.append("</items>").toString();
+  }
+
+  @Test
+  public void testScores() {
+    XmlSimilarity similarity = equivalentTo("<foo/>").similarity();
+    XmlMatcherValue reference = xmlText(items(100, 0));
+
+    assertThat(similarity.exactScore(reference, xmlText(items(100, 0))), is(1.0));
+    assertThat("whitespace is ignored under the default settings",
+        similarity.estimatedScore(reference, xmlText(items(100, 0).replace("<item ", "\n <item "))),
+        is(1.0));
+
+    // 6 canonical lines per item, 10 of which are changed in each document
+    double exact = similarity.exactScore(reference, xmlText(items(100, 10)));
+    assertThat(exact, closeTo(1.0 - 20.0 / 1204, 0.001));
+    assertThat(similarity.estimatedScore(reference, xmlText(items(100, 10))),
+        closeTo(0.9, 0.1));
+    assertThat(similarity.estimatedScore(reference, xmlText("<other><thing/></other>")),
+        lessThan(0.1));
+  }
+
+  @Test
+  public void testRanking() {
+    XmlSimilarity similarity = equivalentTo("<foo/>").similarity();
+    List<XmlMatcherValue> candidates = new ArrayList<XmlMatcherValue>();
+    for (int changed : new int[] { 50, 0, 90, 10 }) {
+      candidates.add(xmlText(items(100, changed)));
+    }
+    List<XmlSimilarity.ScoredValue> ranked =
+        similarity.rank(xmlText(items(100, 0)), candidates, 3);
+
+    assertThat(ranked, hasSize(3));
+    assertThat(ranked.get(0).getValue(), sameInstance(candidates.get(1)));
+    assertThat(ranked.get(1).getValue(), sameInstance(candidates.get(3)));
+    assertThat(ranked.get(2).getValue(), sameInstance(candidates.get(0)));
+  }
+}
@@ -0,0 +1,90 @@
+package org.ph0.xmatch;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.ph0.xmatch.XmlMatchers.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+import org.hamcrest.StringDescription;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.ph0.xmatch.XmlEquivalenceMatcher.Setting;
+
+public class XmlSnapshotMatcherTest {
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Test
+  public void testSnapshotIsRecordedThenCompared() {
+    File golden = new File(tempFolder.getRoot(), "snapshots/foo.xml");
+    assertThat(xmlText("<foo><bar>hello</bar></foo>"), matchesSnapshot(golden));
+    assertThat(golden.isFile(), is(true));
+    File sidecar = new File(golden.getPath() + CanonicalSnapshot.SIDECAR_SUFFIX);
+    assertThat(sidecar.isFile(), is(true));
+
+    assertThat(xmlText("<foo>\n  <bar>hello</bar>\n</foo>"), matchesSnapshot(golden));
+    XmlSnapshotMatcher matcher = matchesSnapshot(golden);
+    XmlMatcherValue changed = xmlText("<foo><bar>goodbye</bar></foo>");
+    assertThat(matcher.matches(changed), is(false));
+    StringDescription mismatch = new StringDescription();
+    matcher.describeMismatch(changed, mismatch);
+    assertThat(mismatch.toString(), allOf(containsString("hello"), containsString("goodbye")));
+  }
+
+  @Test
+  public void testSidecarIsKeyedBySourceAndSettings() throws IOException {
+    File golden = tempFolder.newFile("foo.xml");
+    writeGolden(golden, "<foo><!-- note --><bar>hello</bar></foo>");
+    assertThat(xmlText("<foo><bar>hello</bar></foo>"), matchesSnapshot(golden));
+    assertThat(xmlText("<foo><bar>hello</bar></foo>"),
+        not(matchesSnapshot(golden).disabling(Setting.IGNORE_COMMENTS)));
+
+    CanonicalSnapshot snapshot = CanonicalSnapshot.load(golden);
+    assertThat(snapshot.get(XmlEquivalenceMatcher.defaultSettings()), notNullValue());
+
+    // editing the golden file by hand invalidates its sidecar
+    writeGolden(golden, "<foo><bar>goodbye</bar></foo>");
+    assertThat(CanonicalSnapshot.load(golden).get(XmlEquivalenceMatcher.defaultSettings()),
+        nullValue());
+    assertThat(xmlText("<foo><bar>goodbye</bar></foo>"), matchesSnapshot(golden));
+  }
+
+  @Test
+  public void testSidecarLinesAreOnlyReadForMismatches() throws IOException {
+    File golden = tempFolder.newFile("foo.xml");
+    writeGolden(golden, "<foo><bar>hello</bar></foo>");
+    assertThat(xmlText("<foo><bar>hello</bar></foo>"), matchesSnapshot(golden));
+    CanonicalSnapshot snapshot = CanonicalSnapshot.load(golden);
+    assertThat("loaded once per JVM", CanonicalSnapshot.load(golden), sameInstance(snapshot));
+
+    CanonicalSnapshot.Entry entry =
+        CanonicalSnapshot.reload(golden).get(XmlEquivalenceMatcher.defaultSettings());
+    assertThat(entry.lines, nullValue());
+    assertThat(CanonicalSnapshot.load(golden).lines(entry), hasItem(containsString("hello")));
+
+    // lines that can no longer be read are canonicalized from the golden file again
+    File sidecar = new File(golden.getPath() + CanonicalSnapshot.SIDECAR_SUFFIX);
+    try (RandomAccessFile out = new RandomAccessFile(sidecar, "rw")) {
+      out.seek(entry.linesOffset);
+      out.write(new byte[entry.linesLength]);
+    }
+    assertThat(CanonicalSnapshot.load(golden).lines(entry), nullValue());
+    XmlMatcherValue changed = xmlText("<foo><bar>goodbye</bar></foo>");
+    StringDescription mismatch = new StringDescription();
+    matchesSnapshot(golden).describeMismatch(changed, mismatch);
+    assertThat(mismatch.toString(), allOf(containsString("hello"), containsString("goodbye")));
+  }
+
+  private static void writeGolden(File golden, String xml) throws IOException {
+    try (OutputStream out = new FileOutputStream(golden)) {
+      out.write(xml.getBytes(StandardCharsets.UTF_8));
+    }
+  }
+}
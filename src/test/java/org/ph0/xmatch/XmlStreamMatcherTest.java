@@ -0,0 +1,95 @@
+package org.ph0.xmatch;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.ph0.xmatch.XmlMatchers.*;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+import org.ph0.xmatch.XmlStreamMatcher.StreamResult;
+
+public class XmlStreamMatcherTest {
+  /**
+   * Generates messages on demand, counting how many were pulled.
+   */
+  private static final class MessageStream implements Iterator<XmlMatcherValue> {
+    private final int length;
+    private final int mismatchAt;
+    int pulled = 0;
+
+    MessageStream(int length, int mismatchAt) {
+      this.length = length;
+      this.mismatchAt = mismatchAt;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return pulled < length;
+    }
+
+    @Override
+    public XmlMatcherValue next() {
+      int index = pulled++;
+      return xmlText("<message><status>" + (index == mismatchAt ? "failed" : "ok")
+          + "</status></message>");
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private static final XmlEquivalenceMatcher OK =
+      equivalentTo("<message><status>ok</status></message>");
+
+  @Test
+  public void testEachMessageMatching() {
+    MessageStream messages = new MessageStream(500, -1);
+    StreamResult result = eachMessageMatching(OK).withConcurrency(4).match(messages);
+    assertThat(result.toString(), result.matched(), is(true));
+    assertThat(result.getMatchedMessages(), is(500L));
+    assertThat(messages.pulled, is(500));
+  }
+
+  @Test
+  public void testFailsFastOnFirstMismatch() {
+    MessageStream messages = new MessageStream(Integer.MAX_VALUE, 10);
+    StreamResult result = eachMessageMatching(OK).withConcurrency(3).match(messages);
+    assertThat(result.matched(), is(false));
+    assertThat(result.getMatchedMessages(), is(10L));
+    assertThat(result.getMismatch().getMismatchDescription(), containsString("failed"));
+    assertThat(messages.pulled, lessThanOrEqualTo(10 + 3));
+    assertThat(result.toString(), startsWith("message #10 mismatched"));
+
+    try {
+      eachMessageMatching(OK).withConcurrency(1).assertMatches(new MessageStream(20, 5));
+      throw new IllegalStateException("Expected an assertion error.");
+    }
+    catch (AssertionError e) {
+      assertThat(e.getMessage(), containsString("message #5"));
+    }
+  }
+
+  @Test
+  public void testMessagesMatchingInOrder() {
+    XmlEquivalenceMatcher failed = equivalentTo("<message><status>failed</status></message>");
+    List<XmlEquivalenceMatcher> templates = Arrays.asList(OK, OK, failed, OK);
+    assertThat(messagesMatching(templates).match(new MessageStream(4, 2)).matched(), is(true));
+    assertThat(messagesMatching(templates).match(new MessageStream(4, 1)).getMatchedMessages(),
+        is(1L));
+
+    StreamResult tooFew = messagesMatching(templates).match(new MessageStream(3, 2));
+    assertThat(tooFew.matched(), is(false));
+    assertThat(tooFew.getMismatch(), nullValue());
+    assertThat(tooFew.toString(), containsString("end of the stream"));
+
+    StreamResult tooMany = messagesMatching(templates).match(new MessageStream(5, 2));
+    assertThat(tooMany.matched(), is(false));
+    assertThat(tooMany.getMatchedMessages(), is(4L));
+    assertThat(tooMany.toString(), containsString("unexpected message"));
+  }
+}
@@ -0,0 +1,78 @@
+package org.ph0.xmatch;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.ph0.xmatch.XmlMatchers.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.ph0.xmatch.examples.XmlMatcherExampleTests;
+
+public class XmlValueCacheTest {
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private URL writeFile(String name, String content) throws IOException {
+    File file = tempFolder.newFile(name);
+    try (OutputStream out = new FileOutputStream(file)) {
+      out.write(content.getBytes(StandardCharsets.UTF_8));
+    }
+    return file.toURI().toURL();
+  }
+
+  @Test
+  public void testRepeatedReferencesShareValue() throws IOException {
+    XmlValueCache cache = new XmlValueCache(1024 * 1024);
+    URL url = writeFile("a.xml", "<foo><bar>hello world</bar></foo>");
+
+    XmlMatcherValue first = cache.intern(url);
+    XmlMatcherValue second = cache.intern(url);
+    assertThat(second, sameInstance(first));
+    assertThat(second, equivalentTo("<foo><bar>hello world</bar></foo>"));
+
+    XmlValueCache.Statistics statistics = cache.statistics();
+    assertThat(statistics.getMisses(), equalTo(1L));
+    assertThat(statistics.getHits(), equalTo(1L));
+    assertThat(statistics.getRetainedValues(), equalTo(1));
+  }
+
+  @Test
+  public void testIdenticalContentIsShared() throws IOException {
+    XmlValueCache cache = new XmlValueCache(1024 * 1024);
+    XmlMatcherValue first = cache.intern(writeFile("a.xml", "<foo>same</foo>"));
+    XmlMatcherValue second = cache.intern(writeFile("b.xml", "<foo>same</foo>"));
+
+    assertThat(second, not(sameInstance(first)));
+    assertThat(second.getSourceDescription(), containsString("b.xml"));
+    assertThat(second.getInputSourceSupplier(), sameInstance(first.getInputSourceSupplier()));
+    assertThat(cache.statistics().getSharedContents(), equalTo(1L));
+  }
+
+  @Test
+  public void testEvictionWithinBudget() throws IOException {
+    String content = "<foo>0123456789</foo>";
+    XmlValueCache cache = new XmlValueCache(content.length() * 2);
+    for (int i = 0; i < 5; i++) {
+      cache.intern(writeFile(i + ".xml", content.replace('0', (char) ('a' + i))));
+    }
+
+    XmlValueCache.Statistics statistics = cache.statistics();
+    assertThat(statistics.getRetainedValues(), equalTo(2));
+    assertThat(statistics.getRetainedBytes(), lessThanOrEqualTo((long) content.length() * 2));
+    assertThat(statistics.getEvictions(), equalTo(3L));
+  }
+
+  @Test
+  public void testXmlResourceIsInterned() {
+    assertThat(xmlResource(XmlMatcherExampleTests.class, "foo.xml"),
+        sameInstance(xmlResource(XmlMatcherExampleTests.class, "foo.xml")));
+  }
+}
@@ -4,9 +4,14 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
 import static org.ph0.xmatch.XmlMatchers.*;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import javax.xml.bind.annotation.XmlRootElement;
 
 import org.junit.Test;
+import org.ph0.xmatch.MatchResult;
+import org.ph0.xmatch.XmlMatcherValue;
 import org.ph0.xmatch.XmlEquivalenceMatcher.Setting;
 
 public class XmlMatcherExampleTests {
@@ -30,6 +35,34 @@ public class XmlMatcherExampleTests {
         isJaxbObject(equivalentTo(xmlResource(XmlMatcherExampleTests.class, "foo.xml"))));
   }
   
+  @XmlRootElement(name="baz")
+  public static class MyOtherJaxbThing {
+    public int count;
+  }
+
+  @Test
+  public void testJaxbBatch() {
+    List<Object> things = new ArrayList<Object>();
+    for (int i = 0; i < 500; i++) {
+      MyJaxbThing thing = new MyJaxbThing();
+      thing.bar = "hello " + i;
+      things.add(thing);
+      MyOtherJaxbThing otherThing = new MyOtherJaxbThing();
+      otherThing.count = i;
+      things.add(otherThing);
+    }
+
+    List<XmlMatcherValue> values = jaxbXmlForAll(things);
+    assertThat(values, hasSize(1000));
+    assertThat(values.get(0), equivalentTo("<foo><bar>hello 0</bar></foo>"));
+    assertThat(values.get(999), equivalentTo("<baz><count>499</count></baz>"));
+
+    List<MatchResult> results =
+        equivalentTo("<baz><count>7</count></baz>").matchAll(values.subList(10, 20));
+    assertThat(results.get(5).matched(), equalTo(true));
+    assertThat(results.get(7).matched(), equalTo(false));
+  }
+
   @Test
   public void testStringComparison() {
     assertThat("<foo>bar</foo>", isXmlText(equivalentTo("<foo>\nbar\n</foo>")));